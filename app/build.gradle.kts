@@ -1,5 +1,6 @@
 plugins {
     id("com.android.application")
+    id("androidx.baselineprofile")
 }
 
 android {
@@ -27,6 +28,41 @@ android {
 
         testInstrumentationRunner = "androidx.test.runner.AndroidJUnitRunner"
 
+        // Room writes the schema of every database version here; MigrationTest validates migrations against it
+        javaCompileOptions {
+            annotationProcessorOptions {
+                arguments += mapOf("room.schemaLocation" to "$projectDir/schemas")
+            }
+        }
+    }
+
+    sourceSets {
+        getByName("androidTest").assets.srcDir("$projectDir/schemas")
+        // Test fixtures, such as VaultGenerator, used by both the local and the instrumented tests
+        getByName("test").java.srcDir("src/sharedTest/java")
+        getByName("androidTest").java.srcDir("src/sharedTest/java")
+        // BenchmarkVaultSeeder, which the :benchmark journeys use to fill the vault. It is only part of the build types
+        // that the baseline profile plugin adds for benchmarks and profile generation, never of release builds.
+        listOf("benchmarkRelease", "nonMinifiedRelease").forEach { buildType ->
+            maybeCreate(buildType).apply {
+                java.srcDir("src/benchmark/java")
+                java.srcDir("src/sharedTest/java")
+                manifest.srcFile("src/benchmark/AndroidManifest.xml")
+            }
+        }
+    }
+
+    testOptions {
+        // Local unit tests run against a stub android.jar; let calls like Log.d return defaults instead of throwing
+        unitTests.isReturnDefaultValues = true
+        // Robolectric reads the merged manifest and resources
+        unitTests.isIncludeAndroidResources = true
+        // HotPathBenchmark runs only with -Pbenchmark, and writes its results to build/outputs/benchmark
+        unitTests.all {
+            if (project.hasProperty("benchmark")) {
+                it.systemProperty("ciphersafe.benchmarkDir", layout.buildDirectory.dir("outputs/benchmark").get().asFile.path)
+            }
+        }
     }
 
 
@@ -56,7 +92,13 @@ dependencies {
     implementation("androidx.appcompat:appcompat:1.7.0")
     implementation("com.google.android.material:material:1.12.0")
     implementation("androidx.constraintlayout:constraintlayout:2.1.4")
+    implementation("androidx.recyclerview:recyclerview:1.3.2")
+    implementation("androidx.lifecycle:lifecycle-livedata:2.6.2")
     testImplementation("junit:junit:4.13.2")
+    testImplementation("com.squareup.okhttp3:mockwebserver:4.12.0")
+    testImplementation("org.robolectric:robolectric:4.13")
+    testImplementation("androidx.test:core:1.6.1")
+    testImplementation("androidx.work:work-testing:2.9.1")
     androidTestImplementation("androidx.test.ext:junit:1.2.1")
     androidTestImplementation("androidx.test.espresso:espresso-core:3.6.1")
     implementation("androidx.room:room-runtime:2.6.1")
@@ -81,10 +123,14 @@ dependencies {
     implementation("com.fasterxml.jackson.core:jackson-annotations:2.15.2")
     implementation("androidx.compose.ui:ui-text-google-fonts:1.6.8")
     implementation("androidx.work:work-runtime:2.9.1")
+    // Installs the baseline profile on devices that do not get it from Play
+    implementation("androidx.profileinstaller:profileinstaller:1.3.1")
+    // Generates the baseline profile in src/release/generated/baselineProfiles with :app:generateBaselineProfile
+    baselineProfile(project(":benchmark"))
     implementation("com.android.billingclient:billing:7.1.0")
 
     androidTestImplementation("androidx.test:rules:1.5.0")
     androidTestImplementation("androidx.test:runner:1.5.2")
-    androidTestImplementation("androidx.room:room-testing:2.5.2")
+    androidTestImplementation("androidx.room:room-testing:2.6.1")
 
 }
@@ -0,0 +1,160 @@
+package com.ciphersafe;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Base64;
+
+import androidx.room.Room;
+import androidx.room.testing.MigrationTestHelper;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+/**
+ * Migrates a version 1 database to the current version and checks the schema and the data.
+ * <p>
+ * Schemas are only exported from version 7 on, so the version 1 database is created with the statement Room generated
+ * for it; {@link MigrationTestHelper} then runs {@link AppDatabase#ALL_MIGRATIONS} and validates the result against
+ * the exported schema of the current version.
+ */
+@RunWith(AndroidJUnit4.class)
+public class MigrationTest {
+
+    private static final String TEST_DB = "migration-test";
+    private static final int CURRENT_VERSION = 7;
+    // More than two batches of MIGRATION_3_4, with a partial last batch
+    private static final int ROW_COUNT = 1234;
+
+    @Rule
+    public MigrationTestHelper helper = new MigrationTestHelper(InstrumentationRegistry.getInstrumentation(), AppDatabase.class);
+
+    private Context context;
+
+    @Before
+    public void createVersion1Database() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        context.deleteDatabase(TEST_DB);
+        File path = context.getDatabasePath(TEST_DB);
+        path.getParentFile().mkdirs();
+        try (SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(path, null)) {
+            db.execSQL("CREATE TABLE IF NOT EXISTS `Password` (`id` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, `accountName` TEXT, `username` TEXT, `password` TEXT, `notes` TEXT)");
+            db.beginTransaction();
+            try {
+                for (int i = 1; i <= ROW_COUNT; i++) {
+                    ContentValues values = new ContentValues();
+                    values.put("id", i);
+                    values.put("accountName", "account" + i);
+                    values.put("username", "user" + i);
+                    // Version 1 stored the encrypted password as Base64 text; row 7 has none
+                    values.put("password", i == 7 ? null : Base64.encodeToString(encryptedPassword(i), Base64.DEFAULT));
+                    values.put("notes", i % 100 == 0 ? "hundredth" : null);
+                    db.insertOrThrow("Password", null, values);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            db.setVersion(1);
+        }
+    }
+
+    @After
+    public void deleteDatabase() {
+        context.deleteDatabase(TEST_DB);
+    }
+
+    @Test
+    public void migrate1ToCurrentKeepsRowsAndDecodesPasswords() throws Exception {
+        SupportSQLiteDatabase db = helper.runMigrationsAndValidate(TEST_DB, CURRENT_VERSION, true, AppDatabase.ALL_MIGRATIONS);
+
+        try (Cursor cursor = db.query("SELECT `id`, `accountName`, `username`, `password`, `notes` FROM `Password` ORDER BY `id`")) {
+            assertEquals(ROW_COUNT, cursor.getCount());
+            int i = 0;
+            while (cursor.moveToNext()) {
+                i++;
+                assertEquals(i, cursor.getInt(0));
+                assertEquals("account" + i, cursor.getString(1));
+                assertEquals("user" + i, cursor.getString(2));
+                if (i == 7) {
+                    assertTrue(cursor.isNull(3));
+                } else {
+                    assertEquals(Cursor.FIELD_TYPE_BLOB, cursor.getType(3));
+                    assertArrayEquals(encryptedPassword(i), cursor.getBlob(3));
+                }
+                assertEquals(i % 100 == 0 ? "hundredth" : null, cursor.getString(4));
+            }
+        }
+        assertEquals(0, count(db, "SELECT COUNT(*) FROM sqlite_master WHERE name = 'Password_new'"));
+    }
+
+    @Test
+    public void migrate1ToCurrentIndexesExistingRowsForSearch() throws Exception {
+        SupportSQLiteDatabase db = helper.runMigrationsAndValidate(TEST_DB, CURRENT_VERSION, true, AppDatabase.ALL_MIGRATIONS);
+
+        assertEquals(1, count(db, "SELECT COUNT(*) FROM password_fts WHERE password_fts MATCH 'account1234'"));
+        assertEquals(ROW_COUNT / 100, count(db, "SELECT COUNT(*) FROM password_fts WHERE password_fts MATCH 'hundredth'"));
+    }
+
+    @Test
+    public void migrate1ToCurrentInstallsTriggers() throws Exception {
+        SupportSQLiteDatabase db = helper.runMigrationsAndValidate(TEST_DB, CURRENT_VERSION, true, AppDatabase.ALL_MIGRATIONS);
+        assertEquals(0, count(db, "SELECT generation FROM vault_state WHERE id = " + VaultState.SINGLETON_ID));
+        assertEquals(0, count(db, "SELECT COUNT(*) FROM change_log"));
+
+        db.execSQL("INSERT INTO `Password` (`accountName`, `username`) VALUES ('added', 'someone')");
+        db.execSQL("UPDATE `Password` SET `accountName` = 'renamed' WHERE `id` = 1");
+        db.execSQL("DELETE FROM `Password` WHERE `id` = 2");
+
+        assertEquals(3, count(db, "SELECT generation FROM vault_state WHERE id = " + VaultState.SINGLETON_ID));
+        assertEquals(3, count(db, "SELECT COUNT(*) FROM change_log"));
+        assertEquals(1, count(db, "SELECT COUNT(*) FROM change_log WHERE passwordId = 2 AND op = " + ChangeRecord.OP_DELETE));
+        assertEquals(1, count(db, "SELECT COUNT(*) FROM password_fts WHERE password_fts MATCH 'added'"));
+        assertEquals(1, count(db, "SELECT COUNT(*) FROM password_fts WHERE password_fts MATCH 'renamed'"));
+        assertEquals(0, count(db, "SELECT COUNT(*) FROM password_fts WHERE password_fts MATCH 'account2'"));
+    }
+
+    @Test
+    public void migratedDatabaseOpensWithRoom() throws Exception {
+        helper.runMigrationsAndValidate(TEST_DB, CURRENT_VERSION, true, AppDatabase.ALL_MIGRATIONS).close();
+
+        AppDatabase db = Room.databaseBuilder(context, AppDatabase.class, TEST_DB)
+                .addMigrations(AppDatabase.ALL_MIGRATIONS)
+                .allowMainThreadQueries()
+                .build();
+        helper.closeWhenFinished(db);
+        assertEquals(ROW_COUNT, db.passwordDao().getPage(0, Integer.MAX_VALUE).size());
+        assertArrayEquals(encryptedPassword(1), db.passwordDao().findById(1).password);
+        assertNull(db.passwordDao().findById(7).password);
+    }
+
+    // Stand-in for an IV and ciphertext; the migration only decodes the Base64, so the content does not matter
+    private static byte[] encryptedPassword(int i) {
+        byte[] bytes = new byte[12 + 16 + i % 40];
+        for (int j = 0; j < bytes.length; j++) {
+            bytes[j] = (byte) (i * 31 + j);
+        }
+        return bytes;
+    }
+
+    private static long count(SupportSQLiteDatabase db, String query) {
+        try (Cursor cursor = db.query(query)) {
+            cursor.moveToFirst();
+            return cursor.getLong(0);
+        }
+    }
+}
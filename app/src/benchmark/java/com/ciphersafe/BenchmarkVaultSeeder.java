@@ -0,0 +1,54 @@
+package com.ciphersafe;
+
+import android.app.Activity;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+/**
+ * BenchmarkVaultSeeder replaces the vault with synthetic entries for the journeys of the :benchmark module.
+ * It is only part of the builds that the baseline profile plugin creates for benchmarks and profile generation, and
+ * only the shell can send to it, as it requires the DUMP permission:
+ * {@code adb shell am broadcast -n com.ciphersafe/.BenchmarkVaultSeeder --ei rows 5000 --es exportPassword secret}.
+ * <p>
+ * Every entry is deleted, then {@link VaultGenerator} inserts the given number of entries. The privacy policy is
+ * marked as accepted and the export password, if given, is stored, so the journeys go straight to the screens they
+ * measure. The broadcast completes with {@link Activity#RESULT_OK} once the entries are committed.
+ */
+public class BenchmarkVaultSeeder extends BroadcastReceiver {
+
+    static final String EXTRA_ROWS = "rows";
+    static final String EXTRA_EXPORT_PASSWORD = "exportPassword";
+    private static final long SEED = 42;
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        int rowCount = intent.getIntExtra(EXTRA_ROWS, 0);
+        String exportPassword = intent.getStringExtra(EXTRA_EXPORT_PASSWORD);
+        Context appContext = context.getApplicationContext();
+        PendingResult result = goAsync();
+        // Encrypting thousands of entries takes longer than a receiver may block the main thread
+        new Thread(() -> {
+            try {
+                AppDatabase db = AppDatabase.getInstance(appContext);
+                db.getOpenHelper().getWritableDatabase().execSQL("DELETE FROM password");
+                VaultGenerator.typical(SEED).seed(db, rowCount);
+
+                SharedPreferences.Editor editor = appContext.getSharedPreferences("AppPreferences", Context.MODE_PRIVATE).edit()
+                        .putBoolean("PolicyAccepted", true);
+                if (exportPassword != null) {
+                    editor.putString("EXCEL_PASSWORD", exportPassword);
+                }
+                editor.commit();
+                result.setResult(Activity.RESULT_OK, "Seeded " + rowCount + " entries", null);
+            } catch (Exception e) {
+                Log.e("BenchmarkVaultSeeder", "Seeding failed", e);
+                result.setResult(Activity.RESULT_CANCELED, "Seeding failed: " + e.getMessage(), null);
+            } finally {
+                result.finish();
+            }
+        }, "BenchmarkVaultSeeder").start();
+    }
+}
@@ -1,19 +1,275 @@
 package com.ciphersafe;
 
 // AppDatabase.java
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Base64;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
 import androidx.room.Database;
+import androidx.room.Room;
 import androidx.room.RoomDatabase;
+import androidx.room.migration.Migration;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * AppDatabase is the main database class that defines the database configuration and serves as the app's main access point to the persisted data.
+ * A single instance is shared by the whole process (activities and workers), so they also share one invalidation tracker.
  */
-@Database(entities = {Password.class}, version = 1)
+@Database(entities = {Password.class, PasswordFts.class, VaultState.class, ChangeRecord.class, BackupRun.class}, version = 7)
 public abstract class AppDatabase extends RoomDatabase {
 
+    private static final String DATABASE_NAME = "passwords-db";
+
+    /**
+     * Number of threads Room may use to run queries. Write-ahead logging lets these readers run
+     * concurrently with a writer, and the bound keeps a burst of queries from spawning unbounded threads.
+     */
+    private static final int QUERY_THREAD_COUNT = 4;
+
+    private static final ExecutorService QUERY_EXECUTOR = Executors.newFixedThreadPool(QUERY_THREAD_COUNT);
+
+    private static volatile AppDatabase instance;
+
+    /**
+     * Migration from version 1 to 2: adds an index on Password.accountName.
+     */
+    public static final Migration MIGRATION_1_2 = new Migration(1, 2) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            database.execSQL("CREATE INDEX IF NOT EXISTS `index_Password_accountName` ON `Password` (`accountName`)");
+        }
+    };
+
+    /**
+     * Migration from version 2 to 3: adds the password_fts full-text index, the triggers that keep it
+     * in sync with Password, and indexes the rows that already exist.
+     */
+    public static final Migration MIGRATION_2_3 = new Migration(2, 3) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            database.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS `password_fts` USING FTS4(`accountName` TEXT, `username` TEXT, `notes` TEXT, content=`Password`)");
+            createPasswordFtsTriggers(database);
+            database.execSQL("INSERT INTO `password_fts`(`password_fts`) VALUES ('rebuild')");
+        }
+    };
+
+    /**
+     * Number of rows converted per query by {@link #MIGRATION_3_4}, which bounds the memory the migration needs.
+     */
+    private static final int MIGRATION_BATCH_SIZE = 500;
+
+    /**
+     * Migration from version 3 to 4: changes Password.password from Base64 TEXT to a BLOB holding the raw IV and ciphertext.
+     * SQLite cannot change a column type in place, so the rows are copied into a new table in batches of
+     * {@link #MIGRATION_BATCH_SIZE}, decoding each value once, and the new table replaces the old one.
+     * Row ids are kept, so the full-text index (keyed by rowid) stays valid.
+     */
+    public static final Migration MIGRATION_3_4 = new Migration(3, 4) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            database.execSQL("CREATE TABLE IF NOT EXISTS `Password_new` (`id` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, `accountName` TEXT, `username` TEXT, `password` BLOB, `notes` TEXT)");
+
+            int lastId = 0;
+            int copied;
+            do {
+                copied = 0;
+                try (Cursor cursor = database.query("SELECT `id`, `accountName`, `username`, `password`, `notes` FROM `Password` WHERE `id` > ? ORDER BY `id` LIMIT " + MIGRATION_BATCH_SIZE,
+                        new Object[]{lastId})) {
+                    while (cursor.moveToNext()) {
+                        lastId = cursor.getInt(0);
+                        ContentValues values = new ContentValues();
+                        values.put("id", lastId);
+                        values.put("accountName", cursor.getString(1));
+                        values.put("username", cursor.getString(2));
+                        String encodedPassword = cursor.getString(3);
+                        values.put("password", encodedPassword != null ? Base64.decode(encodedPassword, Base64.DEFAULT) : null);
+                        values.put("notes", cursor.getString(4));
+                        database.insert("Password_new", SQLiteDatabase.CONFLICT_ABORT, values);
+                        copied++;
+                    }
+                }
+            } while (copied == MIGRATION_BATCH_SIZE);
+
+            // Dropping the table also drops its index and FTS triggers; DROP TABLE does not fire the delete triggers
+            database.execSQL("DROP TABLE `Password`");
+            database.execSQL("ALTER TABLE `Password_new` RENAME TO `Password`");
+            database.execSQL("CREATE INDEX IF NOT EXISTS `index_Password_accountName` ON `Password` (`accountName`)");
+            createPasswordFtsTriggers(database);
+        }
+    };
+
+    /**
+     * Migration from version 4 to 5: adds the vault_state table and the triggers that bump its generation counter.
+     */
+    public static final Migration MIGRATION_4_5 = new Migration(4, 5) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            database.execSQL("CREATE TABLE IF NOT EXISTS `vault_state` (`id` INTEGER NOT NULL, `generation` INTEGER NOT NULL, PRIMARY KEY(`id`))");
+            initializeVaultState(database);
+        }
+    };
+
+    /**
+     * Migration from version 5 to 6: adds the change_log table and the triggers that append to it.
+     * Existing rows are not logged; the first backup after the upgrade is a full snapshot.
+     */
+    public static final Migration MIGRATION_5_6 = new Migration(5, 6) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            database.execSQL("CREATE TABLE IF NOT EXISTS `change_log` (`seq` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, `passwordId` INTEGER NOT NULL, `op` INTEGER NOT NULL)");
+            createChangeLogTriggers(database);
+        }
+    };
+
+    /**
+     * Migration from version 6 to 7: adds the backup_run history table.
+     */
+    public static final Migration MIGRATION_6_7 = new Migration(6, 7) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            database.execSQL("CREATE TABLE IF NOT EXISTS `backup_run` (`id` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, `startedAt` INTEGER NOT NULL, "
+                    + "`result` TEXT, `kind` TEXT, `rowCount` INTEGER NOT NULL, `byteCount` INTEGER NOT NULL, `totalMillis` INTEGER NOT NULL, "
+                    + "`resumeMillis` INTEGER NOT NULL, `exportMillis` INTEGER NOT NULL, `decryptWaitMillis` INTEGER NOT NULL, "
+                    + "`folderLookupMillis` INTEGER NOT NULL, `uploadMillis` INTEGER NOT NULL, `cleanupMillis` INTEGER NOT NULL)");
+        }
+    };
+
+    /**
+     * Every migration, in order; a database of any earlier version is migrated to the current one.
+     */
+    static final Migration[] ALL_MIGRATIONS = {MIGRATION_1_2, MIGRATION_2_3, MIGRATION_3_4, MIGRATION_4_5, MIGRATION_5_6, MIGRATION_6_7};
+
+    /**
+     * Initializes the database on a fresh install with what Room does not create from the entities:
+     * the vault_state row and the vault_state and change_log triggers.
+     * The FTS triggers are created by Room itself for a new database.
+     */
+    private static final Callback CREATE_CALLBACK = new Callback() {
+        @Override
+        public void onCreate(@NonNull SupportSQLiteDatabase database) {
+            initializeVaultState(database);
+            createChangeLogTriggers(database);
+        }
+    };
+
+    /**
+     * Inserts the vault_state row and creates the triggers that increment its generation on every write to Password.
+     *
+     * @param database The database to initialize.
+     */
+    static void initializeVaultState(SupportSQLiteDatabase database) {
+        database.execSQL("INSERT OR IGNORE INTO `vault_state` (`id`, `generation`) VALUES (" + VaultState.SINGLETON_ID + ", 0)");
+        for (String event : new String[]{"INSERT", "UPDATE", "DELETE"}) {
+            database.execSQL("CREATE TRIGGER IF NOT EXISTS vault_generation_AFTER_" + event + " AFTER " + event + " ON `Password` "
+                    + "BEGIN UPDATE `vault_state` SET `generation` = `generation` + 1 WHERE `id` = " + VaultState.SINGLETON_ID + "; END");
+        }
+    }
+
+    /**
+     * Creates the triggers that append a {@link ChangeRecord} to change_log on every write to Password.
+     *
+     * @param database The database to create the triggers in.
+     */
+    static void createChangeLogTriggers(SupportSQLiteDatabase database) {
+        database.execSQL("CREATE TRIGGER IF NOT EXISTS change_log_AFTER_INSERT AFTER INSERT ON `Password` "
+                + "BEGIN INSERT INTO `change_log` (`passwordId`, `op`) VALUES (NEW.`id`, " + ChangeRecord.OP_UPSERT + "); END");
+        database.execSQL("CREATE TRIGGER IF NOT EXISTS change_log_AFTER_UPDATE AFTER UPDATE ON `Password` "
+                + "BEGIN INSERT INTO `change_log` (`passwordId`, `op`) VALUES (NEW.`id`, " + ChangeRecord.OP_UPSERT + "); END");
+        database.execSQL("CREATE TRIGGER IF NOT EXISTS change_log_AFTER_DELETE AFTER DELETE ON `Password` "
+                + "BEGIN INSERT INTO `change_log` (`passwordId`, `op`) VALUES (OLD.`id`, " + ChangeRecord.OP_DELETE + "); END");
+    }
+
+    /**
+     * Creates the triggers that mirror Password rows into password_fts.
+     * These are the same triggers Room creates for a new database with an external-content FTS entity.
+     *
+     * @param database The database to create the triggers in.
+     */
+    static void createPasswordFtsTriggers(SupportSQLiteDatabase database) {
+        database.execSQL("CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_password_fts_BEFORE_UPDATE BEFORE UPDATE ON `Password` BEGIN DELETE FROM `password_fts` WHERE `docid`=OLD.`rowid`; END");
+        database.execSQL("CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_password_fts_BEFORE_DELETE BEFORE DELETE ON `Password` BEGIN DELETE FROM `password_fts` WHERE `docid`=OLD.`rowid`; END");
+        database.execSQL("CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_password_fts_AFTER_UPDATE AFTER UPDATE ON `Password` BEGIN INSERT INTO `password_fts`(`docid`, `accountName`, `username`, `notes`) VALUES (NEW.`rowid`, NEW.`accountName`, NEW.`username`, NEW.`notes`); END");
+        database.execSQL("CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_password_fts_AFTER_INSERT AFTER INSERT ON `Password` BEGIN INSERT INTO `password_fts`(`docid`, `accountName`, `username`, `notes`) VALUES (NEW.`rowid`, NEW.`accountName`, NEW.`username`, NEW.`notes`); END");
+    }
+
+    /**
+     * Returns the process-wide database instance, building it on first use.
+     * The database uses write-ahead logging and runs its queries on a bounded thread pool.
+     * Main-thread queries are not allowed; callers on the UI thread must go through {@link #getQueryExecutor()}.
+     *
+     * @param context Any context; the application context is used to build the database.
+     * @return The shared {@link AppDatabase} instance.
+     */
+    public static AppDatabase getInstance(Context context) {
+        if (instance == null) {
+            synchronized (AppDatabase.class) {
+                if (instance == null) {
+                    instance = Room.databaseBuilder(context.getApplicationContext(), AppDatabase.class, DATABASE_NAME)
+                            .addMigrations(ALL_MIGRATIONS)
+                            .addCallback(CREATE_CALLBACK)
+                            .setJournalMode(JournalMode.WRITE_AHEAD_LOGGING)
+                            .setQueryExecutor(QUERY_EXECUTOR)
+                            .build();
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Makes {@link #getInstance} return the given database, e.g. one from {@link #createInMemory}, so that workers
+     * under test use it.
+     *
+     * @param db The database to share, or null to open the on-disk database again on the next call.
+     */
+    @VisibleForTesting
+    static void setInstanceForTesting(AppDatabase db) {
+        synchronized (AppDatabase.class) {
+            instance = db;
+        }
+    }
+
+    /**
+     * Builds a private in-memory database with the same schema and triggers as the shared one, for tests and benchmarks.
+     * Its contents are lost when it is closed. Unlike the shared database it allows queries on the main thread,
+     * which is the thread local tests run on.
+     *
+     * @param context Any context; the application context is used to build the database.
+     * @return A new, empty {@link AppDatabase}; the caller must close it.
+     */
+    @VisibleForTesting
+    static AppDatabase createInMemory(Context context) {
+        return Room.inMemoryDatabaseBuilder(context.getApplicationContext(), AppDatabase.class)
+                .addCallback(CREATE_CALLBACK)
+                .allowMainThreadQueries()
+                .build();
+    }
+
     /**
      * Returns the Data Access Object (DAO) for the Password entity.
      *
      * @return An instance of {@link PasswordDao}.
      */
     public abstract PasswordDao passwordDao();
+
+    /**
+     * Returns the Data Access Object (DAO) for the change log.
+     *
+     * @return An instance of {@link ChangeLogDao}.
+     */
+    public abstract ChangeLogDao changeLogDao();
+
+    /**
+     * Returns the Data Access Object (DAO) for the backup run history.
+     *
+     * @return An instance of {@link BackupRunDao}.
+     */
+    public abstract BackupRunDao backupRunDao();
 }
@@ -0,0 +1,116 @@
+package com.ciphersafe;
+
+import android.app.Activity;
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * AppStartup runs the start-up work of {@link MainActivity} that does not draw anything, such as connecting to Google
+ * Play Billing, on background threads, so the first frame is not held up by it. Independent tasks run in parallel.
+ * <p>
+ * It also measures the time to interactive: from the start of the process (cold start) or from the creation of the
+ * activity (warm start) until the first screen that accepts input, i.e. the vault list or the unlock prompt. The last
+ * measurement is kept in the preferences and shown by {@link DiagnosticsActivity}, and the activity reports itself
+ * fully drawn at that moment so the system and start-up benchmarks see the same point.
+ */
+final class AppStartup {
+
+    /**
+     * Preference holding the last measured time to interactive, in milliseconds.
+     */
+    static final String LAST_START_MILLIS_KEY = "LastStartMillis";
+
+    /**
+     * Preference holding whether the last measured start was a cold start.
+     */
+    static final String LAST_START_COLD_KEY = "LastStartCold";
+
+    private static final String TAG = "AppStartup";
+    // Start-up tasks wait on binder calls and disk, not the CPU, so a few threads suffice
+    private static final int THREAD_COUNT = 2;
+    // A process started longer ago than this before the activity was launched for something else, e.g. a backup
+    private static final long COLD_START_WINDOW_MILLIS = 5000;
+
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(THREAD_COUNT, task -> {
+        Thread thread = new Thread(task, "AppStartup");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Only touched on the main thread
+    private static boolean activityCreated;
+    private static long startUptimeMillis;
+    private static boolean coldStart;
+    private static boolean reported;
+
+    private AppStartup() {
+    }
+
+    /**
+     * Starts measuring a start; called first thing in the activity's onCreate().
+     *
+     * @param savedInstanceState The saved state passed to onCreate(); a recreated activity is not a start.
+     */
+    static void onActivityCreated(Bundle savedInstanceState) {
+        long now = SystemClock.uptimeMillis();
+        boolean firstInProcess = !activityCreated;
+        activityCreated = true;
+        if (savedInstanceState != null) {
+            return;
+        }
+        coldStart = firstInProcess && now - Process.getStartUptimeMillis() < COLD_START_WINDOW_MILLIS;
+        startUptimeMillis = coldStart ? Process.getStartUptimeMillis() : now;
+        reported = false;
+    }
+
+    /**
+     * Runs a start-up task in the background and logs how long it took.
+     *
+     * @param context Any context, used for the debug log.
+     * @param name    The name of the task, for the log.
+     * @param task    The task; it must post any UI work to the main thread itself.
+     */
+    static void runInBackground(Context context, String name, Runnable task) {
+        DebugLog log = DebugLog.get(context);
+        EXECUTOR.execute(() -> {
+            long start = SystemClock.uptimeMillis();
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Start-up task " + name + " failed", e);
+                log.log(DebugLog.MAIN_LOG, "AppStartup: " + name + " failed: " + e.getMessage());
+                return;
+            }
+            log.log(DebugLog.MAIN_LOG, "AppStartup: " + name + " took " + (SystemClock.uptimeMillis() - start) + " ms");
+        });
+    }
+
+    /**
+     * Records that the first interactive screen is shown, once per start; later calls are ignored.
+     * Must be called on the main thread.
+     *
+     * @param activity The activity showing the screen.
+     * @param screen   The screen that is shown, for the log.
+     */
+    static void reportInteractive(Activity activity, String screen) {
+        if (reported || startUptimeMillis == 0) {
+            return;
+        }
+        reported = true;
+        long elapsedMillis = SystemClock.uptimeMillis() - startUptimeMillis;
+        activity.reportFullyDrawn();
+        String kind = coldStart ? "Cold" : "Warm";
+        Log.i(TAG, kind + " start to " + screen + ": " + elapsedMillis + " ms");
+        DebugLog.get(activity).log(DebugLog.MAIN_LOG, "AppStartup: " + kind + " start to " + screen + " took " + elapsedMillis + " ms");
+        activity.getSharedPreferences("AppPreferences", Context.MODE_PRIVATE).edit()
+                .putLong(LAST_START_MILLIS_KEY, elapsedMillis)
+                .putBoolean(LAST_START_COLD_KEY, coldStart)
+                .apply();
+    }
+}
@@ -0,0 +1,93 @@
+package com.ciphersafe;
+
+import androidx.room.Entity;
+import androidx.room.PrimaryKey;
+
+/**
+ * BackupRun is one row of the backup history: how a {@link BackupWorker} run ended and how long each of its phases took.
+ * Only the last {@link BackupRunDao#HISTORY_SIZE} runs are kept. A phase that did not happen in a run is recorded as 0.
+ */
+@Entity(tableName = "backup_run")
+public class BackupRun {
+
+    /**
+     * The run found nothing to upload.
+     */
+    public static final String KIND_UNCHANGED = "unchanged";
+
+    /**
+     * The run uploaded a full base snapshot.
+     */
+    public static final String KIND_BASE = "base";
+
+    /**
+     * The run uploaded a journal segment.
+     */
+    public static final String KIND_SEGMENT = "segment";
+
+    /**
+     * The primary key, which also orders the runs.
+     */
+    @PrimaryKey(autoGenerate = true)
+    public long id;
+
+    /**
+     * When the run started, in milliseconds since the epoch.
+     */
+    public long startedAt;
+
+    /**
+     * How the run ended: "success", "retry" or "failure".
+     */
+    public String result;
+
+    /**
+     * What the run uploaded: {@link #KIND_UNCHANGED}, {@link #KIND_BASE} or {@link #KIND_SEGMENT}; null if it failed before deciding.
+     */
+    public String kind;
+
+    /**
+     * The number of entries exported into the staged file.
+     */
+    public int rowCount;
+
+    /**
+     * The size of the staged file in bytes.
+     */
+    public long byteCount;
+
+    /**
+     * The duration of the whole run.
+     */
+    public long totalMillis;
+
+    /**
+     * Time spent finishing an upload left over from an earlier run.
+     */
+    public long resumeMillis;
+
+    /**
+     * Time spent writing the staged file: reading, decrypting, compressing and encrypting the entries.
+     */
+    public long exportMillis;
+
+    /**
+     * The part of {@link #exportMillis} the writer spent waiting for decrypted entries.
+     */
+    public long decryptWaitMillis;
+
+    /**
+     * Time spent looking up the "cipherSafe" folder on Google Drive.
+     */
+    public long folderLookupMillis;
+
+    /**
+     * Time spent sending the staged file to Google Drive, not counting the folder lookup.
+     */
+    public long uploadMillis;
+
+    /**
+     * Time spent on the bookkeeping after a confirmed upload, including deleting journal segments made redundant by a base.
+     */
+    public long cleanupMillis;
+}
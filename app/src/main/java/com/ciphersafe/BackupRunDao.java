@@ -0,0 +1,56 @@
+package com.ciphersafe;
+
+import androidx.room.Dao;
+import androidx.room.Insert;
+import androidx.room.Query;
+import androidx.room.Transaction;
+
+import java.util.List;
+
+/**
+ * BackupRunDao provides access to the "backup_run" table, the rolling history of backup runs.
+ */
+@Dao
+public interface BackupRunDao {
+
+    /**
+     * The number of runs kept in the history.
+     */
+    int HISTORY_SIZE = 100;
+
+    /**
+     * Inserts a run.
+     *
+     * @param run The {@link BackupRun} to insert.
+     */
+    @Insert
+    void insert(BackupRun run);
+
+    /**
+     * Deletes all but the newest runs.
+     *
+     * @param keep The number of runs to keep.
+     */
+    @Query("DELETE FROM backup_run WHERE id NOT IN (SELECT id FROM backup_run ORDER BY id DESC LIMIT :keep)")
+    void trim(int keep);
+
+    /**
+     * Inserts a run and drops the runs that fall out of the history.
+     *
+     * @param run The {@link BackupRun} to record.
+     */
+    @Transaction
+    default void record(BackupRun run) {
+        insert(run);
+        trim(HISTORY_SIZE);
+    }
+
+    /**
+     * Retrieves the newest runs, newest first.
+     *
+     * @param limit The maximum number of runs to return.
+     * @return A list of {@link BackupRun} objects.
+     */
+    @Query("SELECT * FROM backup_run ORDER BY id DESC LIMIT :limit")
+    List<BackupRun> getRecent(int limit);
+}
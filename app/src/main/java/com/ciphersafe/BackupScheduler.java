@@ -0,0 +1,88 @@
+package com.ciphersafe;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import androidx.work.BackoffPolicy;
+import androidx.work.Constraints;
+import androidx.work.ExistingPeriodicWorkPolicy;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.NetworkType;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.PeriodicWorkRequest;
+import androidx.work.WorkManager;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BackupScheduler is the single place that enqueues {@link BackupWorker} runs.
+ * <p>
+ * Two unique works exist at most, so enabling backups repeatedly never stacks up duplicate chains:
+ * a periodic safety-net backup, and a one-off backup requested after each vault edit. The one-off is debounced:
+ * every edit replaces the pending request and restarts its delay, so a burst of edits results in a single upload
+ * shortly after the last one. Both only run with a network connection and a battery that is not low, and back off
+ * exponentially on retry. BackupWorker itself serializes runs in the process, so the two never upload at the same time.
+ */
+public final class BackupScheduler {
+
+    private static final String PERIODIC_WORK_NAME = "cipherSafe_periodic_backup";
+    private static final String EDIT_WORK_NAME = "cipherSafe_backup_after_edit";
+    // The edit-triggered backup covers changes quickly, so the periodic run is only a safety net
+    private static final long PERIODIC_INTERVAL_HOURS = 6;
+    // Delay after the last edit before the edit-triggered backup runs
+    private static final long EDIT_DEBOUNCE_SECONDS = 10;
+    private static final long BACKOFF_DELAY_SECONDS = 30;
+    // Set once the unnamed periodic requests enqueued by earlier versions have been cancelled
+    private static final String LEGACY_WORK_CANCELLED_KEY = "LEGACY_BACKUP_WORK_CANCELLED";
+
+    private BackupScheduler() {
+    }
+
+    /**
+     * Enables periodic backups, or updates the existing periodic work in place if it is already scheduled.
+     *
+     * @param context Any context.
+     */
+    public static void schedulePeriodic(Context context) {
+        WorkManager workManager = WorkManager.getInstance(context);
+        SharedPreferences sharedPreferences = context.getSharedPreferences("AppPreferences", Context.MODE_PRIVATE);
+        if (!sharedPreferences.getBoolean(LEGACY_WORK_CANCELLED_KEY, false)) {
+            // Earlier versions enqueued a new unnamed chain every time backups were enabled; they only carry the worker's class tag
+            workManager.cancelAllWorkByTag(BackupWorker.class.getName());
+            sharedPreferences.edit().putBoolean(LEGACY_WORK_CANCELLED_KEY, true).apply();
+        }
+
+        PeriodicWorkRequest request = new PeriodicWorkRequest.Builder(BackupWorker.class, PERIODIC_INTERVAL_HOURS, TimeUnit.HOURS)
+                .setConstraints(buildConstraints())
+                .setBackoffCriteria(BackoffPolicy.EXPONENTIAL, BACKOFF_DELAY_SECONDS, TimeUnit.SECONDS)
+                .build();
+        workManager.enqueueUniquePeriodicWork(PERIODIC_WORK_NAME, ExistingPeriodicWorkPolicy.UPDATE, request);
+    }
+
+    /**
+     * Requests a backup shortly after a vault edit. Each call replaces the pending request,
+     * so consecutive edits collapse into one backup. Does nothing if backups have not been set up.
+     *
+     * @param context Any context.
+     */
+    public static void requestBackup(Context context) {
+        SharedPreferences sharedPreferences = context.getSharedPreferences("AppPreferences", Context.MODE_PRIVATE);
+        if (sharedPreferences.getString("EXCEL_PASSWORD", null) == null) {
+            return;
+        }
+        OneTimeWorkRequest request = new OneTimeWorkRequest.Builder(BackupWorker.class)
+                .setInitialDelay(EDIT_DEBOUNCE_SECONDS, TimeUnit.SECONDS)
+                .setConstraints(buildConstraints())
+                .setBackoffCriteria(BackoffPolicy.EXPONENTIAL, BACKOFF_DELAY_SECONDS, TimeUnit.SECONDS)
+                .build();
+        WorkManager.getInstance(context).enqueueUniqueWork(EDIT_WORK_NAME, ExistingWorkPolicy.REPLACE, request);
+    }
+
+    // Backups need the network and are deferred while the battery is low
+    private static Constraints buildConstraints() {
+        return new Constraints.Builder()
+                .setRequiredNetworkType(NetworkType.CONNECTED)
+                .setRequiresBatteryNotLow(true)
+                .build();
+    }
+}
@@ -2,52 +2,101 @@ package com.ciphersafe;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
-import androidx.room.Room;
+import androidx.work.Data;
 import androidx.work.Worker;
 import androidx.work.WorkerParameters;
 
-import com.google.android.gms.auth.api.signin.GoogleSignIn;
 import com.google.android.gms.auth.api.signin.GoogleSignInAccount;
-import com.google.api.client.extensions.android.http.AndroidHttp;
-import com.google.api.client.googleapis.extensions.android.gms.auth.GoogleAccountCredential;
+import com.google.api.client.googleapis.extensions.android.gms.auth.GoogleAuthIOException;
 import com.google.api.client.googleapis.json.GoogleJsonResponseException;
-import com.google.api.client.http.ByteArrayContent;
-import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.client.googleapis.services.AbstractGoogleClientRequest;
+import com.google.api.client.http.FileContent;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.HttpStatusCodes;
 import com.google.api.services.drive.Drive;
 import com.google.api.services.drive.model.File;
 import com.google.api.services.drive.model.FileList;
-import com.google.api.services.drive.model.Permission;
-import com.google.api.services.drive.DriveScopes;
-
-import org.apache.poi.poifs.crypt.EncryptionInfo;
-import org.apache.poi.poifs.crypt.EncryptionMode;
-import org.apache.poi.poifs.crypt.Encryptor;
-import org.apache.poi.poifs.filesystem.POIFSFileSystem;
-import org.apache.poi.ss.usermodel.Row;
-import org.apache.poi.ss.usermodel.Sheet;
-import org.apache.poi.ss.usermodel.Workbook;
-import org.apache.poi.xssf.usermodel.XSSFWorkbook;
-
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.FileWriter;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.security.GeneralSecurityException;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
 /**
  * BackupWorker is a custom worker that handles the backup of user data (passwords) to Google Drive.
  * It uses Room to access local data and Google Drive API for cloud storage.
  */
 public class BackupWorker extends Worker {
+    static final String BACKUP_FILE_NAME = "password_backup.csvault";
+    // Vault generation contained in the last backup that reached Google Drive
+    static final String LAST_BACKUP_GENERATION_KEY = "LAST_BACKUP_GENERATION";
+    // Backups and journal segments are opaque encrypted binaries
+    private static final String BACKUP_MIME_TYPE = "application/octet-stream";
+    // Format of the base snapshot on Google Drive; a different value forces a new base, e.g. after upgrading from workbook backups
+    private static final String BACKUP_FORMAT_KEY = "BACKUP_FORMAT_VERSION";
+    private static final String JOURNAL_SEGMENT_FILE_NAME = "journal_segment.csj";
+    // Sequence number of the last change contained in the backup on Google Drive; absent until a base snapshot is uploaded
+    static final String LAST_JOURNAL_SEQ_KEY = "LAST_JOURNAL_SEQ";
+    // Number of journal segments uploaded since the last base snapshot
+    private static final String JOURNAL_SEGMENT_COUNT_KEY = "JOURNAL_SEGMENT_COUNT";
+    // Drive app property on the base snapshot holding the sequence number it was taken at; restore replays only later segments
+    static final String BASE_JOURNAL_SEQ_PROPERTY = "journalSeq";
+    // Drive app property on the base snapshot naming the device that writes it, so a restore can offer the right backup
+    static final String BASE_DEVICE_PROPERTY = "device";
+    // Drive app property on a journal segment holding the file id of the base snapshot it follows. Sequence numbers are
+    // local to an installation, so segments are only ever replayed onto, and deleted with, their own base.
+    static final String SEGMENT_BASE_ID_PROPERTY = "baseFileId";
+    // Whether the segments uploaded since the last base carry SEGMENT_BASE_ID_PROPERTY; segments of older versions do not
+    private static final String SEGMENTS_KEYED_KEY = "JOURNAL_SEGMENTS_KEYED";
+    // A fresh base snapshot is written once this many segments have accumulated, which bounds restore time
+    private static final int COMPACTION_SEGMENT_COUNT = 20;
+    // Runs with more changes than this write a base snapshot instead of a segment; also keeps findByIds() under the SQLite parameter limit
+    private static final int JOURNAL_MAX_CHANGES = 500;
+    // Bytes sent per upload request; a dropped connection loses at most one chunk
+    private static final int UPLOAD_CHUNK_SIZE = 1024 * 1024;
+    // State of an upload that has been staged but not confirmed by Google Drive, kept so a retried run can resume it
+    private static final String PENDING_UPLOAD_KIND_KEY = "PENDING_UPLOAD_KIND";
+    private static final String PENDING_UPLOAD_SEQ_KEY = "PENDING_UPLOAD_SEQ";
+    private static final String PENDING_UPLOAD_GENERATION_KEY = "PENDING_UPLOAD_GENERATION";
+    static final String PENDING_UPLOAD_SESSION_KEY = "PENDING_UPLOAD_SESSION";
+    private static final String PENDING_UPLOAD_LENGTH_KEY = "PENDING_UPLOAD_LENGTH";
+    private static final String UPLOAD_KIND_BASE_CREATE = "base_create";
+    private static final String UPLOAD_KIND_BASE_UPDATE = "base_update";
+    private static final String UPLOAD_KIND_SEGMENT = "segment";
+    // ID of the "cipherSafe" folder on Google Drive, cached so steady-state runs do not have to search for it
+    static final String DRIVE_FOLDER_ID_KEY = "GOOGLE_DRIVE_FOLDER_ID";
+    // Held for the whole run, so at most one backup runs at a time in this process
+    private static final ReentrantLock RUN_LOCK = new ReentrantLock();
+    private static final Metrics.Histogram TOTAL_NANOS = Metrics.histogram("backup.total");
+    private static final Metrics.Histogram RESUME_NANOS = Metrics.histogram("backup.resume");
+    private static final Metrics.Histogram EXPORT_NANOS = Metrics.histogram("backup.export");
+    private static final Metrics.Histogram FOLDER_LOOKUP_NANOS = Metrics.histogram("backup.folderLookup");
+    private static final Metrics.Histogram UPLOAD_NANOS = Metrics.histogram("backup.upload");
+    private static final Metrics.Histogram CLEANUP_NANOS = Metrics.histogram("backup.cleanup");
+    // Output data of a finished run: what it uploaded and how long each phase took; see BackupRun
+    public static final String RUN_KIND_KEY = "RUN_KIND";
+    public static final String ROW_COUNT_KEY = "ROW_COUNT";
+    public static final String BYTE_COUNT_KEY = "BYTE_COUNT";
+    public static final String TOTAL_MILLIS_KEY = "TOTAL_MILLIS";
+    public static final String RESUME_MILLIS_KEY = "RESUME_MILLIS";
+    public static final String EXPORT_MILLIS_KEY = "EXPORT_MILLIS";
+    public static final String DECRYPT_WAIT_MILLIS_KEY = "DECRYPT_WAIT_MILLIS";
+    public static final String FOLDER_LOOKUP_MILLIS_KEY = "FOLDER_LOOKUP_MILLIS";
+    public static final String UPLOAD_MILLIS_KEY = "UPLOAD_MILLIS";
+    public static final String CLEANUP_MILLIS_KEY = "CLEANUP_MILLIS";
     private AppDatabase db;
     private String excelPassword;
     private SharedPreferences sharedPreferences;
+    // Metrics of the current run
+    private BackupRun run;
 
     /**
      * Constructor for BackupWorker.
@@ -59,20 +108,18 @@ public class BackupWorker extends Worker {
         super(context, params);
         setupDatabase(context);
         sharedPreferences = context.getSharedPreferences("AppPreferences", Context.MODE_PRIVATE);
-        // Retrieve the password from the input data
-        excelPassword = params.getInputData().getString("EXCEL_PASSWORD");
+        // The stored password is current even if it changed after the work was enqueued; older requests carry it as input data
+        excelPassword = sharedPreferences.getString("EXCEL_PASSWORD", params.getInputData().getString("EXCEL_PASSWORD"));
         saveDebugLogToFile("File: BackupWorker Function: Worker Constructor"+" "+"Message: Worker has retrieved the password for the excel file");
     }
     /**
-     * Initializes the Room database for accessing local data.
+     * Obtains the process-wide Room database for accessing local data.
      *
      * @param context The application context.
      */
     private void setupDatabase(Context context) {
         try {
-            db = Room.databaseBuilder(context.getApplicationContext(), AppDatabase.class, "passwords-db")
-                    .allowMainThreadQueries()
-                    .build();
+            db = AppDatabase.getInstance(context);
             saveDebugLogToFile("File: BackupWorker Function: setupDatabase"+" "+"Database has been setup");
 
         } catch (Exception e) {
@@ -82,354 +129,626 @@ public class BackupWorker extends Worker {
     /**
      * The main function that performs the backup operation.
      * It handles creating or updating backup files on Google Drive.
+     * If the vault generation has not changed since the last successful upload, the run ends without exporting anything.
+     * Otherwise only the rows changed since the last upload are written, as a journal segment next to the base snapshot;
+     * a full base snapshot is written on the first run, after the backup password changes, and every
+     * {@link #COMPACTION_SEGMENT_COUNT} segments.
      *
-     * @return Result of the work, either success or failure.
+     * @return Result of the work, either success, retry or failure.
      */
     @NonNull
     @Override
     public Result doWork() {
-        GoogleSignInAccount account = GoogleSignIn.getLastSignedInAccount(getApplicationContext());
+        run = new BackupRun();
+        run.startedAt = System.currentTimeMillis();
+        long startTime = SystemClock.elapsedRealtime();
+        Result result;
+        // The periodic and edit-triggered works are independent, so they could otherwise run at the same time
+        RUN_LOCK.lock();
+        try {
+            result = runBackup();
+        } finally {
+            RUN_LOCK.unlock();
+        }
+        run.totalMillis = SystemClock.elapsedRealtime() - startTime;
+        return recordRun(result);
+    }
+    /**
+     * Stores the metrics of the finished run in the backup history and attaches them to the result as output data.
+     *
+     * @param result The result of the run.
+     * @return The result to return from {@link #doWork()}, carrying the run metrics unless it is a retry.
+     */
+    private Result recordRun(Result result) {
+        // runBackup() returns results without output data, which compare equal to the plain factory results
+        boolean succeeded = Result.success().equals(result);
+        boolean retrying = Result.retry().equals(result);
+        run.result = succeeded ? "success" : retrying ? "retry" : "failure";
+        recordMetrics(run);
+        try {
+            db.backupRunDao().record(run);
+        } catch (Exception e) {
+            Log.e("BackupWorker", "Failed to record the backup run", e);
+        }
+        saveDebugLogToFile("File: BackupWorker Function: recordRun Message: " + run.result + " " + run.kind + ", " + run.rowCount + " rows, "
+                + run.byteCount + " bytes in " + run.totalMillis + " ms (resume " + run.resumeMillis + ", export " + run.exportMillis
+                + ", decrypt wait " + run.decryptWaitMillis + ", folder lookup " + run.folderLookupMillis + ", upload " + run.uploadMillis
+                + ", cleanup " + run.cleanupMillis + ")");
+
+        Data output = new Data.Builder()
+                .putString(RUN_KIND_KEY, run.kind)
+                .putInt(ROW_COUNT_KEY, run.rowCount)
+                .putLong(BYTE_COUNT_KEY, run.byteCount)
+                .putLong(TOTAL_MILLIS_KEY, run.totalMillis)
+                .putLong(RESUME_MILLIS_KEY, run.resumeMillis)
+                .putLong(EXPORT_MILLIS_KEY, run.exportMillis)
+                .putLong(DECRYPT_WAIT_MILLIS_KEY, run.decryptWaitMillis)
+                .putLong(FOLDER_LOOKUP_MILLIS_KEY, run.folderLookupMillis)
+                .putLong(UPLOAD_MILLIS_KEY, run.uploadMillis)
+                .putLong(CLEANUP_MILLIS_KEY, run.cleanupMillis)
+                .build();
+        if (succeeded) {
+            return Result.success(output);
+        }
+        return retrying ? result : Result.failure(output);
+    }
+    // Adds the phases the run went through to the backup histograms of Metrics, and counts the run by its result
+    private static void recordMetrics(BackupRun run) {
+        Metrics.counter("backup.runs." + run.result).increment();
+        recordPhase(TOTAL_NANOS, run.totalMillis);
+        recordPhase(RESUME_NANOS, run.resumeMillis);
+        recordPhase(EXPORT_NANOS, run.exportMillis);
+        recordPhase(FOLDER_LOOKUP_NANOS, run.folderLookupMillis);
+        recordPhase(UPLOAD_NANOS, run.uploadMillis);
+        recordPhase(CLEANUP_NANOS, run.cleanupMillis);
+    }
+    private static void recordPhase(Metrics.Histogram histogram, long millis) {
+        if (millis > 0) {
+            histogram.record(millis * 1_000_000L);
+        }
+    }
+    /**
+     * Performs one backup run; see {@link #doWork()}.
+     *
+     * @return Result of the work, either success, retry or failure.
+     */
+    private Result runBackup() {
+        if (excelPassword == null) {
+            saveDebugLogToFile("File: BackupWorker Function: dowork"+" Message: Backup aborted, no backup password set");
+            return Result.failure();
+        }
+        GoogleSignInAccount account = DriveServiceHolder.getSignedInAccount(getApplicationContext());
         if (account == null) {
             Log.e("BackupWorker", "Google account not signed in. Backup aborted.");
 
             saveDebugLogToFile("File: BackupWorker Function: dowork"+" Message: Backup aborted Google account not signed in.");
             return Result.failure();
         }
+        // The backup is staged in the no-backup directory so it is never itself included in a device backup
+        java.io.File backupFile = new java.io.File(getApplicationContext().getNoBackupFilesDir(), BACKUP_FILE_NAME);
+        java.io.File segmentFile = new java.io.File(getApplicationContext().getNoBackupFilesDir(), JOURNAL_SEGMENT_FILE_NAME);
         try {
-            String fileId = sharedPreferences.getString("GOOGLE_DRIVE_FILE_ID", null);
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            // Finish an upload interrupted in an earlier run before staging anything new
+            long phaseStart = SystemClock.elapsedRealtime();
+            resumePendingUpload(backupFile, segmentFile, account);
+            run.resumeMillis = SystemClock.elapsedRealtime() - phaseStart;
 
-            if (fileId == null) {
-                // First-time backup: Create a new file
-                createExcelFile(excelPassword, baos);
-                ByteArrayInputStream bais = new ByteArrayInputStream(baos.toByteArray());
-                fileId = uploadFileToGoogleDrive("password_backup.xlsx", bais, account);
-                sharedPreferences.edit().putString("GOOGLE_DRIVE_FILE_ID", fileId).apply();
-                //saveDebugLogToFile("New backup file created with ID: " + fileId);
+            String fileId = sharedPreferences.getString("GOOGLE_DRIVE_FILE_ID", null);
 
-                saveDebugLogToFile("File: BackupWorker Function: dowork"+" Message: FileID null so New backup file created");
+            // Skip the export and upload entirely if nothing changed since the last successful backup
+            long vaultGeneration = db.passwordDao().getVaultGeneration();
+            if (fileId != null && sharedPreferences.getLong(LAST_BACKUP_GENERATION_KEY, -1) == vaultGeneration) {
+                run.kind = BackupRun.KIND_UNCHANGED;
+                saveDebugLogToFile("File: BackupWorker Function: dowork"+" Message: Vault unchanged since last backup, skipping");
+                return Result.success();
+            }
 
+            long lastJournalSeq = sharedPreferences.getLong(LAST_JOURNAL_SEQ_KEY, -1);
+            List<ChangeRecord> changes = lastJournalSeq >= 0 ? db.changeLogDao().getChangesAfter(lastJournalSeq) : null;
+            boolean writeBase = fileId == null || changes == null
+                    || changes.size() > JOURNAL_MAX_CHANGES
+                    || sharedPreferences.getInt(JOURNAL_SEGMENT_COUNT_KEY, 0) >= COMPACTION_SEGMENT_COUNT
+                    || sharedPreferences.getInt(BACKUP_FORMAT_KEY, 0) != VaultBackupWriter.FORMAT_VERSION
+                    || !sharedPreferences.getBoolean(SEGMENTS_KEYED_KEY, false);
+
+            File driveFile;
+            if (writeBase) {
+                // Read before the export, so changes made during the export are journaled again rather than lost
+                long baseSeq = db.changeLogDao().getLatestSeq();
+                Map<String, String> baseProperties = new HashMap<>();
+                baseProperties.put(BASE_JOURNAL_SEQ_PROPERTY, Long.toString(baseSeq));
+                baseProperties.put(BASE_DEVICE_PROPERTY, Build.MANUFACTURER + " " + Build.MODEL);
+                run.kind = BackupRun.KIND_BASE;
+                phaseStart = SystemClock.elapsedRealtime();
+                ExportPipeline.Stats stats = createVaultBackup(excelPassword, backupFile);
+                run.exportMillis = SystemClock.elapsedRealtime() - phaseStart;
+                run.decryptWaitMillis = stats.writerWaitMillis;
+                run.rowCount = stats.entryCount;
+                run.byteCount = backupFile.length();
+                if (fileId == null) {
+                    // First-time backup: Create a new file
+                    beginPendingUpload(UPLOAD_KIND_BASE_CREATE, baseSeq, vaultGeneration);
+                    driveFile = timeUpload(() -> uploadFileToGoogleDrive(BACKUP_FILE_NAME, backupFile, BACKUP_MIME_TYPE, baseProperties, account));
+                    //saveDebugLogToFile("New backup file created with ID: " + fileId);
+
+                    saveDebugLogToFile("File: BackupWorker Function: dowork"+" Message: FileID null so New backup file created");
+
+                } else {
+                    // Compaction: Replace the existing base snapshot
+                    beginPendingUpload(UPLOAD_KIND_BASE_UPDATE, baseSeq, vaultGeneration);
+                    driveFile = timeUpload(() -> updateFileOnGoogleDrive(fileId, BACKUP_FILE_NAME, backupFile, BACKUP_MIME_TYPE, baseProperties, account));
+                   // saveDebugLogToFile("Backup file updated with ID: " + fileId);
+                    saveDebugLogToFile("File: BackupWorker Function: dowork"+" Message: FileID not null so updated existing backup file");
+                }
+            } else if (changes.isEmpty()) {
+                run.kind = BackupRun.KIND_UNCHANGED;
+                sharedPreferences.edit().putLong(LAST_BACKUP_GENERATION_KEY, vaultGeneration).apply();
+                saveDebugLogToFile("File: BackupWorker Function: dowork"+" Message: No journaled changes since last backup");
+                return Result.success();
             } else {
-                // Subsequent backups: Update the existing file
-                createExcelFile(excelPassword, baos);
-                ByteArrayInputStream bais = new ByteArrayInputStream(baos.toByteArray());
-                updateFileOnGoogleDrive(fileId, bais, account);
-               // saveDebugLogToFile("Backup file updated with ID: " + fileId);
-                saveDebugLogToFile("File: BackupWorker Function: dowork"+" Message: FileID not null so updated existing backup file");
+                // Incremental backup: Upload only the rows changed since the last upload
+                run.kind = BackupRun.KIND_SEGMENT;
+                phaseStart = SystemClock.elapsedRealtime();
+                ChangeJournal.Segment segment = ChangeJournal.collect(db.passwordDao(), changes, lastJournalSeq);
+                ChangeJournal.write(segment, excelPassword, segmentFile);
+                if (segment.failureCount > 0) {
+                    Log.e("PasswordManager", "Decryption failed for " + segment.failureCount + " journaled entries");
+                    saveDebugLogToFile("File: BackupWorker Function: dowork"+" Message: Decryption Failed for " + segment.failureCount + " of " + segment.entries.size() + " journaled entries");
+                }
+                run.exportMillis = SystemClock.elapsedRealtime() - phaseStart;
+                run.rowCount = segment.entries.size();
+                run.byteCount = segmentFile.length();
+                beginPendingUpload(UPLOAD_KIND_SEGMENT, segment.toSeq, vaultGeneration);
+                Map<String, String> segmentProperties = Collections.singletonMap(SEGMENT_BASE_ID_PROPERTY, fileId);
+                driveFile = timeUpload(() -> uploadFileToGoogleDrive(ChangeJournal.segmentName(segment.toSeq), segmentFile, BACKUP_MIME_TYPE, segmentProperties, account));
+                saveDebugLogToFile("File: BackupWorker Function: dowork"+" Message: Journal segment with " + segment.entries.size() + " entries uploaded");
             }
 
+            phaseStart = SystemClock.elapsedRealtime();
+            completePendingUpload(driveFile, account);
+            run.cleanupMillis = SystemClock.elapsedRealtime() - phaseStart;
             saveDebugLogToFile("File: BackupWorker Function: dowork"+" Message: backup was successful");
             return Result.success();
+        } catch (IOException e) {
+            if (sharedPreferences.getString(PENDING_UPLOAD_SESSION_KEY, null) != null) {
+                // The upload session and staged file are kept, so the retry continues where this run stopped
+                Log.w("BackupWorker", "Upload interrupted, will resume", e);
+                saveDebugLogToFile("File: BackupWorker Function: dowork"+" Message: Upload interrupted, retrying later: " + e.getMessage());
+                return Result.retry();
+            }
+            if (isTransient(e)) {
+                // A direct upload has no session to resume; the retry stages and sends the file again
+                Log.w("BackupWorker", "Upload failed, will retry", e);
+                saveDebugLogToFile("File: BackupWorker Function: dowork"+" Message: Upload failed, retrying later: " + e.getMessage());
+                return Result.retry();
+            }
+            Log.e("BackupWorker", "Backup failed", e);
+            saveDebugLogToFile("Backup failed: " + e.getMessage());
+            return Result.failure();
         } catch (Exception e) {
             Log.e("BackupWorker", "Backup failed", e);
             saveDebugLogToFile("Backup failed: " + e.getMessage());
             return Result.failure();
+        } finally {
+            // Staged files of an open upload session are needed to resume it
+            String pendingKind = sharedPreferences.getString(PENDING_UPLOAD_SESSION_KEY, null) != null
+                    ? sharedPreferences.getString(PENDING_UPLOAD_KIND_KEY, null) : null;
+            if (!UPLOAD_KIND_BASE_CREATE.equals(pendingKind) && !UPLOAD_KIND_BASE_UPDATE.equals(pendingKind)
+                    && backupFile.exists() && !backupFile.delete()) {
+                saveDebugLogToFile("File: BackupWorker Function: dowork"+" Message: Failed to delete the staged backup file");
+            }
+            if (!UPLOAD_KIND_SEGMENT.equals(pendingKind) && segmentFile.exists() && !segmentFile.delete()) {
+                saveDebugLogToFile("File: BackupWorker Function: dowork"+" Message: Failed to delete the staged journal segment");
+            }
         }
     }
     /**
-     * Saves a debug log message to a file in the cache directory.
+     * Tells whether a failed run may succeed if retried unchanged, e.g. after a dropped connection or a server error.
+     * Authorization errors and requests that Google Drive rejected as invalid are not transient.
      *
-     * @param logMessage The message to be logged.
+     * @param e The exception that ended the run.
+     * @return true to retry the run, false to fail it.
      */
-    private void saveDebugLogToFile(String logMessage) {
-        String fileName = "BackupWorkerLog.txt"; // Single file to append logs
-
-        // Get device information
-        String deviceInfo = getDeviceInfo();
-
-        // Get the cache directory
-        java.io.File cacheDir = getApplicationContext().getCacheDir();
-        java.io.File logFile = new java.io.File(cacheDir, fileName);
-
-        // Log to ensure the cache directory exists
-        if (!cacheDir.exists()) {
-            Log.e("BackupWorker", "Cache directory does not exist. Trying to create it...");
-            if (!cacheDir.mkdirs()) {
-                Log.e("BackupWorker", "Failed to create cache directory.");
-                return; // Abort if the directory couldn't be created
-            }
+    private static boolean isTransient(IOException e) {
+        if (e instanceof GoogleAuthIOException) {
+            return false;
         }
-
-        Log.d("BackupWorker", "Cache directory path: " + cacheDir.getAbsolutePath());
-
-        try (FileWriter fw = new FileWriter(logFile, true)) { // 'true' for append mode
-            String timestampedMessage = "[" + getCurrentTimestamp() + "] " + deviceInfo + logMessage + "\n";
-            fw.write(timestampedMessage);
-            fw.flush();
-            Log.d("BackupWorker", "Debug log saved/updated in cache directory: " + logFile.getAbsolutePath());
-        } catch (IOException e) {
-            Log.e("BackupWorker", "Failed to save/update debug log in cache directory: " + e.getMessage());
-            e.printStackTrace();
+        if (e instanceof HttpResponseException) {
+            int status = ((HttpResponseException) e).getStatusCode();
+            return status == 408 || status == 429 || status >= HttpStatusCodes.STATUS_CODE_SERVER_ERROR;
         }
+        return true;
+    }
+    /**
+     * Runs an upload and records its duration in {@link BackupRun#uploadMillis}, without the time spent looking up the folder.
+     *
+     * @param upload The upload to run.
+     * @return The uploaded file, as returned by the upload.
+     * @throws IOException If the upload throws it.
+     */
+    private File timeUpload(Upload upload) throws IOException {
+        long lookupMillisBefore = run.folderLookupMillis;
+        long phaseStart = SystemClock.elapsedRealtime();
+        File driveFile = upload.run();
+        run.uploadMillis = SystemClock.elapsedRealtime() - phaseStart - (run.folderLookupMillis - lookupMillisBefore);
+        return driveFile;
     }
 
-    // Helper method to get the current timestamp
+    private interface Upload {
+        File run() throws IOException;
+    }
     /**
-     * Helper method to get the current timestamp.
+     * Records what the upload about to start contains, so that a later run can finish it and apply its bookkeeping.
      *
-     * @return A string representing the current timestamp.
+     * @param kind       One of the UPLOAD_KIND constants.
+     * @param seq        The journal sequence number the staged file is current up to.
+     * @param generation The vault generation the staged file was exported at.
      */
-    private String getCurrentTimestamp() {
-        java.text.SimpleDateFormat sdf = new java.text.SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.getDefault());
-        return sdf.format(new java.util.Date());
+    private void beginPendingUpload(String kind, long seq, long generation) {
+        sharedPreferences.edit()
+                .putString(PENDING_UPLOAD_KIND_KEY, kind)
+                .putLong(PENDING_UPLOAD_SEQ_KEY, seq)
+                .putLong(PENDING_UPLOAD_GENERATION_KEY, generation)
+                .remove(PENDING_UPLOAD_SESSION_KEY)
+                .apply();
     }
+    /**
+     * Resumes the upload session left open by an earlier run, if any, and applies its bookkeeping once it finishes.
+     * A session whose staged file is gone or has changed, or that the server has expired, is dropped;
+     * this run then stages and uploads a new file.
+     *
+     * @param backupFile  The staged base snapshot.
+     * @param segmentFile The staged journal segment.
+     * @param account     The GoogleSignInAccount representing the signed-in Google account.
+     * @throws IOException If the upload was interrupted again; the session stays open for the next run.
+     */
+    private void resumePendingUpload(java.io.File backupFile, java.io.File segmentFile, GoogleSignInAccount account) throws IOException {
+        String sessionUri = sharedPreferences.getString(PENDING_UPLOAD_SESSION_KEY, null);
+        if (sessionUri == null) {
+            return;
+        }
+        boolean isSegment = UPLOAD_KIND_SEGMENT.equals(sharedPreferences.getString(PENDING_UPLOAD_KIND_KEY, null));
+        java.io.File stagedFile = isSegment ? segmentFile : backupFile;
+        if (!stagedFile.exists() || stagedFile.length() != sharedPreferences.getLong(PENDING_UPLOAD_LENGTH_KEY, -1)) {
+            saveDebugLogToFile("File: BackupWorker Function: resumePendingUpload Message: Staged file missing or changed, starting over");
+            clearPendingUpload();
+            return;
+        }
 
-    // Helper method to get device information
+        saveDebugLogToFile("File: BackupWorker Function: resumePendingUpload Message: Resuming interrupted upload");
+        File driveFile;
+        try {
+            DriveResumableUpload upload = new DriveResumableUpload(DriveServiceHolder.getRequestFactory(getApplicationContext(), account), getUploadChunkSize());
+            driveFile = upload.upload(sessionUri, stagedFile, BACKUP_MIME_TYPE, true);
+        } catch (DriveResumableUpload.SessionExpiredException e) {
+            saveDebugLogToFile("File: BackupWorker Function: resumePendingUpload Message: Upload session expired, starting over");
+            clearPendingUpload();
+            return;
+        }
+        completePendingUpload(driveFile, account);
+    }
     /**
-     * Helper method to get device information such as Android version, phone model, and Wi-Fi status.
+     * Applies the bookkeeping of a finished upload: stores the new file id, advances the journal position,
+     * prunes the uploaded change records and remembers the uploaded vault generation.
      *
-     * @return A string containing the device information.
+     * @param driveFile The uploaded file as returned by Google Drive.
+     * @param account   The GoogleSignInAccount representing the signed-in Google account.
      */
-    private String getDeviceInfo() {
-        StringBuilder deviceInfo = new StringBuilder();
-        deviceInfo.append("Device Info: \n");
-        deviceInfo.append("Android Version: ").append(android.os.Build.VERSION.RELEASE).append("\n");
-        deviceInfo.append("Phone Model: ").append(android.os.Build.MODEL).append("\n");
-        deviceInfo.append("Manufacturer: ").append(android.os.Build.MANUFACTURER).append("\n");
-
-        // Wi-Fi status
-        android.net.wifi.WifiManager wifiManager = (android.net.wifi.WifiManager) getApplicationContext().getSystemService(Context.WIFI_SERVICE);
-        if (wifiManager != null) {
-            if (wifiManager.isWifiEnabled()) {
-                deviceInfo.append("Wi-Fi Status: Enabled\n");
-                android.net.wifi.WifiInfo wifiInfo = wifiManager.getConnectionInfo();
-                deviceInfo.append("Connected to: ").append(wifiInfo.getSSID()).append("\n");
-                deviceInfo.append("Signal Strength: ").append(wifiInfo.getRssi()).append(" dBm\n");
+    private void completePendingUpload(File driveFile, GoogleSignInAccount account) {
+        String kind = sharedPreferences.getString(PENDING_UPLOAD_KIND_KEY, null);
+        long seq = sharedPreferences.getLong(PENDING_UPLOAD_SEQ_KEY, -1);
+        long generation = sharedPreferences.getLong(PENDING_UPLOAD_GENERATION_KEY, -1);
+        SharedPreferences.Editor editor = sharedPreferences.edit();
+
+        if (UPLOAD_KIND_SEGMENT.equals(kind)) {
+            editor.putInt(JOURNAL_SEGMENT_COUNT_KEY, sharedPreferences.getInt(JOURNAL_SEGMENT_COUNT_KEY, 0) + 1);
+        } else {
+            if (UPLOAD_KIND_BASE_CREATE.equals(kind)) {
+                editor.putString("GOOGLE_DRIVE_FILE_ID", driveFile.getId());
             } else {
-                deviceInfo.append("Wi-Fi Status: Disabled\n");
+                // The new base contains everything the segments of the base it replaced did
+                deleteJournalSegments(sharedPreferences.getString("GOOGLE_DRIVE_FILE_ID", driveFile.getId()),
+                        !sharedPreferences.getBoolean(SEGMENTS_KEYED_KEY, false), account);
             }
-        } else {
-            deviceInfo.append("Wi-Fi Info: Unavailable\n");
+            editor.putInt(JOURNAL_SEGMENT_COUNT_KEY, 0)
+                    .putInt(BACKUP_FORMAT_KEY, VaultBackupWriter.FORMAT_VERSION)
+                    .putBoolean(SEGMENTS_KEYED_KEY, true);
         }
+        editor.putLong(LAST_JOURNAL_SEQ_KEY, seq)
+                .putLong(LAST_BACKUP_GENERATION_KEY, generation)
+                .apply();
+        db.changeLogDao().deleteUpTo(seq);
+        clearPendingUpload();
+    }
 
-        return deviceInfo.toString();
+    /**
+     * Forgets the pending upload and its session.
+     */
+    private void clearPendingUpload() {
+        sharedPreferences.edit()
+                .remove(PENDING_UPLOAD_KIND_KEY)
+                .remove(PENDING_UPLOAD_SEQ_KEY)
+                .remove(PENDING_UPLOAD_GENERATION_KEY)
+                .remove(PENDING_UPLOAD_SESSION_KEY)
+                .remove(PENDING_UPLOAD_LENGTH_KEY)
+                .apply();
+    }
+    /**
+     * Resets the backup state that depends on the backup password. The next run then writes a full snapshot
+     * under the new password, and an upload staged under the old password is abandoned.
+     *
+     * @param editor The editor of the "AppPreferences" preferences; the caller applies it.
+     */
+    static void onBackupPasswordChanged(SharedPreferences.Editor editor) {
+        editor.remove(LAST_BACKUP_GENERATION_KEY)
+                .remove(LAST_JOURNAL_SEQ_KEY)
+                .remove(PENDING_UPLOAD_KIND_KEY)
+                .remove(PENDING_UPLOAD_SEQ_KEY)
+                .remove(PENDING_UPLOAD_GENERATION_KEY)
+                .remove(PENDING_UPLOAD_SESSION_KEY)
+                .remove(PENDING_UPLOAD_LENGTH_KEY);
     }
     /**
-     * Creates an encrypted Excel file containing the user's passwords.
+     * Queues a debug log message for the "BackupWorkerLog.txt" log file in the cache directory; see {@link DebugLog}.
+     * Returns immediately, so it may be called on any thread.
+     *
+     * @param logMessage The message to be logged.
+     */
+    private void saveDebugLogToFile(String logMessage) {
+        DebugLog.get(getApplicationContext()).log(DebugLog.BACKUP_LOG, logMessage);
+    }
+    /**
+     * Creates an encrypted backup of the user's passwords in the native ".csvault" format; see {@link VaultBackupWriter}.
+     * The backup streams end to end through {@link ExportPipeline}, so peak heap does not grow with the size of the vault:
+     * reading, decrypting, and compressing and encrypting into {@code outFile} run as overlapping stages.
      *
      * @param password The password used for encrypting the file.
-     * @param baos     The output stream to which the Excel file will be written.
+     * @param outFile  The file to which the backup will be written.
+     * @return The number of entries written and the export timings.
      * @throws IOException If an error occurs while creating or encrypting the file.
      */
-    private void createExcelFile(String password, ByteArrayOutputStream baos) throws IOException {
-        saveDebugLogToFile("File: BackupWorker Function: createExcelFile"+" Message: Worker is creating an excel file");
-
-//        saveDebugLogToFile("Creating excel file"+" "+password);
-
-        Workbook workbook = new XSSFWorkbook();
-        Sheet sheet = workbook.createSheet("Passwords");
-
-        // Create header row
-        Row headerRow = sheet.createRow(0);
-        headerRow.createCell(0).setCellValue("Account Name");
-        headerRow.createCell(1).setCellValue("Username");
-        headerRow.createCell(2).setCellValue("Password");
-        headerRow.createCell(3).setCellValue("Notes");
-
-        // Populate sheet with data
-        List<Password> passwords = db.passwordDao().getAll();
-        int rowIndex = 1;
-        for (Password passwordObj : passwords) {
-            Row row = sheet.createRow(rowIndex++);
-            row.createCell(0).setCellValue(passwordObj.accountName);
-            row.createCell(1).setCellValue(passwordObj.username);
-            String decryptedPassword = null;
-            try {
-                decryptedPassword = EncryptionUtils.decrypt(passwordObj.password);
-                saveDebugLogToFile("File: BackupWorker Function: createExcelFile"+" Message: Decryption Successful");
-
-            } catch (Exception e) {
-                Log.e("PasswordManager", "Decryption failed", e);
-                saveDebugLogToFile("File: BackupWorker Function: createExcelFile"+" Message: Decryption Failed");
-
-            }
-            row.createCell(2).setCellValue(decryptedPassword != null ? decryptedPassword : "[Decryption failed]");
-            row.createCell(3).setCellValue(passwordObj.notes);
-        }
+    private ExportPipeline.Stats createVaultBackup(String password, java.io.File outFile) throws IOException {
+        saveDebugLogToFile("File: BackupWorker Function: createVaultBackup"+" Message: Worker is creating a vault backup");
 
-        // Apply password protection
-        POIFSFileSystem fs = new POIFSFileSystem();
-        EncryptionInfo info = new EncryptionInfo(EncryptionMode.standard);
-        Encryptor encryptor = info.getEncryptor();
-        encryptor.confirmPassword(password);
-
-        try (ByteArrayOutputStream tempOut = new ByteArrayOutputStream()) {
-            workbook.write(tempOut);
-            workbook.close();
-
-            try (OutputStream encryptedOutputStream = encryptor.getDataStream(fs)) {
-                tempOut.writeTo(encryptedOutputStream);
-
-            }
-        } catch (GeneralSecurityException e) {
-            saveDebugLogToFile("File: BackupWorker Function: createExcelFile"+" Message: Failed to encrypt the Excel file "+e);
-            throw new IOException("Failed to encrypt the Excel file", e);
+        ExportPipeline.Stats stats = writeVaultBackup(db.passwordDao(), password, outFile);
 
+        if (stats.failureCount > 0) {
+            Log.e("PasswordManager", "Decryption failed for " + stats.failureCount + " entries");
+            saveDebugLogToFile("File: BackupWorker Function: createVaultBackup"+" Message: Decryption Failed for " + stats.failureCount + " of " + stats.entryCount + " entries");
         }
-        // Write the encrypted POIFSFileSystem to the final output stream
-        fs.writeFilesystem(baos);
-        saveDebugLogToFile("File: BackupWorker Function: createExcelFile"+" Message: Successfully encrypted the Excel file");
+        saveDebugLogToFile("File: BackupWorker Function: createVaultBackup"+" Message: Successfully encrypted " + stats + ", " + outFile.length() + " bytes");
+        return stats;
     }
+
     /**
-     * Reads all bytes from a ByteArrayInputStream and returns them as a byte array.
-     * This method reads the input stream into a buffer and returns the complete byte array.
+     * Streams every entry of the vault through {@link ExportPipeline} into a finished ".csvault" file.
+     * An entry that cannot be decrypted is kept without its password rather than with a placeholder.
      *
-     * @param bais The ByteArrayInputStream to read from.
-     * @return A byte array containing all the bytes read from the input stream.
-     * @throws IOException If an error occurs while reading the input stream.
+     * @param passwordDao The DAO to read the entries from.
+     * @param password    The password used for encrypting the file.
+     * @param outFile     The file to which the backup will be written.
+     * @return The number of entries written and the export timings.
+     * @throws IOException If an error occurs while creating or encrypting the file.
      */
-    private byte[] readAllBytesCompat(ByteArrayInputStream bais) throws IOException {
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-        int nRead;
-        byte[] data = new byte[16384]; // 16KB buffer size
-
-        while ((nRead = bais.read(data, 0, data.length)) != -1) {
-            buffer.write(data, 0, nRead);
+    static ExportPipeline.Stats writeVaultBackup(PasswordDao passwordDao, String password, java.io.File outFile) throws IOException {
+        try (VaultBackupWriter writer = new VaultBackupWriter(new BufferedOutputStream(new FileOutputStream(outFile)), password)) {
+            ExportPipeline.Stats stats = ExportPipeline.run(passwordDao, writer::write);
+            writer.finish();
+            return stats;
         }
-
-        buffer.flush();
-        return buffer.toByteArray();
     }
+
     /**
-     * Uploads a file to Google Drive. If successful, the method returns the file ID of the uploaded file.
+     * Uploads a new file to the "cipherSafe" folder on Google Drive. If successful, the method returns the uploaded file.
+     * If the cached folder no longer exists, the folder is looked up (or created) again and the upload is retried once.
      *
-     * @param fileName The name of the file to be uploaded.
-     * @param bais     The ByteArrayInputStream containing the file data to be uploaded.
-     * @param account  The GoogleSignInAccount representing the signed-in Google account.
-     * @return The file ID of the uploaded file on Google Drive, or null if the upload fails.
-     * @throws IOException If an error occurs during file upload or Google Drive API interaction.
+     * @param fileName      The name of the file to be uploaded.
+     * @param file          The local file containing the data to be uploaded.
+     * @param mimeType      The MIME type of the file.
+     * @param appProperties Private app properties to store with the file, or null for none.
+     * @param account       The GoogleSignInAccount representing the signed-in Google account.
+     * @return The uploaded file on Google Drive.
+     * @throws IOException If the upload failed or Google Drive rejected it; a resumable upload session is kept for resuming.
      */
-    private String uploadFileToGoogleDrive(String fileName, ByteArrayInputStream bais, GoogleSignInAccount account) throws IOException {
+    private File uploadFileToGoogleDrive(String fileName, java.io.File file, String mimeType, Map<String, String> appProperties, GoogleSignInAccount account) throws IOException {
         // Log that the worker has started
         saveDebugLogToFile("File: BackupWorker Function: uploadFileToGoogleDrive Message: Worker has started googleDriveUpload");
 
-        String fileId = null; // Variable to store file ID if the upload succeeds
-
         try {
-            // Read file bytes from input stream
-            byte[] fileBytes = readAllBytesCompat(bais);
-
-            // Set up Google Drive credentials
-            GoogleAccountCredential credential = GoogleAccountCredential.usingOAuth2(
-                    getApplicationContext(), Collections.singleton(DriveScopes.DRIVE_FILE));
-            credential.setSelectedAccount(account.getAccount());
-
-            // Create Google Drive service
-            Drive googleDriveService = new Drive.Builder(
-                    AndroidHttp.newCompatibleTransport(),
-                    new GsonFactory(),
-                    credential)
-                    .setApplicationName("PasswordManager")
-                    .build();
-
-            // Check if "cipherSafe" directory exists or create it
-            String cipherSafeFolderId = getOrCreateCipherSafeFolder(googleDriveService);
+            Drive googleDriveService = DriveServiceHolder.getDrive(getApplicationContext(), account);
 
             // Set file metadata
             File fileMetadata = new File();
             fileMetadata.setName(fileName);
-            fileMetadata.setParents(Collections.singletonList(cipherSafeFolderId));
-
-            // Create file content
-            ByteArrayContent mediaContent = new ByteArrayContent(
-                    "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet", fileBytes);
-
-            // Upload file to Google Drive
-            File file = googleDriveService.files().create(fileMetadata, mediaContent)
-                    .setFields("id")
-                    .execute();
+            fileMetadata.setAppProperties(appProperties);
 
-            // Set file permissions
-            Permission permission = new Permission()
-                    .setType("user")
-                    .setRole("writer")
-                    .setEmailAddress(account.getEmail());
-            googleDriveService.permissions().create(file.getId(), permission).execute();
+            File driveFile;
+            try {
+                fileMetadata.setParents(Collections.singletonList(getCipherSafeFolderId(googleDriveService)));
+                driveFile = sendFile(googleDriveService, null, fileMetadata, file, mimeType, account);
+            } catch (HttpResponseException e) {
+                if (e.getStatusCode() != HttpStatusCodes.STATUS_CODE_NOT_FOUND) {
+                    throw e;
+                }
+                // The cached "cipherSafe" folder was deleted; find or create it again
+                saveDebugLogToFile("File: BackupWorker Function: uploadFileToGoogleDrive Message: cipherSafe folder not found, looking it up again");
+                sharedPreferences.edit().remove(DRIVE_FOLDER_ID_KEY).apply();
+                fileMetadata.setParents(Collections.singletonList(getCipherSafeFolderId(googleDriveService)));
+                driveFile = sendFile(googleDriveService, null, fileMetadata, file, mimeType, account);
+            }
 
-            Log.d("BackupWorker", "File uploaded to Google Drive: " + file.getId());
-            fileId = file.getId(); // Store file ID
+            Log.d("BackupWorker", "File uploaded to Google Drive: " + driveFile.getId());
             saveDebugLogToFile("File: BackupWorker Function: uploadFileToGoogleDrive Message: File Uploaded Successfully to Google Drive");
+            return driveFile;
 
-
-        }catch (GoogleJsonResponseException e) {
-            Log.e("BackupWorker", "Google Drive API error: " + e.getDetails(), e);
-            saveDebugLogToFile("File: BackupWorker Function: uploadFileToGoogleDrive Message: GoogleJsonResponseException occurred during file upload");
-
-        }catch (IOException e) {
+        } catch (IOException e) {
             Log.e("BackupWorker", "IO Exception occurred during file upload: " + e.getMessage(), e);
             saveDebugLogToFile("File: BackupWorker Function: uploadFileToGoogleDrive Message: IOException occurred during file upload");
             throw e; // Re-throw the IOException to propagate it up
-
-        } catch (Exception e) {
-            Log.e("BackupWorker", "Unexpected error occurred: " + e.getMessage(), e);
-            saveDebugLogToFile("File: BackupWorker Function: uploadFileToGoogleDrive Message: Unexpected error occurred during file upload");
         }
-        return fileId; // Return the file ID or null if upload failed
     }
     /**
-     * Updates an existing file on Google Drive with new data. If successful, the file is updated with the new content.
+     * Updates an existing file on Google Drive with new data. The file keeps its folder, so this is a single
+     * request for files up to one upload chunk.
+     * If the file no longer exists on Google Drive, its stored id is dropped and the snapshot is uploaded as a new backup.
      *
-     * @param fileId  The ID of the file on Google Drive to be updated.
-     * @param bais    The ByteArrayInputStream containing the updated file data.
-     * @param account The GoogleSignInAccount representing the signed-in Google account.
-     * @throws IOException If an error occurs during file update or Google Drive API interaction.
+     * @param fileId        The ID of the file on Google Drive to be updated.
+     * @param fileName      The name the file should have; a backup written in an older format is renamed.
+     * @param file          The local file containing the updated data.
+     * @param mimeType      The MIME type of the file.
+     * @param appProperties Private app properties to set on the file, or null to leave them unchanged.
+     * @param account       The GoogleSignInAccount representing the signed-in Google account.
+     * @return The updated file on Google Drive, or the new file if the backup had been deleted.
+     * @throws IOException If the update failed or Google Drive rejected it; a resumable upload session is kept for resuming.
      */
-    private void updateFileOnGoogleDrive(String fileId, ByteArrayInputStream bais, GoogleSignInAccount account) throws IOException {
+    private File updateFileOnGoogleDrive(String fileId, String fileName, java.io.File file, String mimeType, Map<String, String> appProperties, GoogleSignInAccount account) throws IOException {
         // Log that the worker has started
         saveDebugLogToFile("File: BackupWorker Function: updateFileOnGoogleDrive Message: Worker has started google drive file updation");
 
         try {
-            // Read file bytes from input stream
-            byte[] fileBytes = readAllBytesCompat(bais);
-
-            // Set up Google Drive credentials
-            GoogleAccountCredential credential = GoogleAccountCredential.usingOAuth2(
-                    getApplicationContext(), Collections.singleton(DriveScopes.DRIVE_FILE));
-            credential.setSelectedAccount(account.getAccount());
-
-            // Create Google Drive service
-            Drive googleDriveService = new Drive.Builder(
-                    AndroidHttp.newCompatibleTransport(),
-                    new GsonFactory(),
-                    credential)
-                    .setApplicationName("PasswordManager")
-                    .build();
-
-            // Check if "cipherSafe" directory exists
-            String cipherSafeFolderId = getOrCreateCipherSafeFolder(googleDriveService);
-
-            // Update the file content
-            ByteArrayContent mediaContent = new ByteArrayContent("application/vnd.openxmlformats-officedocument.spreadsheetml.sheet", fileBytes);
-
-            // Update the file on Google Drive
-            File file = googleDriveService.files().update(fileId, null, mediaContent)
-                    .execute();
-
-            // If the file isn't already in the "cipherSafe" folder, move it there
-            if (!file.getParents().contains(cipherSafeFolderId)) {
-                googleDriveService.files().update(fileId, null)
-                        .setAddParents(cipherSafeFolderId)
-                        .setRemoveParents(file.getParents().get(0)) // assuming there's only one parent
-                        .setFields("id, parents")
-                        .execute();
+            Drive googleDriveService = DriveServiceHolder.getDrive(getApplicationContext(), account);
+
+            // Update the file on Google Drive, streamed from the local file
+            File fileMetadata = new File()
+                    .setName(fileName)
+                    .setMimeType(mimeType)
+                    .setAppProperties(appProperties);
+            File driveFile;
+            try {
+                driveFile = sendFile(googleDriveService, fileId, fileMetadata, file, mimeType, account);
+            } catch (HttpResponseException e) {
+                if (e.getStatusCode() != HttpStatusCodes.STATUS_CODE_NOT_FOUND) {
+                    throw e;
+                }
+                // The backup was deleted on Google Drive; the snapshot becomes a new backup
+                saveDebugLogToFile("File: BackupWorker Function: updateFileOnGoogleDrive Message: Backup file not found, creating a new one");
+                sharedPreferences.edit().remove("GOOGLE_DRIVE_FILE_ID").apply();
+                beginPendingUpload(UPLOAD_KIND_BASE_CREATE, sharedPreferences.getLong(PENDING_UPLOAD_SEQ_KEY, -1),
+                        sharedPreferences.getLong(PENDING_UPLOAD_GENERATION_KEY, -1));
+                return uploadFileToGoogleDrive(fileName, file, mimeType, appProperties, account);
             }
 
-            Log.d("BackupWorker", "File updated and moved to cipherSafe folder on Google Drive: " + file.getId());
+            Log.d("BackupWorker", "File updated on Google Drive: " + driveFile.getId());
             //saveDebugLogToFile("File updated on Google Drive with ID: " + fileId);
             saveDebugLogToFile("File: BackupWorker Function: updateFileOnGoogleDrive Message: Worker has successfully updated the file");
-
-        } catch (GoogleJsonResponseException e) {
-            Log.e("BackupWorker", "Google Drive API error during update: " + e.getDetails(), e);
-            saveDebugLogToFile("File: BackupWorker Function: updateFileOnGoogleDrive Message: GoogleJsonResponseException occurred during file update");
+            return driveFile;
 
         } catch (IOException e) {
             Log.e("BackupWorker", "IO Exception occurred during file update: " + e.getMessage(), e);
             saveDebugLogToFile("File: BackupWorker Function: updateFileOnGoogleDrive Message: IOException occurred during file update");
             throw e; // Re-throw the IOException to propagate it up
+        }
+    }
+    /**
+     * Creates or updates a file on Google Drive with the content of a local file.
+     * Files that fit in one upload chunk are sent in a single multipart request. Larger files use a resumable
+     * upload whose session URI is saved before any content is sent, so an interrupted upload can be resumed by a later run.
+     *
+     * @param googleDriveService The Google Drive service.
+     * @param fileId             The ID of the file to update, or null to create a new file.
+     * @param fileMetadata       The metadata to create the file with or to change.
+     * @param file               The local file to upload.
+     * @param mimeType           The MIME type of the file.
+     * @param account            The GoogleSignInAccount representing the signed-in Google account.
+     * @return The created or updated file (id only).
+     * @throws IOException If the upload failed or Google Drive rejected it.
+     */
+    private File sendFile(Drive googleDriveService, String fileId, File fileMetadata, java.io.File file, String mimeType, GoogleSignInAccount account) throws IOException {
+        int chunkSize = getUploadChunkSize();
+        if (file.length() <= chunkSize) {
+            FileContent mediaContent = new FileContent(mimeType, file);
+            AbstractGoogleClientRequest<File> request = fileId == null
+                    ? googleDriveService.files().create(fileMetadata, mediaContent).setFields("id")
+                    : googleDriveService.files().update(fileId, fileMetadata, mediaContent).setFields("id");
+            request.getMediaHttpUploader().setDirectUploadEnabled(true);
+            return request.execute();
+        }
 
+        DriveResumableUpload upload = new DriveResumableUpload(DriveServiceHolder.getRequestFactory(getApplicationContext(), account),
+                googleDriveService.getRootUrl(), chunkSize);
+        String sessionUri = fileId == null
+                ? upload.startCreate(fileMetadata, mimeType, file.length())
+                : upload.startUpdate(fileId, fileMetadata, mimeType, file.length());
+        savePendingSession(sessionUri, file);
+        return upload.upload(sessionUri, file, mimeType, false);
+    }
+    /**
+     * Saves the session URI of the upload that is about to send the given file.
+     *
+     * @param sessionUri The upload session URI.
+     * @param file       The staged file being uploaded.
+     */
+    private void savePendingSession(String sessionUri, java.io.File file) {
+        sharedPreferences.edit()
+                .putString(PENDING_UPLOAD_SESSION_KEY, sessionUri)
+                .putLong(PENDING_UPLOAD_LENGTH_KEY, file.length())
+                .commit(); // Written synchronously: the process may be killed mid-upload
+    }
+    /**
+     * Returns the upload chunk size: the "UPLOAD_CHUNK_SIZE" input data, or {@link #UPLOAD_CHUNK_SIZE} if not set.
+     *
+     * @return The chunk size in bytes.
+     */
+    private int getUploadChunkSize() {
+        return getInputData().getInt("UPLOAD_CHUNK_SIZE", UPLOAD_CHUNK_SIZE);
+    }
+    /**
+     * Returns the ID of the "cipherSafe" folder, from the preferences if it was found before.
+     * The cached ID is trusted until a request reports that the folder does not exist.
+     *
+     * @param googleDriveService The Google Drive service instance used to interact with Google Drive.
+     * @return The ID of the "cipherSafe" folder.
+     * @throws IOException If the folder could not be found or created.
+     */
+    private String getCipherSafeFolderId(Drive googleDriveService) throws IOException {
+        String folderId = sharedPreferences.getString(DRIVE_FOLDER_ID_KEY, null);
+        if (folderId == null) {
+            long phaseStart = SystemClock.elapsedRealtime();
+            folderId = getOrCreateCipherSafeFolder(googleDriveService);
+            run.folderLookupMillis += SystemClock.elapsedRealtime() - phaseStart;
+            if (folderId == null) {
+                throw new IOException("Could not find or create the cipherSafe folder");
+            }
+            sharedPreferences.edit().putString(DRIVE_FOLDER_ID_KEY, folderId).apply();
+        }
+        return folderId;
+    }
+    /**
+     * Deletes the journal segments of a base snapshot after the base was replaced by a new snapshot that contains them.
+     * Segments of other bases, e.g. written by another device on the same account, are left alone.
+     * Failures are only logged: a leftover segment is older than the base and is skipped on restore.
+     *
+     * @param baseFileId     The file id of the replaced base snapshot.
+     * @param includeUnkeyed true to also delete segments written by older versions, which do not name their base.
+     * @param account        The GoogleSignInAccount representing the signed-in Google account.
+     */
+    private void deleteJournalSegments(String baseFileId, boolean includeUnkeyed, GoogleSignInAccount account) {
+        try {
+            Drive googleDriveService = DriveServiceHolder.getDrive(getApplicationContext(), account);
+            String cipherSafeFolderId = getCipherSafeFolderId(googleDriveService);
+            String pageToken = null;
+            int deleted = 0;
+            do {
+                FileList result = googleDriveService.files().list()
+                        .setQ("'" + cipherSafeFolderId + "' in parents and name contains 'journal-' and trashed=false")
+                        .setSpaces("drive")
+                        .setFields("nextPageToken, files(id, name, appProperties)")
+                        .setPageToken(pageToken)
+                        .execute();
+                for (File segment : result.getFiles()) {
+                    String segmentBaseId = segment.getAppProperties() != null ? segment.getAppProperties().get(SEGMENT_BASE_ID_PROPERTY) : null;
+                    if (ChangeJournal.isSegmentName(segment.getName())
+                            && (baseFileId.equals(segmentBaseId) || includeUnkeyed && segmentBaseId == null)) {
+                        googleDriveService.files().delete(segment.getId()).execute();
+                        deleted++;
+                    }
+                }
+                pageToken = result.getNextPageToken();
+            } while (pageToken != null);
+            saveDebugLogToFile("File: BackupWorker Function: deleteJournalSegments Message: Deleted " + deleted + " journal segments");
         } catch (Exception e) {
-            Log.e("BackupWorker", "Unexpected error occurred during file update: " + e.getMessage(), e);
-            saveDebugLogToFile("File: BackupWorker Function: updateFileOnGoogleDrive Message: Unexpected error occurred during file update");
+            Log.e("BackupWorker", "Failed to delete journal segments: " + e.getMessage(), e);
+            saveDebugLogToFile("File: BackupWorker Function: deleteJournalSegments Message: Failed to delete journal segments");
         }
     }
     /**
@@ -0,0 +1,336 @@
+package com.ciphersafe;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.crypto.SecretKey;
+
+/**
+ * ChangeJournal reads and writes journal segments, the incremental part of a cloud backup.
+ * A backup is a base snapshot (the .csvault file written by {@link BackupWorker}, see {@link VaultBackupWriter}) followed by segments,
+ * each holding the current state of the rows that changed since the previous segment. Restoring replays the
+ * segments newer than the base, in sequence order, on top of the base rows.
+ * <p>
+ * A segment file is a header (magic, format version, PBKDF2 salt) followed by the body encrypted with AES-GCM
+ * under a key derived from the backup password, so it can be read on any device that knows the password.
+ */
+public final class ChangeJournal {
+
+    private static final int MAGIC = 0x43534A31; // "CSJ1"
+    private static final int FORMAT_VERSION = 1;
+    private static final String SEGMENT_NAME_PREFIX = "journal-";
+    private static final String SEGMENT_NAME_SUFFIX = ".csj";
+
+    private ChangeJournal() {
+    }
+
+    /**
+     * The state of one row after a change: either the full row after an insert or update, or just the id after a delete.
+     */
+    public static final class Entry {
+        public final int op;
+        public final int id;
+        public final String accountName;
+        public final String username;
+        public final String password;
+        public final String notes;
+
+        /**
+         * Creates a journal entry.
+         *
+         * @param op          {@link ChangeRecord#OP_UPSERT} or {@link ChangeRecord#OP_DELETE}.
+         * @param id          The id of the row.
+         * @param accountName The account name, or null for a delete.
+         * @param username    The username, or null for a delete.
+         * @param password    The plain-text password, or null for a delete or a password that could not be decrypted.
+         * @param notes       The notes, or null for a delete.
+         */
+        public Entry(int op, int id, String accountName, String username, String password, String notes) {
+            this.op = op;
+            this.id = id;
+            this.accountName = accountName;
+            this.username = username;
+            this.password = password;
+            this.notes = notes;
+        }
+    }
+
+    /**
+     * A journal segment: the entries for the changes with sequence numbers in (fromSeq, toSeq].
+     */
+    public static final class Segment {
+        public final long fromSeq;
+        public final long toSeq;
+        public final List<Entry> entries;
+        // Upserts whose password could not be decrypted and were written without it; not stored in the file
+        public final int failureCount;
+
+        Segment(long fromSeq, long toSeq, List<Entry> entries, int failureCount) {
+            this.fromSeq = fromSeq;
+            this.toSeq = toSeq;
+            this.entries = entries;
+            this.failureCount = failureCount;
+        }
+    }
+
+    /**
+     * Returns the Drive file name of the segment ending at the given sequence number.
+     * The number is zero-padded so names sort in replay order.
+     *
+     * @param toSeq The sequence number of the last change in the segment.
+     * @return The file name of the segment.
+     */
+    public static String segmentName(long toSeq) {
+        return String.format(Locale.US, "%s%019d%s", SEGMENT_NAME_PREFIX, toSeq, SEGMENT_NAME_SUFFIX);
+    }
+
+    /**
+     * Returns true if the given file name was produced by {@link #segmentName(long)}.
+     *
+     * @param fileName The file name to check.
+     * @return true if the file is a journal segment.
+     */
+    public static boolean isSegmentName(String fileName) {
+        return fileName != null && fileName.startsWith(SEGMENT_NAME_PREFIX) && fileName.endsWith(SEGMENT_NAME_SUFFIX);
+    }
+
+    /**
+     * Returns the sequence number of the last change in a segment, parsed from its file name.
+     *
+     * @param fileName A file name for which {@link #isSegmentName(String)} returns true.
+     * @return The sequence number, or -1 if the name does not hold one.
+     */
+    public static long segmentSeq(String fileName) {
+        try {
+            return Long.parseLong(fileName.substring(SEGMENT_NAME_PREFIX.length(), fileName.length() - SEGMENT_NAME_SUFFIX.length()));
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Builds the segment for a run of change records. Several changes to the same row collapse into one entry
+     * holding the row's current state, and rows are read and decrypted in one batch.
+     * As in the base snapshot, a row whose password cannot be decrypted is kept without its password and counted in
+     * {@link Segment#failureCount}; restoring such an entry keeps the password of the base.
+     *
+     * @param passwordDao The DAO used to read the current rows.
+     * @param changes     The change records, ordered by sequence number; at most 999 distinct rows.
+     * @param fromSeq     The sequence number of the last change in the previous segment or base.
+     * @return The segment, with entries in the order the rows were last changed.
+     * @throws IOException If decrypting was interrupted.
+     */
+    public static Segment collect(PasswordDao passwordDao, List<ChangeRecord> changes, long fromSeq) throws IOException {
+        // Keep only the last change per row, ordered by when that change happened
+        LinkedHashMap<Integer, Integer> lastOps = new LinkedHashMap<>();
+        for (ChangeRecord change : changes) {
+            lastOps.remove(change.passwordId);
+            lastOps.put(change.passwordId, change.op);
+        }
+
+        List<Integer> upsertIds = new ArrayList<>();
+        for (Map.Entry<Integer, Integer> lastOp : lastOps.entrySet()) {
+            if (lastOp.getValue() == ChangeRecord.OP_UPSERT) {
+                upsertIds.add(lastOp.getKey());
+            }
+        }
+        Map<Integer, Password> rows = new HashMap<>();
+        for (Password row : upsertIds.isEmpty() ? Collections.<Password>emptyList() : passwordDao.findByIds(upsertIds)) {
+            rows.put(row.id, row);
+        }
+
+        List<Password> orderedRows = new ArrayList<>(rows.size());
+        List<byte[]> encryptedPasswords = new ArrayList<>(rows.size());
+        for (Integer id : upsertIds) {
+            Password row = rows.get(id);
+            if (row != null) {
+                orderedRows.add(row);
+                encryptedPasswords.add(row.password);
+            }
+        }
+        EncryptionUtils.BatchResult decrypted;
+        try {
+            decrypted = EncryptionUtils.decryptAll(encryptedPasswords);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while decrypting passwords", e);
+        }
+        // Failed entries decrypt to null; a placeholder would overwrite the real password on restore
+        Map<Integer, String> plainPasswords = new HashMap<>();
+        for (int i = 0; i < orderedRows.size(); i++) {
+            plainPasswords.put(orderedRows.get(i).id, decrypted.get(i));
+        }
+
+        List<Entry> entries = new ArrayList<>(lastOps.size());
+        for (Map.Entry<Integer, Integer> lastOp : lastOps.entrySet()) {
+            int id = lastOp.getKey();
+            Password row = rows.get(id);
+            if (lastOp.getValue() == ChangeRecord.OP_UPSERT && row != null) {
+                entries.add(new Entry(ChangeRecord.OP_UPSERT, id, row.accountName, row.username, plainPasswords.get(id), row.notes));
+            } else {
+                // Deleted, or deleted after the change records were read; its delete record will follow in the next segment
+                entries.add(new Entry(ChangeRecord.OP_DELETE, id, null, null, null, null));
+            }
+        }
+        long toSeq = changes.isEmpty() ? fromSeq : changes.get(changes.size() - 1).seq;
+        return new Segment(fromSeq, toSeq, entries, decrypted.getFailureCount());
+    }
+
+    /**
+     * Encrypts a segment with a key derived from the backup password and writes it to a file.
+     *
+     * @param segment  The segment to write.
+     * @param password The backup password.
+     * @param outFile  The file to write; it is replaced if it exists.
+     * @throws IOException If the segment could not be encrypted or written.
+     */
+    public static void write(Segment segment, String password, java.io.File outFile) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(body)) {
+            out.writeLong(segment.fromSeq);
+            out.writeLong(segment.toSeq);
+            out.writeInt(segment.entries.size());
+            for (Entry entry : segment.entries) {
+                out.writeByte(entry.op);
+                out.writeInt(entry.id);
+                if (entry.op == ChangeRecord.OP_UPSERT) {
+                    writeString(out, entry.accountName);
+                    writeString(out, entry.username);
+                    writeString(out, entry.password);
+                    writeString(out, entry.notes);
+                }
+            }
+        }
+
+        byte[] salt = EncryptionUtils.newBackupSalt();
+        byte[] encryptedBody;
+        try {
+            SecretKey key = EncryptionUtils.deriveBackupKey(password, salt);
+            encryptedBody = EncryptionUtils.encryptWithKey(key, body.toByteArray());
+        } catch (Exception e) {
+            throw new IOException("Failed to encrypt the journal segment", e);
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(outFile))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.write(salt);
+            out.writeInt(encryptedBody.length);
+            out.write(encryptedBody);
+        }
+    }
+
+    /**
+     * Reads and decrypts a segment written by {@link #write(Segment, String, java.io.File)}.
+     *
+     * @param in       The stream to read the segment from; it is not closed.
+     * @param password The backup password.
+     * @return The decrypted segment.
+     * @throws IOException If the stream is not a journal segment, the password is wrong or the data was modified.
+     */
+    public static Segment read(InputStream in, String password) throws IOException {
+        DataInputStream header = new DataInputStream(in);
+        if (header.readInt() != MAGIC) {
+            throw new IOException("Not a journal segment");
+        }
+        int version = header.readInt();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported journal segment version " + version);
+        }
+        byte[] salt = new byte[EncryptionUtils.BACKUP_SALT_LENGTH];
+        header.readFully(salt);
+        byte[] encryptedBody = new byte[header.readInt()];
+        header.readFully(encryptedBody);
+
+        byte[] body;
+        try {
+            SecretKey key = EncryptionUtils.deriveBackupKey(password, salt);
+            body = EncryptionUtils.decryptWithKey(key, encryptedBody);
+        } catch (Exception e) {
+            throw new IOException("Failed to decrypt the journal segment", e);
+        }
+
+        DataInputStream data = new DataInputStream(new ByteArrayInputStream(body));
+        long fromSeq = data.readLong();
+        long toSeq = data.readLong();
+        int count = data.readInt();
+        List<Entry> entries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int op = data.readByte();
+            int id = data.readInt();
+            if (op == ChangeRecord.OP_UPSERT) {
+                entries.add(new Entry(op, id, readString(data), readString(data), readString(data), readString(data)));
+            } else {
+                entries.add(new Entry(op, id, null, null, null, null));
+            }
+        }
+        return new Segment(fromSeq, toSeq, entries, 0);
+    }
+
+    /**
+     * Applies a segment to a vault held in memory, keyed by row id.
+     * Segments must be applied in sequence order, after the base snapshot they follow.
+     *
+     * @param vault   The rows restored so far; updated in place.
+     * @param segment The segment to apply.
+     */
+    public static void replay(Map<Integer, Entry> vault, Segment segment) {
+        for (Entry entry : segment.entries) {
+            if (entry.op == ChangeRecord.OP_UPSERT) {
+                vault.put(entry.id, apply(vault.get(entry.id), entry));
+            } else {
+                vault.remove(entry.id);
+            }
+        }
+    }
+
+    /**
+     * Returns the state of a row after a change. An upsert written without its password, because the password could
+     * not be decrypted when the segment was collected, keeps the password of the earlier state.
+     *
+     * @param previous The earlier state of the row, or null if it is not known.
+     * @param change   The change to apply.
+     * @return The state of the row after the change.
+     */
+    public static Entry apply(Entry previous, Entry change) {
+        if (change.op != ChangeRecord.OP_UPSERT || change.password != null || previous == null || previous.password == null) {
+            return change;
+        }
+        return new Entry(change.op, change.id, change.accountName, change.username, previous.password, change.notes);
+    }
+
+    // Writes a nullable string as its UTF-8 length (-1 for null) followed by its bytes; unlike writeUTF() it has no 64 KB limit
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    // Reads a string written by writeString()
+    static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,38 @@
+package com.ciphersafe;
+
+import androidx.room.Dao;
+import androidx.room.Query;
+
+import java.util.List;
+
+/**
+ * ChangeLogDao provides access to the "change_log" table, which database triggers fill on every write to the "Password" table.
+ */
+@Dao
+public interface ChangeLogDao {
+
+    /**
+     * Retrieves the changes recorded after the given sequence number, oldest first.
+     *
+     * @param afterSeq The sequence number of the last change already journaled.
+     * @return A list of {@link ChangeRecord} objects ordered by sequence number.
+     */
+    @Query("SELECT * FROM change_log WHERE seq > :afterSeq ORDER BY seq")
+    List<ChangeRecord> getChangesAfter(long afterSeq);
+
+    /**
+     * Returns the sequence number of the newest change in the log.
+     *
+     * @return The newest sequence number, or 0 if the log is empty.
+     */
+    @Query("SELECT COALESCE(MAX(seq), 0) FROM change_log")
+    long getLatestSeq();
+
+    /**
+     * Prunes the changes that are already contained in a backup.
+     *
+     * @param seq The sequence number of the newest change to remove.
+     */
+    @Query("DELETE FROM change_log WHERE seq <= :seq")
+    void deleteUpTo(long seq);
+}
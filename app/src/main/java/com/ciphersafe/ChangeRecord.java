@@ -0,0 +1,40 @@
+package com.ciphersafe;
+
+import androidx.room.Entity;
+import androidx.room.PrimaryKey;
+
+/**
+ * ChangeRecord is one entry of the change log, an append-only record of which rows of the "Password" table changed.
+ * Rows are written by database triggers on every insert, update and delete, so no code path can change the vault
+ * without leaving a record. A record only holds the row id and the kind of change; the current values are read
+ * from "Password" when the change is journaled, so the log never contains secrets.
+ */
+@Entity(tableName = "change_log")
+public class ChangeRecord {
+
+    /**
+     * The row was inserted or updated.
+     */
+    public static final int OP_UPSERT = 0;
+
+    /**
+     * The row was deleted.
+     */
+    public static final int OP_DELETE = 1;
+
+    /**
+     * The position of the change in the log. Sequence numbers only grow and are never reused, even after old records are pruned.
+     */
+    @PrimaryKey(autoGenerate = true)
+    public long seq;
+
+    /**
+     * The id of the changed {@link Password} row.
+     */
+    public int passwordId;
+
+    /**
+     * The kind of change, {@link #OP_UPSERT} or {@link #OP_DELETE}.
+     */
+    public int op;
+}
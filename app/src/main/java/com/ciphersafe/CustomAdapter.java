@@ -1,110 +1,123 @@
 package com.ciphersafe;
 
-import android.content.Context;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.BaseAdapter;
 import android.widget.TextView;
 
-import java.util.List;
-import java.util.ArrayList;
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.ListAdapter;
+import androidx.recyclerview.widget.RecyclerView;
+
+import java.util.Objects;
 
 /**
- * CustomAdapter is a custom adapter class used to bind data to a ListView. It displays account names and usernames in a list.
+ * CustomAdapter is a custom adapter class used to bind data to a RecyclerView. It displays account names and usernames in a list.
+ * New lists are submitted with {@link #submitList(java.util.List)}; the differences to the current list are computed
+ * off the main thread, so only rows that were added, removed or changed are rebound.
  */
-public class CustomAdapter extends BaseAdapter {
-
-    private Context context;
-    private List<String[]> dataList;
+public class CustomAdapter extends ListAdapter<PasswordSummary, CustomAdapter.ViewHolder> {
 
     /**
-     * Constructor for the CustomAdapter.
-     *
-     * @param context  The context in which the adapter is being used.
-     * @param dataList A list of string arrays where each array represents an account name and username.
+     * Callback invoked when the user taps a row.
      */
-    public CustomAdapter(Context context, List<String[]> dataList) {
-        this.context = context;
-        this.dataList = new ArrayList<>(dataList);
+    public interface OnPasswordClickListener {
+        /**
+         * Called when the row for a password entry is tapped.
+         *
+         * @param id The id of the tapped password entry.
+         */
+        void onPasswordClick(int id);
     }
 
     /**
-     * Returns the number of items in the data list.
-     *
-     * @return The size of the data list.
+     * Compares rows by database id, and their contents by the fields shown in the row.
      */
-    @Override
-    public int getCount() {
-        return dataList.size();
-    }
+    private static final DiffUtil.ItemCallback<PasswordSummary> DIFF_CALLBACK = new DiffUtil.ItemCallback<PasswordSummary>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull PasswordSummary oldItem, @NonNull PasswordSummary newItem) {
+            return oldItem.id == newItem.id;
+        }
+
+        @Override
+        public boolean areContentsTheSame(@NonNull PasswordSummary oldItem, @NonNull PasswordSummary newItem) {
+            return Objects.equals(oldItem.accountName, newItem.accountName)
+                    && Objects.equals(oldItem.username, newItem.username);
+        }
+    };
+
+    private final OnPasswordClickListener clickListener;
 
     /**
-     * Returns the data item at a specific position.
+     * Constructor for the CustomAdapter.
      *
-     * @param position The position of the item in the data list.
-     * @return The data item (string array) at the specified position.
+     * @param clickListener The listener notified when a row is tapped.
      */
-    @Override
-    public Object getItem(int position) {
-        return dataList.get(position);
+    public CustomAdapter(OnPasswordClickListener clickListener) {
+        super(DIFF_CALLBACK);
+        this.clickListener = clickListener;
+        setHasStableIds(true);
     }
 
     /**
      * Returns the ID of the item at the specified position.
-     * In this case, the position is used as the ID.
+     * The database id of the row is used, so ids stay stable across list updates.
      *
-     * @param position The position of the item in the data list.
-     * @return The position of the item, used as its ID.
+     * @param position The position of the item in the list.
+     * @return The database id of the item.
      */
     @Override
     public long getItemId(int position) {
-        return position;
+        return getItem(position).id;
     }
 
     /**
-     * Provides a view for an adapter view (ListView) with the data for a specific position.
-     * Inflates the layout if necessary and sets the account name and username text views.
+     * Inflates the layout for a list row.
      *
-     * @param position    The position of the data in the list.
-     * @param convertView The recycled view to populate (if available), or null to inflate a new one.
-     * @param parent      The parent view to which the view will be attached.
-     * @return The View corresponding to the data at the specified position.
+     * @param parent   The RecyclerView the row will be attached to.
+     * @param viewType The view type of the row (unused, all rows look the same).
+     * @return A new {@link ViewHolder} for the row.
      */
+    @NonNull
     @Override
-    public View getView(int position, View convertView, ViewGroup parent) {
-        if (convertView == null) {
-            LayoutInflater inflater = LayoutInflater.from(context);
-            convertView = inflater.inflate(R.layout.list_item_password, parent, false);
-        }
-
-        TextView accountNameTextView = convertView.findViewById(R.id.account_name);
-        TextView usernameTextView = convertView.findViewById(R.id.username);
-
-        // Retrieve the account name and username from the data list for the current position
-        String[] data = dataList.get(position);
-        accountNameTextView.setText(data[0]);
-        usernameTextView.setText(data[1]);
-
-        // Set the click listener on the entire item view (convertView)
-        convertView.setOnClickListener(v -> {
-            if (context instanceof MainActivity) {
-                // Call the showPasswordDetails method in MainActivity, passing the account name
-                ((MainActivity) context).showPasswordDetails(data[0]);
-            }
-        });
-
-        return convertView;
+    public ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext()).inflate(R.layout.list_item_password, parent, false);
+        return new ViewHolder(view);
     }
 
     /**
-     * Updates the data list with new data and refreshes the ListView.
+     * Sets the account name and username text views for the row at the given position.
      *
-     * @param newDataList The new list of data to be displayed in the ListView.
+     * @param holder   The holder of the row to bind.
+     * @param position The position of the data in the list.
      */
-    public void updateData(List<String[]> newDataList) {
-        dataList.clear();
-        dataList.addAll(newDataList);
-        notifyDataSetChanged();
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
+        PasswordSummary data = getItem(position);
+        holder.accountNameTextView.setText(data.accountName);
+        holder.usernameTextView.setText(data.username);
+    }
+
+    /**
+     * ViewHolder holds the views of a single list row and forwards taps to the click listener.
+     */
+    class ViewHolder extends RecyclerView.ViewHolder {
+        final TextView accountNameTextView;
+        final TextView usernameTextView;
+
+        ViewHolder(@NonNull View itemView) {
+            super(itemView);
+            accountNameTextView = itemView.findViewById(R.id.account_name);
+            usernameTextView = itemView.findViewById(R.id.username);
+
+            // Set the click listener on the entire item view
+            itemView.setOnClickListener(v -> {
+                int position = getBindingAdapterPosition();
+                if (position != RecyclerView.NO_POSITION) {
+                    clickListener.onPasswordClick(getItem(position).id);
+                }
+            });
+        }
     }
 }
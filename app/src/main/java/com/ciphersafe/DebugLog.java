@@ -0,0 +1,285 @@
+package com.ciphersafe;
+
+import android.content.Context;
+import android.net.wifi.WifiInfo;
+import android.net.wifi.WifiManager;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * DebugLog is the process-wide debug logger behind the log files that users can send from the user manual.
+ * <p>
+ * Logging never touches the file system on the calling thread: {@link #log(String, String)} only stores the message
+ * and a timestamp in a bounded lock-free ring buffer. A background thread drains the buffer and appends the records to
+ * one {@link LogSegmentStore} per log, which keeps the log in a few fixed-size segments with the device information in
+ * each segment's header, so the logs stay small and are not deleted with the cache. {@link #exportText(String, long)}
+ * renders a log to a text file in the cache directory when the user sends it.
+ * Producers wake the flusher early during a burst. If the buffer still fills up, new messages are dropped rather than
+ * blocking the caller, and a notice with the number dropped is written to the log that lost them.
+ */
+public final class DebugLog {
+
+    /**
+     * The log file of the activities.
+     */
+    public static final String MAIN_LOG = "MainActivity.txt";
+
+    /**
+     * The log file of the background workers.
+     */
+    public static final String BACKUP_LOG = "BackupWorkerLog.txt";
+
+    // Records the buffer can hold; a power of two so positions map to slots with a mask
+    private static final int CAPACITY = 4096;
+    private static final int MASK = CAPACITY - 1;
+    // Producers wake the flusher every this many records, so a burst is drained before the buffer fills
+    private static final int WAKE_INTERVAL = CAPACITY / 4;
+    // How long the flusher sleeps when the buffer is empty
+    private static final long FLUSH_INTERVAL_NANOS = 200_000_000L;
+
+    private static volatile DebugLog instance;
+
+    // Segments live outside the cache directory: their size is bounded, and the system must not evict them
+    private final File segmentDirectory;
+    private final File exportDirectory;
+    private final Context context;
+    // Ring buffer of the bounded multi-producer queue described by D. Vyukov: a slot may be written when its sequence equals
+    // the writer's position, and read when it equals the reader's position + 1
+    private final AtomicReferenceArray<Record> slots = new AtomicReferenceArray<>(CAPACITY);
+    private final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private final AtomicLong tail = new AtomicLong();
+    // Messages dropped because the buffer was full, per log file
+    private final Map<String, AtomicLong> dropped = new ConcurrentHashMap<>();
+    // Only touched by the flusher thread
+    private long head;
+    private final Map<String, LogSegmentStore> stores = new HashMap<>();
+    private String deviceInfo;
+    private final Thread flusher;
+    // Position up to which records have been written to disk; see flush()
+    private volatile long flushedTo;
+
+    // One log message waiting to be written
+    private static final class Record {
+        final String fileName;
+        final long timeMillis;
+        final String message;
+
+        Record(String fileName, long timeMillis, String message) {
+            this.fileName = fileName;
+            this.timeMillis = timeMillis;
+            this.message = message;
+        }
+    }
+
+    private DebugLog(Context context) {
+        this.context = context.getApplicationContext();
+        this.segmentDirectory = new File(this.context.getNoBackupFilesDir(), "logs");
+        this.exportDirectory = this.context.getCacheDir();
+        for (int i = 0; i < CAPACITY; i++) {
+            sequences.set(i, i);
+        }
+        flusher = new Thread(this::runFlusher, "DebugLog-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Returns the process-wide logger, starting it on first use.
+     *
+     * @param context Any context; the application context is kept.
+     * @return The shared logger.
+     */
+    public static DebugLog get(Context context) {
+        DebugLog log = instance;
+        if (log == null) {
+            synchronized (DebugLog.class) {
+                log = instance;
+                if (log == null) {
+                    log = new DebugLog(context);
+                    instance = log;
+                }
+            }
+        }
+        return log;
+    }
+
+    /**
+     * Queues a message for a log file. Safe to call from any thread, including the main thread; it does not block.
+     *
+     * @param fileName The log file, {@link #MAIN_LOG} or {@link #BACKUP_LOG}.
+     * @param message  The message.
+     */
+    public void log(String fileName, String message) {
+        Record record = new Record(fileName, System.currentTimeMillis(), message);
+        long position = tail.get();
+        while (true) {
+            int index = (int) (position & MASK);
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    slots.set(index, record);
+                    sequences.lazySet(index, position + 1);
+                    if ((position & (WAKE_INTERVAL - 1)) == 0) {
+                        LockSupport.unpark(flusher);
+                    }
+                    return;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                // Full: the flusher has not yet freed the slot written CAPACITY positions ago
+                AtomicLong lost = dropped.get(fileName);
+                if (lost == null) {
+                    lost = dropped.computeIfAbsent(fileName, name -> new AtomicLong());
+                }
+                lost.incrementAndGet();
+                return;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Waits until every message queued before this call is written to its file, e.g. before the files are sent.
+     * Must not be called on the main thread while the flusher may be slow, as it blocks for up to the given time.
+     *
+     * @param timeoutMillis The maximum time to wait.
+     */
+    public void flush(long timeoutMillis) {
+        long target = tail.get();
+        long deadline = System.nanoTime() + timeoutMillis * 1_000_000L;
+        while (flushedTo < target && System.nanoTime() < deadline) {
+            LockSupport.unpark(flusher);
+            LockSupport.parkNanos(1_000_000L);
+        }
+    }
+
+    /**
+     * Renders a log, including every message queued before this call, to a text file in the cache directory so it can be
+     * shared. Must not be called on the main thread.
+     *
+     * @param fileName      The log file, {@link #MAIN_LOG} or {@link #BACKUP_LOG}.
+     * @param timeoutMillis The maximum time to wait for queued messages to be written.
+     * @return The text file, which replaces any earlier export of the same log.
+     * @throws IOException If the file could not be written.
+     */
+    public File exportText(String fileName, long timeoutMillis) throws IOException {
+        flush(timeoutMillis);
+        if (!exportDirectory.exists() && !exportDirectory.mkdirs()) {
+            throw new IOException("Failed to create cache directory.");
+        }
+        File file = new File(exportDirectory, fileName);
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+            // Only the flusher appends to the segments; a separate store that never appends can read them meanwhile
+            new LogSegmentStore(segmentDirectory(fileName), null).render(out);
+        }
+        return file;
+    }
+
+    // Flusher thread: drains the buffer and appends the records
+    private void runFlusher() {
+        // Earlier versions appended to these files without a size limit; they are now only written by exportText()
+        for (String fileName : new String[]{MAIN_LOG, BACKUP_LOG}) {
+            File legacy = new File(exportDirectory, fileName);
+            if (legacy.exists() && !legacy.delete()) {
+                Log.w("DebugLog", "Failed to delete old log " + fileName);
+            }
+        }
+        while (true) {
+            Record record = poll();
+            if (record != null) {
+                write(record);
+                continue;
+            }
+            for (Map.Entry<String, AtomicLong> entry : dropped.entrySet()) {
+                long lost = entry.getValue().getAndSet(0);
+                if (lost > 0) {
+                    write(new Record(entry.getKey(), System.currentTimeMillis(), "DebugLog: " + lost + " messages dropped, buffer full"));
+                }
+            }
+            // Appends go straight into the mapped segments, so there is nothing to flush
+            flushedTo = head;
+            LockSupport.parkNanos(FLUSH_INTERVAL_NANOS);
+        }
+    }
+
+    // Takes the next record, or returns null if the buffer is empty; only called by the flusher thread
+    private Record poll() {
+        int index = (int) (head & MASK);
+        if (sequences.get(index) != head + 1) {
+            return null;
+        }
+        Record record = slots.get(index);
+        slots.set(index, null);
+        sequences.lazySet(index, head + CAPACITY);
+        head++;
+        return record;
+    }
+
+    private void write(Record record) {
+        try {
+            LogSegmentStore store = stores.get(record.fileName);
+            if (store == null) {
+                store = new LogSegmentStore(segmentDirectory(record.fileName), this::getDeviceInfo);
+                stores.put(record.fileName, store);
+            }
+            store.append(record.timeMillis, record.message);
+        } catch (IOException e) {
+            Log.e("DebugLog", "Failed to save/update debug log: " + e.getMessage());
+        }
+    }
+
+    // MainActivity.txt is stored in logs/MainActivity/
+    private File segmentDirectory(String fileName) {
+        int extension = fileName.lastIndexOf('.');
+        return new File(segmentDirectory, extension > 0 ? fileName.substring(0, extension) : fileName);
+    }
+
+    /**
+     * Returns the device information, such as Android version, phone model, and Wi-Fi status, collected on first use.
+     *
+     * @return A string containing the device information.
+     */
+    private String getDeviceInfo() {
+        if (deviceInfo != null) {
+            return deviceInfo;
+        }
+        StringBuilder info = new StringBuilder();
+        info.append("Device Info: \n");
+        info.append("Android Version: ").append(Build.VERSION.RELEASE).append("\n");
+        info.append("Phone Model: ").append(Build.MODEL).append("\n");
+        info.append("Manufacturer: ").append(Build.MANUFACTURER).append("\n");
+
+        // Wi-Fi status
+        WifiManager wifiManager = (WifiManager) context.getSystemService(Context.WIFI_SERVICE);
+        if (wifiManager != null) {
+            if (wifiManager.isWifiEnabled()) {
+                info.append("Wi-Fi Status: Enabled\n");
+                WifiInfo wifiInfo = wifiManager.getConnectionInfo();
+                info.append("Connected to: ").append(wifiInfo.getSSID()).append("\n");
+                info.append("Signal Strength: ").append(wifiInfo.getRssi()).append(" dBm\n");
+            } else {
+                info.append("Wi-Fi Status: Disabled\n");
+            }
+        } else {
+            info.append("Wi-Fi Info: Unavailable\n");
+        }
+        deviceInfo = info.toString();
+        return deviceInfo;
+    }
+}
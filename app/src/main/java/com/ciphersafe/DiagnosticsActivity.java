@@ -0,0 +1,175 @@
+package com.ciphersafe;
+
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.os.Bundle;
+import android.util.Log;
+import android.widget.Button;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import androidx.appcompat.app.AppCompatActivity;
+import androidx.core.content.FileProvider;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * DiagnosticsActivity shows where backup time goes: the p50 and p95 duration of every backup phase over the
+ * last {@link #RUN_COUNT} runs recorded in the backup history, followed by the most recent runs.
+ * The last start-up time measured by {@link AppStartup} and the counters and latencies recorded in {@link Metrics} by
+ * this process are shown above them; "Export metrics" shares the latter as JSON.
+ * It is opened by long-pressing "Send Log Files" in the user manual.
+ */
+public class DiagnosticsActivity extends AppCompatActivity {
+
+    // Runs the percentiles are computed over
+    private static final int RUN_COUNT = 50;
+    // Runs listed individually below the percentiles
+    private static final int RECENT_RUN_COUNT = 10;
+
+    private static final String METRICS_FILE_NAME = "metrics.json";
+
+    private static final String[] PHASE_NAMES = {
+            "total", "resume", "export", "decrypt wait", "folder lookup", "upload", "cleanup"};
+
+    private TextView diagnosticsText;
+
+    /**
+     * Called when the activity is first created. Loads the backup history off the main thread and shows its summary.
+     *
+     * @param savedInstanceState The saved instance state of the activity, if any.
+     */
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_diagnostics);
+        diagnosticsText = findViewById(R.id.diagnostics_text);
+        Button closeButton = findViewById(R.id.close_button);
+        closeButton.setOnClickListener(v -> finish());
+        Button exportMetricsButton = findViewById(R.id.export_metrics_button);
+        exportMetricsButton.setOnClickListener(v -> exportMetrics());
+
+        diagnosticsText.setText("Loading…");
+        SharedPreferences preferences = getSharedPreferences("AppPreferences", MODE_PRIVATE);
+        String startLine = preferences.contains(AppStartup.LAST_START_MILLIS_KEY)
+                ? "Last " + (preferences.getBoolean(AppStartup.LAST_START_COLD_KEY, false) ? "cold" : "warm")
+                + " start to interactive: " + preferences.getLong(AppStartup.LAST_START_MILLIS_KEY, 0) + " ms\n\n"
+                : "";
+        AppDatabase db = AppDatabase.getInstance(this);
+        db.getQueryExecutor().execute(() -> {
+            String report = startLine + "Metrics of this process\n\n" + Metrics.render() + "\n"
+                    + buildReport(db.backupRunDao().getRecent(RUN_COUNT));
+            runOnUiThread(() -> diagnosticsText.setText(report));
+        });
+    }
+
+    /**
+     * Writes the current {@link Metrics} as JSON to {@link #METRICS_FILE_NAME} in the cache directory and offers to share it.
+     */
+    private void exportMetrics() {
+        File file = new File(getCacheDir(), METRICS_FILE_NAME);
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            JSONObject metrics = Metrics.toJson();
+            metrics.put("timestamp", System.currentTimeMillis());
+            out.write(metrics.toString(2));
+        } catch (IOException | JSONException e) {
+            Log.e("DiagnosticsActivity", "Failed to export metrics", e);
+            Toast.makeText(this, "Failed to export metrics", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        shareResults(file, "Share metrics");
+    }
+
+    // Offers to send a JSON results file in the cache directory to another app
+    private void shareResults(File results, String title) {
+        Uri uri = FileProvider.getUriForFile(this, getPackageName() + ".provider", results);
+        Intent shareIntent = new Intent(Intent.ACTION_SEND);
+        shareIntent.setType("application/json");
+        shareIntent.putExtra(Intent.EXTRA_STREAM, uri);
+        shareIntent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        startActivity(Intent.createChooser(shareIntent, title));
+    }
+
+    /**
+     * Formats the percentiles of every phase and the most recent runs.
+     * A phase's percentiles only count the runs in which that phase happened.
+     *
+     * @param runs The runs to summarize, newest first.
+     * @return The report text.
+     */
+    private static String buildReport(List<BackupRun> runs) {
+        if (runs.isEmpty()) {
+            return "No backup runs recorded yet.";
+        }
+        StringBuilder report = new StringBuilder();
+        report.append("Backup phases over the last ").append(runs.size()).append(" runs (ms)\n\n");
+        report.append(String.format(Locale.US, "%-14s %6s %8s %8s%n", "phase", "runs", "p50", "p95"));
+        for (int phase = 0; phase < PHASE_NAMES.length; phase++) {
+            long[] values = new long[runs.size()];
+            int count = 0;
+            for (BackupRun run : runs) {
+                long value = phaseMillis(run, phase);
+                if (value > 0) {
+                    values[count++] = value;
+                }
+            }
+            long[] sorted = Arrays.copyOf(values, count);
+            Arrays.sort(sorted);
+            report.append(String.format(Locale.US, "%-14s %6d %8s %8s%n", PHASE_NAMES[phase], count,
+                    formatPercentile(sorted, 50), formatPercentile(sorted, 95)));
+        }
+
+        report.append("\nRecent runs\n\n");
+        SimpleDateFormat dateFormat = new SimpleDateFormat("MM-dd HH:mm", Locale.getDefault());
+        for (BackupRun run : runs.subList(0, Math.min(RECENT_RUN_COUNT, runs.size()))) {
+            report.append(dateFormat.format(new Date(run.startedAt))).append("  ")
+                    .append(run.result).append(' ').append(run.kind != null ? run.kind : "-").append("  ")
+                    .append(run.rowCount).append(" rows, ").append(run.byteCount / 1024).append(" KB, ")
+                    .append(run.totalMillis).append(" ms\n");
+        }
+        return report.toString();
+    }
+
+    // Duration of the phase named PHASE_NAMES[phase] in a run
+    private static long phaseMillis(BackupRun run, int phase) {
+        switch (phase) {
+            case 0:
+                return run.totalMillis;
+            case 1:
+                return run.resumeMillis;
+            case 2:
+                return run.exportMillis;
+            case 3:
+                return run.decryptWaitMillis;
+            case 4:
+                return run.folderLookupMillis;
+            case 5:
+                return run.uploadMillis;
+            default:
+                return run.cleanupMillis;
+        }
+    }
+
+    // Nearest-rank percentile of sorted values, or "-" if there are none
+    private static String formatPercentile(long[] sorted, int percentile) {
+        if (sorted.length == 0) {
+            return "-";
+        }
+        int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+        return Long.toString(sorted[Math.max(0, rank - 1)]);
+    }
+}
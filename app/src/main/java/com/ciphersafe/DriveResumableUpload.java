@@ -0,0 +1,255 @@
+package com.ciphersafe;
+
+import android.util.Log;
+
+import com.google.api.client.http.EmptyContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.InputStreamContent;
+import com.google.api.client.http.json.JsonHttpContent;
+import com.google.api.client.json.JsonObjectParser;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * DriveResumableUpload uploads a local file to Google Drive with Drive's resumable upload protocol.
+ * The file is sent in chunks straight from disk, so memory use does not depend on the file size,
+ * and an interrupted upload continues from the last byte the server committed instead of starting over.
+ * <p>
+ * An upload is a session: {@link #startCreate} or {@link #startUpdate} returns the session URI, which callers
+ * persist, and {@link #upload} sends the file to it. Passing a persisted URI back to {@link #upload} after a failure
+ * (even in another process) asks the server how much it already has and resumes from there.
+ * Sessions expire after about a week; an expired session fails with {@link SessionExpiredException}.
+ */
+public class DriveResumableUpload {
+
+    // Path of the upload endpoint below the root URL of the Drive API
+    private static final String UPLOAD_PATH = "upload/" + Drive.DEFAULT_SERVICE_PATH + "files";
+    // Chunk sizes must be a multiple of this, except for the last chunk
+    private static final int CHUNK_GRANULARITY = 256 * 1024;
+    private static final int STATUS_RESUME_INCOMPLETE = 308;
+
+    /**
+     * Thrown when the server no longer knows the upload session; the upload has to start again with a new session.
+     */
+    public static class SessionExpiredException extends IOException {
+        SessionExpiredException(String message) {
+            super(message);
+        }
+    }
+
+    private final HttpRequestFactory requestFactory;
+    private final String uploadUrl;
+    private final int chunkSize;
+
+    /**
+     * Creates an uploader for Google Drive.
+     *
+     * @param requestFactory A request factory whose initializer authorizes requests for Drive.
+     * @param chunkSize      The number of bytes sent per request; rounded down to a multiple of 256 KB, minimum 256 KB.
+     */
+    public DriveResumableUpload(HttpRequestFactory requestFactory, int chunkSize) {
+        this(requestFactory, Drive.DEFAULT_ROOT_URL, chunkSize);
+    }
+
+    /**
+     * Creates an uploader that starts its sessions at the Drive API under the given root URL, such as the root URL
+     * of the Drive client in use ({@link Drive#getRootUrl()}).
+     *
+     * @param requestFactory A request factory whose initializer authorizes requests for Drive.
+     * @param rootUrl        The root URL of the Drive API, ending with a slash.
+     * @param chunkSize      The number of bytes sent per request; rounded down to a multiple of 256 KB, minimum 256 KB.
+     */
+    public DriveResumableUpload(HttpRequestFactory requestFactory, String rootUrl, int chunkSize) {
+        this.requestFactory = requestFactory;
+        this.uploadUrl = rootUrl + UPLOAD_PATH;
+        this.chunkSize = Math.max(CHUNK_GRANULARITY, chunkSize / CHUNK_GRANULARITY * CHUNK_GRANULARITY);
+    }
+
+    /**
+     * Starts a session that creates a new file.
+     *
+     * @param metadata The metadata of the new file (name, parents, app properties).
+     * @param mimeType The MIME type of the content.
+     * @param length   The length of the content in bytes.
+     * @return The session URI.
+     * @throws IOException If the session could not be started.
+     */
+    public String startCreate(File metadata, String mimeType, long length) throws IOException {
+        GenericUrl url = new GenericUrl(uploadUrl);
+        url.put("uploadType", "resumable");
+        url.put("fields", "id, parents");
+        return startSession(requestFactory.buildPostRequest(url, new JsonHttpContent(GsonFactory.getDefaultInstance(), metadata)), mimeType, length);
+    }
+
+    /**
+     * Starts a session that replaces the content of an existing file.
+     *
+     * @param fileId   The id of the file to update.
+     * @param metadata Metadata to change along with the content, or null to change only the content.
+     * @param mimeType The MIME type of the content.
+     * @param length   The length of the content in bytes.
+     * @return The session URI.
+     * @throws IOException If the session could not be started.
+     */
+    public String startUpdate(String fileId, File metadata, String mimeType, long length) throws IOException {
+        GenericUrl url = new GenericUrl(uploadUrl + "/" + fileId);
+        url.put("uploadType", "resumable");
+        url.put("fields", "id, parents");
+        HttpRequest request = requestFactory.buildPostRequest(url,
+                new JsonHttpContent(GsonFactory.getDefaultInstance(), metadata != null ? metadata : new File()));
+        // HttpURLConnection does not support PATCH, so it is tunnelled through POST like the Drive client does
+        request.getHeaders().set("X-HTTP-Method-Override", "PATCH");
+        return startSession(request, mimeType, length);
+    }
+
+    private String startSession(HttpRequest request, String mimeType, long length) throws IOException {
+        HttpHeaders headers = request.getHeaders();
+        headers.set("X-Upload-Content-Type", mimeType);
+        headers.set("X-Upload-Content-Length", length);
+        HttpResponse response = request.execute();
+        try {
+            String sessionUri = response.getHeaders().getLocation();
+            if (sessionUri == null) {
+                throw new IOException("Drive did not return an upload session URI");
+            }
+            return sessionUri;
+        } finally {
+            response.disconnect();
+        }
+    }
+
+    /**
+     * Uploads a file to a session, chunk by chunk.
+     *
+     * @param sessionUri The session URI from {@link #startCreate} or {@link #startUpdate}.
+     * @param file       The file to upload; it must not change while the session is open.
+     * @param mimeType   The MIME type of the content, as given when the session was started.
+     * @param resume     true if the session may already hold part of the file, e.g. after a failed attempt.
+     * @return The metadata of the uploaded file (id and parents).
+     * @throws SessionExpiredException If the server no longer knows the session.
+     * @throws IOException             If a request failed; the session stays valid and can be resumed.
+     */
+    public File upload(String sessionUri, java.io.File file, String mimeType, boolean resume) throws IOException {
+        GenericUrl url = new GenericUrl(sessionUri);
+        long length = file.length();
+        long offset = 0;
+
+        if (resume) {
+            // Ask the server how many bytes it has committed
+            HttpRequest request = requestFactory.buildPutRequest(url, new EmptyContent());
+            request.getHeaders().setContentRange("bytes */" + length);
+            ChunkResult result = execute(request);
+            if (result.file != null) {
+                return result.file;
+            }
+            offset = result.nextOffset;
+            Log.d("DriveResumableUpload", "Resuming upload at byte " + offset + " of " + length);
+        }
+
+        while (true) {
+            long chunkLength = Math.min(chunkSize, length - offset);
+            ChunkResult result;
+            try (InputStream chunk = openRange(file, offset, chunkLength)) {
+                HttpRequest request = requestFactory.buildPutRequest(url, new InputStreamContent(mimeType, chunk).setLength(chunkLength));
+                request.getHeaders().setContentRange(chunkLength > 0
+                        ? "bytes " + offset + "-" + (offset + chunkLength - 1) + "/" + length
+                        : "bytes */" + length);
+                result = execute(request);
+            }
+            if (result.file != null) {
+                return result.file;
+            }
+            if (result.nextOffset <= offset && chunkLength > 0) {
+                // The server committed nothing from this chunk; the next run resumes instead of looping here
+                throw new IOException("Upload made no progress at byte " + offset);
+            }
+            offset = result.nextOffset;
+        }
+    }
+
+    // Sends one request of the protocol and interprets the response
+    private ChunkResult execute(HttpRequest request) throws IOException {
+        request.setParser(new JsonObjectParser(GsonFactory.getDefaultInstance()));
+        request.setFollowRedirects(false);
+        request.setThrowExceptionOnExecuteError(false);
+        HttpResponse response = request.execute();
+        try {
+            int status = response.getStatusCode();
+            if (status == 200 || status == 201) {
+                return new ChunkResult(response.parseAs(File.class), 0);
+            }
+            if (status == STATUS_RESUME_INCOMPLETE) {
+                // Range is "bytes=0-<last committed byte>", or absent if nothing was committed yet
+                String range = response.getHeaders().getRange();
+                long nextOffset = range != null ? Long.parseLong(range.substring(range.lastIndexOf('-') + 1)) + 1 : 0;
+                return new ChunkResult(null, nextOffset);
+            }
+            if (status == 404 || status == 410) {
+                throw new SessionExpiredException("Upload session expired with status " + status);
+            }
+            throw new HttpResponseException(response);
+        } finally {
+            response.disconnect();
+        }
+    }
+
+    // Opens a stream over length bytes of the file starting at offset
+    private static InputStream openRange(java.io.File file, long offset, long length) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            in.getChannel().position(offset);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        return new FilterInputStream(in) {
+            private long remaining = length;
+
+            @Override
+            public int read() throws IOException {
+                if (remaining <= 0) {
+                    return -1;
+                }
+                int b = super.read();
+                if (b >= 0) {
+                    remaining--;
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int off, int len) throws IOException {
+                if (remaining <= 0) {
+                    return -1;
+                }
+                int read = super.read(buffer, off, (int) Math.min(len, remaining));
+                if (read > 0) {
+                    remaining -= read;
+                }
+                return read;
+            }
+        };
+    }
+
+    // Outcome of one protocol request: either the finished file, or the offset to continue from
+    private static final class ChunkResult {
+        final File file;
+        final long nextOffset;
+
+        ChunkResult(File file, long nextOffset) {
+            this.file = file;
+            this.nextOffset = nextOffset;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.ciphersafe;
+
+import android.content.Context;
+
+import androidx.annotation.VisibleForTesting;
+
+import com.google.android.gms.auth.api.signin.GoogleSignIn;
+import com.google.android.gms.auth.api.signin.GoogleSignInAccount;
+import com.google.api.client.extensions.android.http.AndroidHttp;
+import com.google.api.client.googleapis.extensions.android.gms.auth.GoogleAccountCredential;
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponseInterceptor;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.DriveScopes;
+
+import java.util.Collections;
+
+/**
+ * DriveServiceHolder keeps one authorized Google Drive client per process.
+ * The HTTP transport, JSON factory, credential and Drive client are built on first use and reused by every
+ * backup run, so runs share pooled connections and the credential's cached OAuth token.
+ * The client is rebuilt only when a different Google account signs in.
+ * Tests can replace the account and both clients with {@link #setClientsForTesting}.
+ * Every request made through either client is timed into the "drive.request" histogram of {@link Metrics}.
+ */
+public final class DriveServiceHolder {
+
+    private static final HttpTransport TRANSPORT = AndroidHttp.newCompatibleTransport();
+    private static final Metrics.Histogram REQUEST_NANOS = Metrics.histogram("drive.request");
+    private static final Metrics.Counter ERROR_RESPONSES = Metrics.counter("drive.errorResponses");
+
+    private static String accountName;
+    private static GoogleAccountCredential credential;
+    private static Drive drive;
+    private static HttpRequestFactory requestFactory;
+    // Set by setClientsForTesting; while set, every account uses the clients installed with it
+    private static GoogleSignInAccount testAccount;
+
+    private DriveServiceHolder() {
+    }
+
+    /**
+     * Returns the Google account that backups are uploaded to and restored from.
+     *
+     * @param context Any context.
+     * @return The last signed-in account, or null if no account is signed in.
+     */
+    public static synchronized GoogleSignInAccount getSignedInAccount(Context context) {
+        return testAccount != null ? testAccount : GoogleSignIn.getLastSignedInAccount(context);
+    }
+
+    /**
+     * Returns the Drive client for the given account.
+     *
+     * @param context Any context; the application context is used for the credential.
+     * @param account The signed-in Google account.
+     * @return The shared Drive client.
+     */
+    public static synchronized Drive getDrive(Context context, GoogleSignInAccount account) {
+        ensureAccount(context, account);
+        return drive;
+    }
+
+    /**
+     * Returns an authorized request factory for the given account, for requests the Drive client does not cover
+     * (see {@link DriveResumableUpload}). It shares the transport and credential with {@link #getDrive}.
+     *
+     * @param context Any context; the application context is used for the credential.
+     * @param account The signed-in Google account.
+     * @return The shared request factory.
+     */
+    public static synchronized HttpRequestFactory getRequestFactory(Context context, GoogleSignInAccount account) {
+        ensureAccount(context, account);
+        return requestFactory;
+    }
+
+    /**
+     * Replaces the signed-in account and the clients, e.g. with clients that send their requests to a local server.
+     *
+     * @param account     The account {@link #getSignedInAccount} returns, or null to restore the real account and clients.
+     * @param testDrive   The Drive client to return for every account.
+     * @param testFactory The request factory to return for every account.
+     */
+    @VisibleForTesting
+    static synchronized void setClientsForTesting(GoogleSignInAccount account, Drive testDrive, HttpRequestFactory testFactory) {
+        testAccount = account;
+        drive = account != null ? testDrive : null;
+        requestFactory = account != null ? testFactory : null;
+        accountName = null;
+    }
+
+    // Builds the credential and clients if there are none yet or they belong to another account
+    private static void ensureAccount(Context context, GoogleSignInAccount account) {
+        if (testAccount != null) {
+            return;
+        }
+        String name = account.getEmail();
+        if (drive != null && name != null && name.equals(accountName)) {
+            return;
+        }
+        credential = GoogleAccountCredential.usingOAuth2(
+                context.getApplicationContext(), Collections.singleton(DriveScopes.DRIVE_FILE));
+        credential.setSelectedAccount(account.getAccount());
+        HttpRequestInitializer initializer = timed(credential);
+        drive = new Drive.Builder(TRANSPORT, GsonFactory.getDefaultInstance(), initializer)
+                .setApplicationName("PasswordManager")
+                .build();
+        requestFactory = TRANSPORT.createRequestFactory(initializer);
+        accountName = name;
+    }
+
+    // Wraps the credential so that every attempt of a request is timed from before authorization until its response
+    // headers arrive; attempts that fail without a response are not recorded
+    private static HttpRequestInitializer timed(HttpRequestInitializer initializer) {
+        return request -> {
+            initializer.initialize(request);
+            HttpExecuteInterceptor interceptor = request.getInterceptor();
+            HttpResponseInterceptor responseInterceptor = request.getResponseInterceptor();
+            long[] startNanos = new long[1];
+            request.setInterceptor(attempt -> {
+                startNanos[0] = System.nanoTime();
+                if (interceptor != null) {
+                    interceptor.intercept(attempt);
+                }
+            });
+            request.setResponseInterceptor(response -> {
+                REQUEST_NANOS.recordSince(startNanos[0]);
+                if (!response.isSuccessStatusCode()) {
+                    ERROR_RESPONSES.increment();
+                }
+                if (responseInterceptor != null) {
+                    responseInterceptor.interceptResponse(response);
+                }
+            });
+        };
+    }
+}
@@ -5,9 +5,20 @@ import android.security.keystore.KeyProperties;
 import android.util.Base64;
 import android.util.Log;
 
+import androidx.annotation.VisibleForTesting;
+
+import java.security.InvalidKeyException;
 import java.security.KeyStore;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.crypto.Cipher;
 import javax.crypto.KeyGenerator;
@@ -22,11 +33,99 @@ public class EncryptionUtils {
     private static final String ALGORITHM = "AES";
     private static final String TRANSFORMATION = "AES/GCM/NoPadding";
     private static final int GCM_TAG_LENGTH = 128;
+    private static final int GCM_IV_LENGTH = 12;
     private static final String KEYSTORE_ALIAS = "CipherSafeKey";
     private static final String KEYSTORE_PROVIDER = "AndroidKeyStore";
 
-    // Generates or retrieves a securely stored AES key using Android's Keystore system
+    // Source of the AES key; the Android Keystore unless a test installed another one with setKeyProvider()
+    private static volatile KeyProvider keyProvider = EncryptionUtils::loadSecretKey;
+
+    // Keystore handle for the AES key, cached for the lifetime of the process; see invalidateSecretKey()
+    private static volatile SecretKey cachedSecretKey;
+
+    // Cipher instances are not thread-safe, so each thread keeps its own and re-initializes it per operation
+    private static final ThreadLocal<Cipher> THREAD_CIPHER = new ThreadLocal<>();
+
+    // Bounded pool used by the batch methods below; one thread per core
+    private static final int BATCH_THREAD_COUNT = Math.max(1, Runtime.getRuntime().availableProcessors());
+    private static final ExecutorService BATCH_EXECUTOR = Executors.newFixedThreadPool(BATCH_THREAD_COUNT);
+
+    // Batches smaller than this are processed on the calling thread, where the pool hand-off would cost more than it saves
+    private static final int MIN_PARALLEL_BATCH_SIZE = 32;
+
+    // Parameters of the password-derived keys used for backup files, which must be readable without this device's Keystore
+    private static final String BACKUP_KEY_ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int BACKUP_KEY_ITERATIONS = 100000;
+    private static final int BACKUP_KEY_LENGTH = 256;
+    public static final int BACKUP_SALT_LENGTH = 16;
+
+    private static final SecureRandom SECURE_RANDOM = new SecureRandom();
+    // Every Keystore encryption and decryption, single or batched, goes through encryptToBytes() and decrypt(byte[])
+    private static final Metrics.Histogram ENCRYPT_NANOS = Metrics.histogram("crypto.encrypt");
+    private static final Metrics.Histogram DECRYPT_NANOS = Metrics.histogram("crypto.decrypt");
+    private static final Metrics.Counter BATCH_FAILURES = Metrics.counter("crypto.batchFailures");
+
+    // Returns the cached AES key, loading it from the Keystore on first use
     private static SecretKey getSecretKey() throws Exception {
+        SecretKey secretKey = cachedSecretKey;
+        if (secretKey == null) {
+            synchronized (EncryptionUtils.class) {
+                secretKey = cachedSecretKey;
+                if (secretKey == null) {
+                    secretKey = keyProvider.loadKey();
+                    cachedSecretKey = secretKey;
+                }
+            }
+        }
+        return secretKey;
+    }
+
+    // Drops the cached key handle so the next operation reloads (or regenerates) it from the Keystore
+    static void invalidateSecretKey() {
+        cachedSecretKey = null;
+    }
+
+    // Loads the AES key that encrypts the vault. The app only uses the Keystore key; local tests, which have no Keystore,
+    // install a software key through setKeyProvider()
+    interface KeyProvider {
+        SecretKey loadKey() throws Exception;
+    }
+
+    // Replaces the source of the AES key, or restores the Keystore if provider is null, and drops the cached key
+    @VisibleForTesting
+    static void setKeyProvider(KeyProvider provider) {
+        synchronized (EncryptionUtils.class) {
+            keyProvider = provider != null ? provider : EncryptionUtils::loadSecretKey;
+            invalidateSecretKey();
+        }
+    }
+
+    // Returns this thread's Cipher instance, creating it on first use
+    private static Cipher getCipher() throws Exception {
+        Cipher cipher = THREAD_CIPHER.get();
+        if (cipher == null) {
+            cipher = Cipher.getInstance(TRANSFORMATION);
+            THREAD_CIPHER.set(cipher);
+        }
+        return cipher;
+    }
+
+    // Initializes this thread's Cipher with the cached key. If the Keystore rejects the cached handle
+    // (e.g. the key was deleted or permanently invalidated), the cache is dropped and the init is retried once.
+    private static Cipher initCipher(int mode, GCMParameterSpec gcmSpec) throws Exception {
+        Cipher cipher = getCipher();
+        try {
+            cipher.init(mode, getSecretKey(), gcmSpec);
+        } catch (InvalidKeyException e) {
+            Log.w("EncryptionUtils", "Cached key rejected, reloading it from the Keystore", e);
+            invalidateSecretKey();
+            cipher.init(mode, getSecretKey(), gcmSpec);
+        }
+        return cipher;
+    }
+
+    // Generates or retrieves a securely stored AES key using Android's Keystore system
+    private static SecretKey loadSecretKey() throws Exception {
         KeyStore keyStore = KeyStore.getInstance(KEYSTORE_PROVIDER);
         keyStore.load(null);
 
@@ -47,47 +146,243 @@ public class EncryptionUtils {
         return ((KeyStore.SecretKeyEntry) keyStore.getEntry(KEYSTORE_ALIAS, null)).getSecretKey();
     }
 
-    // Encrypts data with AES GCM and returns the encrypted string in Base64 format
-    public static String encrypt(String data) throws Exception {
-        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
-        SecretKey secretKey = getSecretKey();
-
+    // Encrypts data with AES GCM and returns the IV followed by the ciphertext, as stored in the Password table
+    public static byte[] encryptToBytes(String data) throws Exception {
+        long startNanos = System.nanoTime();
         // Initialize Cipher and let it generate the IV automatically
-        cipher.init(Cipher.ENCRYPT_MODE, secretKey);
+        Cipher cipher = initCipher(Cipher.ENCRYPT_MODE, null);
 
         // Get the generated IV
         byte[] iv = cipher.getIV();
+        byte[] plainBytes = data.getBytes();
 
-        byte[] encryptedBytes = cipher.doFinal(data.getBytes());
-
-        // Combine IV and encrypted data
-        byte[] ivAndEncryptedData = new byte[iv.length + encryptedBytes.length];
+        // Write the IV and the encrypted data into a single buffer
+        byte[] ivAndEncryptedData = new byte[iv.length + cipher.getOutputSize(plainBytes.length)];
         System.arraycopy(iv, 0, ivAndEncryptedData, 0, iv.length);
-        System.arraycopy(encryptedBytes, 0, ivAndEncryptedData, iv.length, encryptedBytes.length);
+        int encryptedLength = cipher.doFinal(plainBytes, 0, plainBytes.length, ivAndEncryptedData, iv.length);
+        ENCRYPT_NANOS.recordSince(startNanos);
+        if (iv.length + encryptedLength != ivAndEncryptedData.length) {
+            byte[] trimmed = new byte[iv.length + encryptedLength];
+            System.arraycopy(ivAndEncryptedData, 0, trimmed, 0, trimmed.length);
+            return trimmed;
+        }
+        return ivAndEncryptedData;
+    }
+
+    // Decrypts the IV and ciphertext produced by encryptToBytes() using AES GCM, without copying the input
+    public static String decrypt(byte[] ivAndEncryptedData) throws Exception {
+        long startNanos = System.nanoTime();
+        // The IV is the first 12 bytes, the encrypted data is the rest
+        GCMParameterSpec gcmSpec = new GCMParameterSpec(GCM_TAG_LENGTH, ivAndEncryptedData, 0, GCM_IV_LENGTH);
 
-        return Base64.encodeToString(ivAndEncryptedData, Base64.DEFAULT);
+        // Initialize Cipher for decryption using the IV
+        Cipher cipher = initCipher(Cipher.DECRYPT_MODE, gcmSpec);
+
+        byte[] decryptedBytes = cipher.doFinal(ivAndEncryptedData, GCM_IV_LENGTH, ivAndEncryptedData.length - GCM_IV_LENGTH);
+        DECRYPT_NANOS.recordSince(startNanos);
+        return new String(decryptedBytes);
+    }
+
+    // Encrypts data with AES GCM and returns the encrypted string in Base64 format
+    public static String encrypt(String data) throws Exception {
+        return Base64.encodeToString(encryptToBytes(data), Base64.DEFAULT);
     }
 
     // Decrypts the Base64 encoded encrypted string using AES GCM
     public static String decrypt(String encryptedData) throws Exception {
-        byte[] ivAndEncryptedData = Base64.decode(encryptedData, Base64.DEFAULT);
+        return decrypt(Base64.decode(encryptedData, Base64.DEFAULT));
+    }
+
+    // Returns a new random salt for deriveBackupKey()
+    public static byte[] newBackupSalt() {
+        byte[] salt = new byte[BACKUP_SALT_LENGTH];
+        SECURE_RANDOM.nextBytes(salt);
+        return salt;
+    }
+
+    // Derives an AES key from the backup password and salt with PBKDF2. This is deliberately slow,
+    // so callers derive the key once per file and not once per record.
+    public static SecretKey deriveBackupKey(String password, byte[] salt) throws Exception {
+        PBEKeySpec keySpec = new PBEKeySpec(password.toCharArray(), salt, BACKUP_KEY_ITERATIONS, BACKUP_KEY_LENGTH);
+        try {
+            byte[] keyBytes = SecretKeyFactory.getInstance(BACKUP_KEY_ALGORITHM).generateSecret(keySpec).getEncoded();
+            return new SecretKeySpec(keyBytes, ALGORITHM);
+        } finally {
+            keySpec.clearPassword();
+        }
+    }
 
-        // Extract the IV (first 12 bytes)
-        byte[] iv = new byte[12];
-        System.arraycopy(ivAndEncryptedData, 0, iv, 0, iv.length);
+    // Encrypts data with AES GCM under the given key and returns the IV followed by the ciphertext
+    public static byte[] encryptWithKey(SecretKey key, byte[] plainBytes) throws Exception {
+        return encryptWithKey(key, plainBytes, 0, plainBytes.length, null);
+    }
 
-        // Extract the encrypted data
-        byte[] encryptedBytes = new byte[ivAndEncryptedData.length - iv.length];
-        System.arraycopy(ivAndEncryptedData, iv.length, encryptedBytes, 0, encryptedBytes.length);
+    // Encrypts a range of data with AES GCM under the given key, authenticating the optional associated data with it.
+    // Returns the IV followed by the ciphertext.
+    public static byte[] encryptWithKey(SecretKey key, byte[] plainBytes, int offset, int length, byte[] associatedData) throws Exception {
+        // Unlike Keystore keys, a software key does not generate its own IV, so a fresh random one is used per call
+        byte[] iv = new byte[GCM_IV_LENGTH];
+        SECURE_RANDOM.nextBytes(iv);
+        Cipher cipher = getCipher();
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_LENGTH, iv));
+        if (associatedData != null) {
+            cipher.updateAAD(associatedData);
+        }
 
-        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
-        SecretKey secretKey = getSecretKey();
-        GCMParameterSpec gcmSpec = new GCMParameterSpec(GCM_TAG_LENGTH, iv);
+        byte[] ivAndEncryptedData = new byte[iv.length + cipher.getOutputSize(length)];
+        System.arraycopy(iv, 0, ivAndEncryptedData, 0, iv.length);
+        cipher.doFinal(plainBytes, offset, length, ivAndEncryptedData, iv.length);
+        return ivAndEncryptedData;
+    }
 
-        // Initialize Cipher for decryption using the extracted IV
-        cipher.init(Cipher.DECRYPT_MODE, secretKey, gcmSpec);
+    // Decrypts the IV and ciphertext produced by encryptWithKey(); fails if the key is wrong or the data was modified
+    public static byte[] decryptWithKey(SecretKey key, byte[] ivAndEncryptedData) throws Exception {
+        return decryptWithKey(key, ivAndEncryptedData, 0, ivAndEncryptedData.length, null);
+    }
 
-        byte[] decryptedBytes = cipher.doFinal(encryptedBytes);
-        return new String(decryptedBytes);
+    // Decrypts a range holding the IV and ciphertext produced by encryptWithKey(); the associated data must match the one used to encrypt
+    public static byte[] decryptWithKey(SecretKey key, byte[] ivAndEncryptedData, int offset, int length, byte[] associatedData) throws Exception {
+        GCMParameterSpec gcmSpec = new GCMParameterSpec(GCM_TAG_LENGTH, ivAndEncryptedData, offset, GCM_IV_LENGTH);
+        Cipher cipher = getCipher();
+        cipher.init(Cipher.DECRYPT_MODE, key, gcmSpec);
+        if (associatedData != null) {
+            cipher.updateAAD(associatedData);
+        }
+        return cipher.doFinal(ivAndEncryptedData, offset + GCM_IV_LENGTH, length - GCM_IV_LENGTH);
+    }
+
+    // Decrypts a list of values produced by encryptToBytes() across the batch thread pool.
+    // Results keep the order of the input. A failing item is recorded in the result and does not abort the batch.
+    public static BatchResult decryptAll(List<byte[]> encryptedData) throws InterruptedException {
+        int size = encryptedData.size();
+        String[] values = new String[size];
+        Exception[] errors = new Exception[size];
+
+        if (size < MIN_PARALLEL_BATCH_SIZE || BATCH_THREAD_COUNT == 1) {
+            decryptRange(encryptedData, 0, size, values, errors);
+            return new BatchResult(values, errors);
+        }
+
+        runInRanges(size, (from, to) -> decryptRange(encryptedData, from, to, values, errors));
+        return new BatchResult(values, errors);
+    }
+
+    // Decrypts a list of values produced by encryptToBytes() on one thread of the batch pool and returns without waiting,
+    // so a caller can keep several batches in flight while it consumes earlier ones. Failures are recorded as in decryptAll().
+    public static Future<BatchResult> submitDecryptAll(List<byte[]> encryptedData) {
+        return BATCH_EXECUTOR.submit(() -> {
+            int size = encryptedData.size();
+            String[] values = new String[size];
+            Exception[] errors = new Exception[size];
+            decryptRange(encryptedData, 0, size, values, errors);
+            return new BatchResult(values, errors);
+        });
+    }
+
+    // Encrypts a list of values with encryptToBytes() across the batch thread pool, e.g. entries restored from a backup.
+    // Results keep the order of the input. Unlike decryption, a failure here means the Keystore key is unusable, so it aborts the batch.
+    public static List<byte[]> encryptAll(List<String> plainData) throws Exception {
+        int size = plainData.size();
+        byte[][] values = new byte[size][];
+        Exception[] errors = new Exception[size];
+
+        if (size < MIN_PARALLEL_BATCH_SIZE || BATCH_THREAD_COUNT == 1) {
+            encryptRange(plainData, 0, size, values, errors);
+        } else {
+            runInRanges(size, (from, to) -> encryptRange(plainData, from, to, values, errors));
+        }
+        for (Exception error : errors) {
+            if (error != null) {
+                throw error;
+            }
+        }
+        List<byte[]> result = new ArrayList<>(size);
+        Collections.addAll(result, values);
+        return result;
+    }
+
+    // Splits [0, size) into one contiguous range per thread and runs the task on the batch pool; each range writes only its own slots
+    private static void runInRanges(int size, RangeTask task) throws InterruptedException {
+        int rangeSize = (size + BATCH_THREAD_COUNT - 1) / BATCH_THREAD_COUNT;
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int start = 0; start < size; start += rangeSize) {
+            int from = start;
+            int to = Math.min(size, start + rangeSize);
+            tasks.add(() -> {
+                task.run(from, to);
+                return null;
+            });
+        }
+        for (Future<Void> future : BATCH_EXECUTOR.invokeAll(tasks)) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                // The range tasks record per-item failures themselves, so this only happens on an Error
+                throw new IllegalStateException("Batch task failed", e.getCause());
+            }
+        }
+    }
+
+    private interface RangeTask {
+        void run(int from, int to);
+    }
+
+    private static void decryptRange(List<byte[]> encryptedData, int from, int to, String[] values, Exception[] errors) {
+        for (int i = from; i < to; i++) {
+            try {
+                values[i] = decrypt(encryptedData.get(i));
+            } catch (Exception e) {
+                errors[i] = e;
+                BATCH_FAILURES.increment();
+            }
+        }
+    }
+
+    private static void encryptRange(List<String> plainData, int from, int to, byte[][] values, Exception[] errors) {
+        for (int i = from; i < to; i++) {
+            try {
+                values[i] = encryptToBytes(plainData.get(i));
+            } catch (Exception e) {
+                errors[i] = e;
+                BATCH_FAILURES.increment();
+            }
+        }
+    }
+
+    // Result of decryptAll(): the decrypted value or the failure for every input item, in input order
+    public static final class BatchResult {
+        private final String[] values;
+        private final Exception[] errors;
+
+        private BatchResult(String[] values, Exception[] errors) {
+            this.values = values;
+            this.errors = errors;
+        }
+
+        // Number of items in the batch
+        public int size() {
+            return values.length;
+        }
+
+        // Decrypted value of the item at the given index, or null if its decryption failed
+        public String get(int index) {
+            return values[index];
+        }
+
+        // Failure of the item at the given index, or null if it was decrypted successfully
+        public Exception getError(int index) {
+            return errors[index];
+        }
+
+        // Number of items whose decryption failed
+        public int getFailureCount() {
+            int count = 0;
+            for (Exception error : errors) {
+                if (error != null) {
+                    count++;
+                }
+            }
+            return count;
+        }
     }
 }
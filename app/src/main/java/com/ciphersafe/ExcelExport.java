@@ -0,0 +1,82 @@
+package com.ciphersafe;
+
+import org.apache.poi.poifs.crypt.EncryptionInfo;
+import org.apache.poi.poifs.crypt.EncryptionMode;
+import org.apache.poi.poifs.crypt.Encryptor;
+import org.apache.poi.poifs.filesystem.POIFSFileSystem;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+
+/**
+ * ExcelExport writes the vault as a password-protected Excel workbook (.xlsx), with columns for the account name,
+ * username, decrypted password and notes.
+ * <p>
+ * Rows are streamed from {@link ExportPipeline} into a streaming workbook that keeps only {@link #ROW_WINDOW} rows in
+ * memory. The encrypted workbook is stored in an OLE2 container, which POI builds in a temporary file rather than on
+ * the heap and which is then copied to the output, so memory use does not grow with the vault.
+ */
+final class ExcelExport {
+
+    // Rows of the workbook kept in memory; older rows are flushed to a temporary file
+    static final int ROW_WINDOW = 100;
+
+    private ExcelExport() {
+    }
+
+    /**
+     * Exports the whole vault as an encrypted workbook. Must not be called on the main thread.
+     * Entries whose password cannot be decrypted are exported with "[Decryption failed]" and counted in the result.
+     *
+     * @param passwordDao The DAO to read the vault from.
+     * @param password    The password that opens the workbook.
+     * @param tempDir     The directory for the temporary files, such as the cache directory.
+     * @param out         The stream to write the workbook to; it is not closed.
+     * @return The number of entries exported and how long it took.
+     * @throws IOException If the vault could not be read or the workbook could not be encrypted or written.
+     */
+    static ExportPipeline.Stats write(PasswordDao passwordDao, String password, File tempDir, OutputStream out) throws IOException {
+        SXSSFWorkbook workbook = new SXSSFWorkbook(ROW_WINDOW);
+        File container = File.createTempFile("export", ".xlsx", tempDir);
+        try {
+            Sheet sheet = workbook.createSheet("Passwords");
+
+            Row headerRow = sheet.createRow(0);
+            headerRow.createCell(0).setCellValue("Account Name");
+            headerRow.createCell(1).setCellValue("Username");
+            headerRow.createCell(2).setCellValue("Password");
+            headerRow.createCell(3).setCellValue("Notes");
+
+            ExportPipeline.Stats stats = ExportPipeline.run(passwordDao, (id, accountName, username, decryptedPassword, notes) -> {
+                Row row = sheet.createRow(sheet.getLastRowNum() + 1);
+                row.createCell(0).setCellValue(accountName);
+                row.createCell(1).setCellValue(username);
+                row.createCell(2).setCellValue(decryptedPassword != null ? decryptedPassword : "[Decryption failed]");
+                row.createCell(3).setCellValue(notes);
+            });
+
+            try (POIFSFileSystem fs = POIFSFileSystem.create(container)) {
+                Encryptor encryptor = new EncryptionInfo(EncryptionMode.standard).getEncryptor();
+                encryptor.confirmPassword(password);
+                try (OutputStream encrypted = encryptor.getDataStream(fs)) {
+                    workbook.write(encrypted);
+                }
+                fs.writeFilesystem();
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Failed to encrypt the workbook", e);
+            }
+            Files.copy(container.toPath(), out);
+            return stats;
+        } finally {
+            // Deletes the temporary file backing the streamed rows
+            workbook.dispose();
+            container.delete();
+        }
+    }
+}
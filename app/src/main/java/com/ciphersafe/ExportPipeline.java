@@ -0,0 +1,187 @@
+package com.ciphersafe;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * ExportPipeline streams every vault entry, with its password decrypted, into an {@link EntrySink}.
+ * It is the export engine behind both the backups uploaded by {@link BackupWorker} and the files exported from
+ * {@link MainActivity}.
+ * <p>
+ * The export runs as three overlapping stages:
+ * <ol>
+ *     <li>a reader thread pages rows out of Room in id order, {@link #PAGE_SIZE} at a time;</li>
+ *     <li>each page is decrypted on the {@link EncryptionUtils} batch pool, several pages at once;</li>
+ *     <li>the calling thread takes the pages in order and hands their entries to the sink, which serializes,
+ *     compresses and encrypts them.</li>
+ * </ol>
+ * At most {@link #PAGES_IN_FLIGHT} pages sit between the reader and the writer. When the writer falls behind,
+ * the reader blocks, so memory use is bounded by the page size and not by the vault size.
+ */
+public final class ExportPipeline {
+
+    // Rows read from the database and decrypted per page
+    static final int PAGE_SIZE = 500;
+    // Pages read ahead of the writer; enough to keep every decryption thread busy while the writer works
+    private static final int PAGES_IN_FLIGHT = 4;
+    private static final String TAG = "ExportPipeline";
+    private static final Metrics.Histogram EXPORT_NANOS = Metrics.histogram("export.run");
+    private static final Metrics.Histogram WRITER_WAIT_NANOS = Metrics.histogram("export.writerWait");
+    private static final Metrics.Histogram PAGE_READ_NANOS = Metrics.histogram("dao.exportPage");
+    private static final Metrics.Counter EXPORTED_ENTRIES = Metrics.counter("export.entries");
+    private static final Metrics.Counter UNDECRYPTABLE_ENTRIES = Metrics.counter("export.undecryptable");
+
+    private ExportPipeline() {
+    }
+
+    /**
+     * Receives the exported entries, in id order, on the thread that called {@link #run}.
+     */
+    public interface EntrySink {
+        /**
+         * Writes one entry.
+         *
+         * @param id          The id of the entry.
+         * @param accountName The account name.
+         * @param username    The username.
+         * @param password    The plain-text password, or null if it could not be decrypted.
+         * @param notes       The notes.
+         * @throws IOException If the entry could not be written; the export stops.
+         */
+        void write(int id, String accountName, String username, String password, String notes) throws IOException;
+    }
+
+    /**
+     * The outcome of an export.
+     */
+    public static final class Stats {
+        public final int entryCount;
+        public final int failureCount;
+        public final long elapsedMillis;
+        // Time the writer spent waiting for decrypted pages; close to elapsedMillis means the export is bound by reading and decrypting
+        public final long writerWaitMillis;
+
+        Stats(int entryCount, int failureCount, long elapsedMillis, long writerWaitMillis) {
+            this.entryCount = entryCount;
+            this.failureCount = failureCount;
+            this.elapsedMillis = elapsedMillis;
+            this.writerWaitMillis = writerWaitMillis;
+        }
+
+        @Override
+        public String toString() {
+            return entryCount + " entries (" + failureCount + " not decryptable) in " + elapsedMillis
+                    + " ms, writer waited " + writerWaitMillis + " ms";
+        }
+    }
+
+    // A page of rows with its pending decryption, the end of the stream, or a failure of the reader
+    private static final class Page {
+        static final Page END = new Page(Collections.<Password>emptyList(), null, null);
+
+        final List<Password> rows;
+        final Future<EncryptionUtils.BatchResult> decrypted;
+        final Exception error;
+
+        Page(List<Password> rows, Future<EncryptionUtils.BatchResult> decrypted, Exception error) {
+            this.rows = rows;
+            this.decrypted = decrypted;
+            this.error = error;
+        }
+    }
+
+    /**
+     * Exports the whole vault into a sink. Must not be called on the main thread.
+     * Entries whose password cannot be decrypted are passed with a null password and counted in the result.
+     *
+     * @param passwordDao The DAO to read the vault from.
+     * @param sink        The sink receiving the entries.
+     * @return The number of entries exported and how long it took.
+     * @throws IOException If the vault could not be read or the sink failed.
+     */
+    public static Stats run(PasswordDao passwordDao, EntrySink sink) throws IOException {
+        long startTime = System.nanoTime();
+        BlockingQueue<Page> pages = new ArrayBlockingQueue<>(PAGES_IN_FLIGHT);
+        Thread reader = new Thread(() -> readPages(passwordDao, pages), "ExportPipeline-reader");
+        reader.start();
+
+        int entryCount = 0;
+        int failureCount = 0;
+        long waitNanos = 0;
+        try {
+            while (true) {
+                long waitStart = System.nanoTime();
+                Page page = pages.take();
+                if (page == Page.END) {
+                    break;
+                }
+                if (page.error != null) {
+                    throw new IOException("Failed to read the vault", page.error);
+                }
+                EncryptionUtils.BatchResult decrypted = page.decrypted.get();
+                waitNanos += System.nanoTime() - waitStart;
+
+                failureCount += decrypted.getFailureCount();
+                for (int i = 0; i < page.rows.size(); i++) {
+                    Password row = page.rows.get(i);
+                    sink.write(row.id, row.accountName, row.username, decrypted.get(i), row.notes);
+                }
+                entryCount += page.rows.size();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while exporting", e);
+        } catch (ExecutionException e) {
+            // Decryption records per-item failures itself, so this only happens on an Error
+            throw new IllegalStateException("Page decryption failed", e.getCause());
+        } finally {
+            // Stops the reader if the writer gave up early; it exits when its next put() is interrupted
+            reader.interrupt();
+        }
+
+        Stats stats = new Stats(entryCount, failureCount, (System.nanoTime() - startTime) / 1000000, waitNanos / 1000000);
+        EXPORT_NANOS.recordSince(startTime);
+        WRITER_WAIT_NANOS.record(waitNanos);
+        EXPORTED_ENTRIES.add(entryCount);
+        UNDECRYPTABLE_ENTRIES.add(failureCount);
+        Log.d(TAG, "Exported " + stats);
+        return stats;
+    }
+
+    // Reader stage: pages the vault in id order and starts decrypting each page, blocking while PAGES_IN_FLIGHT pages wait for the writer
+    private static void readPages(PasswordDao passwordDao, BlockingQueue<Page> pages) {
+        try {
+            try {
+                int lastId = 0;
+                List<Password> rows;
+                do {
+                    long readStart = System.nanoTime();
+                    rows = passwordDao.getPage(lastId, PAGE_SIZE);
+                    PAGE_READ_NANOS.recordSince(readStart);
+                    if (rows.isEmpty()) {
+                        break;
+                    }
+                    List<byte[]> encryptedPasswords = new ArrayList<>(rows.size());
+                    for (Password row : rows) {
+                        encryptedPasswords.add(row.password);
+                    }
+                    pages.put(new Page(rows, EncryptionUtils.submitDecryptAll(encryptedPasswords), null));
+                    lastId = rows.get(rows.size() - 1).id;
+                } while (rows.size() == PAGE_SIZE);
+                pages.put(Page.END);
+            } catch (RuntimeException e) {
+                pages.put(new Page(null, null, e));
+            }
+        } catch (InterruptedException e) {
+            // The writer stopped; nobody is waiting for more pages
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package com.ciphersafe;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * LogSegmentStore keeps one debug log as a bounded set of fixed-size, memory-mapped segment files.
+ * <p>
+ * A segment is {@link #SEGMENT_SIZE} bytes: a header (magic, format version, creation time, and the device information
+ * at that time) followed by records of (message length, timestamp, UTF-8 message). The rest of the file is zero, and a
+ * zero length marks the end of the records. Appending writes into the mapping, so a record reaches the file even if
+ * the process dies right after; the length is written last, so a reader never sees a half-written record.
+ * <p>
+ * A new segment is started when the current one is full or older than {@link #MAX_SEGMENT_AGE_MILLIS}, and only the
+ * newest {@link #MAX_SEGMENTS} segments are kept, so the log never grows beyond MAX_SEGMENTS * SEGMENT_SIZE bytes.
+ * Appending is only safe from one thread; rendering may run on another.
+ */
+final class LogSegmentStore {
+
+    private static final int MAGIC = 0x43534C31; // "CSL1"
+    private static final int FORMAT_VERSION = 1;
+    static final int SEGMENT_SIZE = 256 * 1024;
+    static final int MAX_SEGMENTS = 8;
+    static final long MAX_SEGMENT_AGE_MILLIS = 24L * 60 * 60 * 1000;
+    // Length and timestamp in front of every message
+    private static final int RECORD_OVERHEAD = 4 + 8;
+    // Longest message kept; longer ones are cut, so one message cannot fill a segment
+    private static final int MAX_MESSAGE_BYTES = 16 * 1024;
+    private static final int MAX_HEADER_BYTES = 4 * 1024;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    /**
+     * Supplies the text stored in the header of a new segment.
+     */
+    interface HeaderSource {
+        String getHeader();
+    }
+
+    private final File directory;
+    private final HeaderSource headerSource;
+    private MappedByteBuffer current;
+    private long currentCreatedAt;
+
+    /**
+     * Creates a store; no file is touched until the first append.
+     *
+     * @param directory    The directory holding this log's segments and nothing else.
+     * @param headerSource The source of the header text of new segments, e.g. the device information; null if the
+     *                     store is only used to render.
+     */
+    LogSegmentStore(File directory, HeaderSource headerSource) {
+        this.directory = directory;
+        this.headerSource = headerSource;
+    }
+
+    /**
+     * Appends a message, starting a new segment first if the current one is full or too old.
+     *
+     * @param timeMillis The time of the message.
+     * @param message    The message.
+     * @throws IOException If a segment could not be created or mapped.
+     */
+    void append(long timeMillis, String message) throws IOException {
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_MESSAGE_BYTES) {
+            bytes = Arrays.copyOf(bytes, MAX_MESSAGE_BYTES);
+        }
+        if (current == null) {
+            openLatestSegment(timeMillis);
+        }
+        if (current.remaining() < RECORD_OVERHEAD + bytes.length || timeMillis - currentCreatedAt > MAX_SEGMENT_AGE_MILLIS) {
+            startSegment(timeMillis);
+        }
+        int position = current.position();
+        current.putLong(position + 4, timeMillis);
+        current.position(position + RECORD_OVERHEAD);
+        current.put(bytes);
+        current.putInt(position, bytes.length);
+    }
+
+    /**
+     * Renders every segment, oldest first, as text: each segment's header, then one line per message.
+     *
+     * @param out The writer to render to; it is not closed.
+     * @throws IOException If writing fails. Segments that cannot be read are skipped.
+     */
+    void render(Writer out) throws IOException {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.getDefault());
+        Date date = new Date();
+        for (File segment : listSegments()) {
+            ByteBuffer buffer;
+            try {
+                buffer = readSegment(segment);
+            } catch (IOException e) {
+                // Deleted by a rotation since it was listed, or not a complete segment
+                continue;
+            }
+            String header = readHeader(buffer);
+            if (header == null) {
+                continue;
+            }
+            date.setTime(buffer.getLong(8));
+            out.write("===== Log segment started " + dateFormat.format(date) + " =====\n");
+            out.write(header);
+            while (buffer.remaining() >= RECORD_OVERHEAD) {
+                int length = buffer.getInt();
+                if (length <= 0 || length > buffer.remaining() - RECORD_OVERHEAD + 4) {
+                    break;
+                }
+                date.setTime(buffer.getLong());
+                byte[] bytes = new byte[length];
+                buffer.get(bytes);
+                out.write('[');
+                out.write(dateFormat.format(date));
+                out.write("] ");
+                out.write(new String(bytes, StandardCharsets.UTF_8));
+                out.write('\n');
+            }
+        }
+    }
+
+    // Maps the newest segment and positions it after its last record, or starts a new segment if there is none usable
+    private void openLatestSegment(long timeMillis) throws IOException {
+        File[] segments = listSegments();
+        if (segments.length > 0) {
+            File latest = segments[segments.length - 1];
+            if (latest.length() == SEGMENT_SIZE) {
+                MappedByteBuffer buffer = map(latest);
+                if (readHeader(buffer) != null) {
+                    while (buffer.remaining() >= RECORD_OVERHEAD) {
+                        int length = buffer.getInt(buffer.position());
+                        if (length <= 0 || length > buffer.remaining() - RECORD_OVERHEAD) {
+                            break;
+                        }
+                        buffer.position(buffer.position() + RECORD_OVERHEAD + length);
+                    }
+                    current = buffer;
+                    currentCreatedAt = buffer.getLong(8);
+                    return;
+                }
+            }
+        }
+        startSegment(timeMillis);
+    }
+
+    // Creates, maps and fills in the header of a new segment, then deletes the segments beyond MAX_SEGMENTS
+    private void startSegment(long timeMillis) throws IOException {
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Failed to create log directory " + directory);
+        }
+        long createdAt = timeMillis;
+        File file = new File(directory, segmentName(createdAt));
+        while (file.exists()) {
+            file = new File(directory, segmentName(++createdAt));
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(SEGMENT_SIZE);
+        }
+        MappedByteBuffer buffer = map(file);
+        byte[] header = headerSource.getHeader().getBytes(StandardCharsets.UTF_8);
+        if (header.length > MAX_HEADER_BYTES) {
+            header = Arrays.copyOf(header, MAX_HEADER_BYTES);
+        }
+        buffer.putInt(MAGIC).putInt(FORMAT_VERSION).putLong(timeMillis).putInt(header.length).put(header);
+        current = buffer;
+        currentCreatedAt = timeMillis;
+
+        File[] segments = listSegments();
+        for (int i = 0; i < segments.length - MAX_SEGMENTS; i++) {
+            if (!segments[i].delete()) {
+                break;
+            }
+        }
+    }
+
+    // Reads and checks a segment header; returns its text with the buffer positioned at the first record, or null if invalid
+    private static String readHeader(ByteBuffer buffer) {
+        if (buffer.remaining() < 20 || buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+            return null;
+        }
+        buffer.getLong();
+        int length = buffer.getInt();
+        if (length < 0 || length > MAX_HEADER_BYTES || length > buffer.remaining()) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static MappedByteBuffer map(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            // The mapping stays valid after the channel is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+        }
+    }
+
+    private static ByteBuffer readSegment(File file) throws IOException {
+        byte[] bytes = new byte[SEGMENT_SIZE];
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            in.readFully(bytes);
+        }
+        return ByteBuffer.wrap(bytes);
+    }
+
+    // Segments of this log, oldest first; the zero-padded creation time in the name sorts them
+    private File[] listSegments() {
+        File[] segments = directory.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        if (segments == null) {
+            return new File[0];
+        }
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    private static String segmentName(long createdAt) {
+        return String.format(Locale.US, "%s%019d%s", SEGMENT_PREFIX, createdAt, SEGMENT_SUFFIX);
+    }
+}
@@ -7,16 +7,18 @@ import android.content.SharedPreferences;
 import android.net.Uri;
 import android.os.Bundle;
 import android.provider.MediaStore;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.util.Log;
 import android.view.View;
 
 import android.widget.Button;
 import android.widget.EditText;
 import android.widget.ImageView;
-import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
@@ -25,12 +27,15 @@ import androidx.biometric.BiometricPrompt;
 import androidx.core.content.ContextCompat;
 import androidx.fragment.app.FragmentManager;
 import androidx.fragment.app.FragmentTransaction;
-import androidx.room.Room;
-
-import org.apache.poi.poifs.crypt.EncryptionInfo;
-import org.apache.poi.poifs.crypt.EncryptionMode;
-import org.apache.poi.poifs.crypt.Encryptor;
-import org.apache.poi.poifs.filesystem.POIFSFileSystem;
+import androidx.lifecycle.LiveData;
+import androidx.recyclerview.widget.DividerItemDecoration;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+import androidx.work.Data;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.WorkInfo;
+import androidx.work.WorkManager;
 
 import com.google.android.gms.auth.api.signin.GoogleSignIn;
 import com.google.android.gms.auth.api.signin.GoogleSignInAccount;
@@ -50,25 +55,21 @@ import com.google.api.client.json.gson.GsonFactory;
 import com.google.api.services.drive.Drive;
 import com.google.api.services.drive.DriveScopes;
 
-import org.apache.poi.ss.usermodel.Row;
-import org.apache.poi.ss.usermodel.Sheet;
-import org.apache.poi.ss.usermodel.Workbook;
-import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 
-
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.text.DateFormat;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Date;
 import java.util.List;
-import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.Callable;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
 
-import androidx.work.Data;
-import androidx.work.PeriodicWorkRequest;
-import androidx.work.WorkManager;
-import java.util.concurrent.TimeUnit;
 import com.android.billingclient.api.*;
 /**
  * MainActivity class for managing CipherSafe password manager's primary functions.
@@ -76,17 +77,36 @@ import com.android.billingclient.api.*;
  */
 public class MainActivity extends AppCompatActivity {
     private static final int REQUEST_SIGN_IN = 1001;
-    private ListView passwordListView;
+    private static final int REQUEST_RESTORE_FILE = 1002;
+    private static final int SEARCH_RESULT_LIMIT = 200;
+    private static final int LIST_PAGE_SIZE = 50;
+    private static final int LIST_PREFETCH_DISTANCE = 10;
+    private static final Metrics.Histogram UI_DATABASE_NANOS = Metrics.histogram("dao.ui");
+    private static final Metrics.Counter UI_DATABASE_ERRORS = Metrics.counter("dao.uiErrors");
+    // Exports read the whole vault; they run one at a time on their own thread so they neither hold a query thread
+    // that LiveData needs nor count as a "dao.ui" operation
+    private static final ExecutorService EXPORT_EXECUTOR = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "Export");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private RecyclerView passwordListView;
+    private CustomAdapter passwordAdapter;
+    private LiveData<List<PasswordSummary>> passwordListSource;
+    private VaultListLoader passwordListLoader;
+    private EditText searchEditText;
     private AppDatabase db;
-    private BillingClient billingClient;
+    // Set on a start-up thread; null until billing is set up
+    private volatile BillingClient billingClient;
     ImageView cloudImage, downloadImage, addPasswordImage;
     private static final String SUBSCRIPTION_ID = "google_drive_backup_subscription";
     private GoogleSignInClient googleSignInClient;
     private Drive googleDriveService;
     TextView cipherSafeTextView;
     /**
-     * Called when the activity is first created. Sets up views, initializes the database,
-     * starts the billing connection, and checks the subscription status.
+     * Called when the activity is first created. Sets up views and the database, and decides between first use
+     * and authentication with a query on the database's executor. Billing is set up on a background thread
+     * through {@link AppStartup}, and the subscription status is checked once it is connected.
      *
      * @param savedInstanceState If the activity is being re-initialized after being previously shut down,
      *                           this Bundle contains the data it most recently supplied.
@@ -94,6 +114,7 @@ public class MainActivity extends AppCompatActivity {
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        AppStartup.onActivityCreated(savedInstanceState);
         saveDebugLogToFile("onCreate: App started.");
         SharedPreferences sharedPreferences = getSharedPreferences("AppPreferences", MODE_PRIVATE);
         boolean isPolicyAccepted = sharedPreferences.getBoolean("PolicyAccepted", false);
@@ -110,11 +131,11 @@ public class MainActivity extends AppCompatActivity {
         FragmentManager fragmentManager = getSupportFragmentManager();
         FragmentTransaction fragmentTransaction = fragmentManager.beginTransaction();
 
-        setupBillingClient();
-        startBillingConnection();
-        querySubscriptionStatus();
-        saveDebugLogToFile("onCreate: Billing client setup and subscription status queried.");
-
+        // Nothing on screen depends on billing, so it connects in the background; see startBillingConnection()
+        AppStartup.runInBackground(this, "billing", () -> {
+            setupBillingClient();
+            startBillingConnection();
+        });
 
         setupDatabase();
         if (!isPolicyAccepted) {
@@ -122,32 +143,46 @@ public class MainActivity extends AppCompatActivity {
             showPolicyAcceptanceFragment();
             saveDebugLogToFile("onCreate: Policy acceptance required.");
         } else {
-            // Check the length of the password list
-            if (isPasswordListEmpty()) {
+            openVault();
+        }
+    }
+    /**
+     * Checks whether the vault has any entry, then shows the empty vault list or asks the user to authenticate.
+     * If the vault cannot be read, an error dialog lets the user retry instead of leaving the screen blank.
+     */
+    private void openVault() {
+        runOnDatabase(this::isPasswordListEmpty, isEmpty -> {
+            if (isEmpty) {
                 onFirstUse();
-                saveDebugLogToFile("onCreate: First-time use setup completed.");
+                saveDebugLogToFile("openVault: First-time use setup completed.");
             } else {
                 authenticateAppStart();
-                saveDebugLogToFile("onCreate: Authentication started.");
+                saveDebugLogToFile("openVault: Authentication started.");
             }
-        }
+        }, e -> {
+            if (isFinishing() || isDestroyed()) {
+                return;
+            }
+            new MaterialAlertDialogBuilder(this)
+                    .setTitle("Could not open the vault")
+                    .setMessage("Your passwords could not be read. Try again, or restart the app if the problem persists.")
+                    .setCancelable(false)
+                    .setPositiveButton("Retry", (dialog, which) -> openVault())
+                    .setNegativeButton("Close", (dialog, which) -> finish())
+                    .show();
+            saveDebugLogToFile("openVault: Showing the error dialog.");
+        });
     }
     /**
-     * Checks if the password list is empty. Retrieves all stored passwords from the database
-     * and logs the current size of the password list.
+     * Checks if the password list is empty with an EXISTS query, so no entry is read.
+     * Must be called off the main thread.
      *
      * @return true if the password list is empty, false otherwise.
      */
     private boolean isPasswordListEmpty() {
-        setupDatabase();
-
-        List<Password> passwords = db.passwordDao().getAll();
-        int passwordListSize = passwords.size();
-
-        Log.d("MainActivity", "Password list size: " + passwordListSize);
-        Log.d("MainActivity", "" + passwords.isEmpty());
-        saveDebugLogToFile("isPasswordListEmpty: Password list size: " + passwordListSize);
-        return passwords.isEmpty();
+        boolean isEmpty = !db.passwordDao().hasAny();
+        saveDebugLogToFile("isPasswordListEmpty: " + isEmpty);
+        return isEmpty;
     }
     /**
      * Sets up the application for first-time use. Initializes the password list,
@@ -159,6 +194,7 @@ public class MainActivity extends AppCompatActivity {
         setupButtonListeners();
         passwordListView.setVisibility(View.VISIBLE);
         checkGoogleDriveSignInStatus();
+        AppStartup.reportInteractive(this, "vault list");
         saveDebugLogToFile("onFirstUse: Password list and button listeners setup.");
     }
     /**
@@ -197,6 +233,16 @@ public class MainActivity extends AppCompatActivity {
         updateCloudIcon();
         saveDebugLogToFile("onResume: Cloud icon updated.");
     }
+    /**
+     * Stops the vault list from watching the database once the activity is gone.
+     */
+    @Override
+    protected void onDestroy() {
+        if (passwordListLoader != null) {
+            passwordListLoader.stop();
+        }
+        super.onDestroy();
+    }
     /**
      * Sets up the Google Sign-In process for enabling Google Drive backup.
      * This method configures the GoogleSignInClient with the necessary
@@ -291,12 +337,15 @@ public class MainActivity extends AppCompatActivity {
 
                     // Store the password securely in SharedPreferences
                     SharedPreferences sharedPreferences = getSharedPreferences("AppPreferences", MODE_PRIVATE);
-                    sharedPreferences.edit().putString("EXCEL_PASSWORD", password).apply();
+                    // A new password means the next backup must be a full snapshot under the new password, even if the vault is unchanged
+                    SharedPreferences.Editor editor = sharedPreferences.edit().putString("EXCEL_PASSWORD", password);
+                    BackupWorker.onBackupPasswordChanged(editor);
+                    editor.apply();
                     Toast.makeText(this, "Password saved successfully", Toast.LENGTH_SHORT).show();
                     saveDebugLogToFile("promptForPasswordAndStore: Password saved successfully.");
 
                     // Start the backup worker now that the password is stored
-                    startBackupWorker(password);
+                    startBackupWorker();
                     dialog.dismiss();
                 }
             });
@@ -315,9 +364,8 @@ public class MainActivity extends AppCompatActivity {
         startActivityForResult(signInIntent, REQUEST_SIGN_IN);
     }
     /**
-     * Handles the result of the Google Sign-In process.
-     * This method is triggered after the user attempts to sign in to Google Drive.
-     * It processes the result of the sign-in attempt.
+     * Handles the results of the Google Sign-In process and of the backup file picker used for restore.
+     * After a sign-in attempt it processes the result; after a file is picked it asks for the backup password.
      *
      * @param requestCode The integer request code originally supplied to startActivityForResult().
      * @param resultCode The integer result code returned by the child activity through its setResult().
@@ -330,6 +378,9 @@ public class MainActivity extends AppCompatActivity {
             saveDebugLogToFile("onActivityResult: Received result for Google Sign-In.");
             Task<GoogleSignInAccount> task = GoogleSignIn.getSignedInAccountFromIntent(data);
             handleSignInResult(task);
+        } else if (requestCode == REQUEST_RESTORE_FILE && resultCode == RESULT_OK && data != null && data.getData() != null) {
+            saveDebugLogToFile("onActivityResult: Backup file picked for restore.");
+            promptForRestorePassword(data.getData(), null);
         }
     }
     /**
@@ -382,7 +433,7 @@ public class MainActivity extends AppCompatActivity {
                 // Start backup with stored password
                 saveDebugLogToFile("setupGoogleDriveService: Starting backup worker with stored password.");
 
-                startBackupWorker(storedPassword);
+                startBackupWorker();
             }
         } else {
             saveDebugLogToFile("setupGoogleDriveService: No Google account found.");
@@ -390,13 +441,14 @@ public class MainActivity extends AppCompatActivity {
     }
     /**
      * Initializes the views and UI components of the activity.
-     * This method sets up references to the ListView, ImageViews, and TextView elements in the layout.
+     * This method sets up references to the RecyclerView, ImageViews, and TextView elements in the layout.
      * It also provides a Toast message to inform the user about accessing the User Manual.
      */
     private void initializeViews() {
         saveDebugLogToFile("initializeViews: Initializing views.");
 
         passwordListView = findViewById(R.id.password_list);
+        searchEditText = findViewById(R.id.search_box);
         cloudImage = findViewById(R.id.cloud_image);
         downloadImage = findViewById(R.id.downloadasexcel);
         addPasswordImage = findViewById(R.id.addpassword);
@@ -406,186 +458,178 @@ public class MainActivity extends AppCompatActivity {
     }
     /**
      * Sets up the local database using Room for storing and retrieving passwords.
-     * This method initializes the Room database and allows querying on the main thread.
-     * The database is named "passwords-db".
+     * This method obtains the process-wide database instance, which is shared with the backup worker.
+     * Queries are not allowed on the main thread; use {@link #runOnDatabase(Callable, Consumer)}.
      */
     private void setupDatabase() {
         saveDebugLogToFile("setupDatabase: Setting up the Room database.");
 
-        db = Room.databaseBuilder(getApplicationContext(), AppDatabase.class, "passwords-db")
-                .allowMainThreadQueries()
-                .build();
+        db = AppDatabase.getInstance(this);
         saveDebugLogToFile("setupDatabase: Database setup complete.");
 
     }
     /**
-     * Initializes the WorkManager to handle periodic backups to Google Drive.
-     * This method schedules periodic backup tasks based on user subscription.
+     * Runs a database operation on the database's query executor and delivers its result on the main thread.
+     * If the operation fails, the user is told with a Toast; see {@link #runOnDatabase(Callable, Consumer, Consumer)}.
+     *
+     * @param operation The operation to run in the background.
+     * @param onResult  Called on the main thread with the operation's result, or null if no result is needed.
+     * @param <T>       The type of the operation's result.
      */
-    private void startBackupWorker(String password) {
-        saveDebugLogToFile("startBackupWorker: Backup worker initiated.");
-        Data inputData = new Data.Builder()
-                .putString("EXCEL_PASSWORD", password)
-                .build();
-
-        PeriodicWorkRequest backupWorkRequest =
-                new PeriodicWorkRequest.Builder(BackupWorker.class, 15, TimeUnit.MINUTES)
-                        .setInputData(inputData)
-                        .build();
-
-        WorkManager.getInstance(this).enqueue(backupWorkRequest);
-        saveDebugLogToFile("startBackupWorker: Periodic backup worker enqueued.");
-
+    private <T> void runOnDatabase(Callable<T> operation, @Nullable Consumer<T> onResult) {
+        runOnDatabase(operation, onResult,
+                e -> Toast.makeText(this, "Could not access your passwords, please try again", Toast.LENGTH_SHORT).show());
     }
     /**
-     * Saves the debug log message to a file named "BackupWorkerLog.txt" in the Downloads/CipherSafe directory.
-     * This method checks if the file already exists and appends the log message. If the file doesn't exist,
-     * it creates a new one. It handles file operations using the Android `ContentResolver` API.
+     * Runs a database operation on the database's query executor and delivers its result, or its failure, on the main thread.
+     * Every DAO call made by this activity goes through this method, so the UI thread never blocks on SQLite.
+     * Each operation is timed into the "dao.ui" histogram of {@link Metrics}; failures are logged and counted.
      *
-     * @param logMessage The log message to be saved or appended to the log file.
+     * @param operation The operation to run in the background.
+     * @param onResult  Called on the main thread with the operation's result, or null if no result is needed.
+     * @param onError   Called on the main thread with the exception if the operation failed.
+     * @param <T>       The type of the operation's result.
      */
-    private void saveDebugLogToFile(String logMessage) {
-        String fileName = "MainActivity.txt"; // Single file to append logs
-
-        // Get device information
-        String deviceInfo = getDeviceInfo();
-
-        // Get the cache directory
-        java.io.File cacheDir = getApplicationContext().getCacheDir();
-        java.io.File logFile = new java.io.File(cacheDir, fileName);
-
-        // Log to ensure the cache directory exists
-        if (!cacheDir.exists()) {
-            Log.e("BackupWorker", "Cache directory does not exist. Trying to create it...");
-            if (!cacheDir.mkdirs()) {
-                Log.e("BackupWorker", "Failed to create cache directory.");
-                return; // Abort if the directory couldn't be created
+    private <T> void runOnDatabase(Callable<T> operation, @Nullable Consumer<T> onResult, Consumer<Exception> onError) {
+        db.getQueryExecutor().execute(() -> {
+            T result;
+            long startNanos = System.nanoTime();
+            try {
+                result = operation.call();
+                UI_DATABASE_NANOS.recordSince(startNanos);
+            } catch (Exception e) {
+                UI_DATABASE_ERRORS.increment();
+                Log.e("MainActivity", "Database operation failed", e);
+                saveDebugLogToFile("runOnDatabase: Database operation failed: " + e.getMessage());
+                runOnUiThread(() -> onError.accept(e));
+                return;
             }
-        }
-
-        Log.d("MainActivityLog", "Cache directory path: " + cacheDir.getAbsolutePath());
-
-        try (FileWriter fw = new FileWriter(logFile, true)) { // 'true' for append mode
-            String timestampedMessage = "[" + getCurrentTimestamp() + "] " + deviceInfo + logMessage + "\n";
-            fw.write(timestampedMessage);
-            fw.flush();
-            Log.d("BackupWorker", "Debug log saved/updated in cache directory: " + logFile.getAbsolutePath());
-        } catch (IOException e) {
-            Log.e("BackupWorker", "Failed to save/update debug log in cache directory: " + e.getMessage());
-            e.printStackTrace();
-        }
+            if (onResult != null) {
+                runOnUiThread(() -> onResult.accept(result));
+            }
+        });
     }
     /**
-     * Helper method to get the current timestamp.
-     *
-     * @return A string representing the current timestamp.
+     * Schedules the periodic backup to Google Drive through {@link BackupScheduler}.
+     * Calling this again, e.g. after the backup password changes, updates the existing schedule instead of adding one.
+     * The worker reads the backup password from the preferences, so it is not passed along with the work.
      */
-    private String getCurrentTimestamp() {
-        java.text.SimpleDateFormat sdf = new java.text.SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.getDefault());
-        return sdf.format(new java.util.Date());
-    }
+    private void startBackupWorker() {
+        saveDebugLogToFile("startBackupWorker: Backup worker initiated.");
+        BackupScheduler.schedulePeriodic(this);
+        saveDebugLogToFile("startBackupWorker: Periodic backup worker enqueued.");
 
-    // Helper method to get device information
+    }
     /**
-     * Helper method to get device information such as Android version, phone model, and Wi-Fi status.
+     * Queues a debug log message for the "MainActivity.txt" log file in the cache directory; see {@link DebugLog}.
+     * Returns immediately, so it may be called on any thread.
      *
-     * @return A string containing the device information.
+     * @param logMessage The message to be logged.
      */
-    private String getDeviceInfo() {
-        StringBuilder deviceInfo = new StringBuilder();
-        deviceInfo.append("Device Info: \n");
-        deviceInfo.append("Android Version: ").append(android.os.Build.VERSION.RELEASE).append("\n");
-        deviceInfo.append("Phone Model: ").append(android.os.Build.MODEL).append("\n");
-        deviceInfo.append("Manufacturer: ").append(android.os.Build.MANUFACTURER).append("\n");
-
-        // Wi-Fi status
-        android.net.wifi.WifiManager wifiManager = (android.net.wifi.WifiManager) getApplicationContext().getSystemService(Context.WIFI_SERVICE);
-        if (wifiManager != null) {
-            if (wifiManager.isWifiEnabled()) {
-                deviceInfo.append("Wi-Fi Status: Enabled\n");
-                android.net.wifi.WifiInfo wifiInfo = wifiManager.getConnectionInfo();
-                deviceInfo.append("Connected to: ").append(wifiInfo.getSSID()).append("\n");
-                deviceInfo.append("Signal Strength: ").append(wifiInfo.getRssi()).append(" dBm\n");
-            } else {
-                deviceInfo.append("Wi-Fi Status: Disabled\n");
-            }
-        } else {
-            deviceInfo.append("Wi-Fi Info: Unavailable\n");
-        }
-
-        return deviceInfo.toString();
+    private void saveDebugLogToFile(String logMessage) {
+        DebugLog.get(getApplicationContext()).log(DebugLog.MAIN_LOG, logMessage);
     }
     /**
-     * Sets up the password list from the Room database and displays it in the ListView.
-     * This method retrieves all passwords from the database and prepares the data for the custom adapter.
-     * It also sets an OnItemClickListener to show password details when an item is clicked.
+     * Sets up the password list from the Room database and displays it in the RecyclerView.
+     * The list reads only (id, account name, username), so neither the encrypted passwords nor the notes are read
+     * while the list is shown, and it updates itself whenever the vault changes.
+     * {@link VaultListLoader} reads the next page as the user scrolls close to the end of the loaded rows.
+     * It also sets a TextWatcher that filters the list through the full-text index as the user types.
+     * The list is set up once per activity; later calls do nothing.
      */
     private void setupPasswordList() {
-        saveDebugLogToFile("setupPasswordList: Setting up the password list.");
-        List<Password> passwords = db.passwordDao().getAll();
-        List<String[]> passwordDataList = new ArrayList<>();
-        for (Password password : passwords) {
-            passwordDataList.add(new String[]{password.accountName, password.username});
+        // Setting up again would stack another divider, scroll listener and TextWatcher on the same views
+        if (passwordListLoader != null) {
+            return;
         }
-        // Initialize the adapter with the data
-        CustomAdapter adapter = new CustomAdapter(this, passwordDataList);
-        passwordListView.setAdapter(adapter);
-
-        passwordListView.setOnItemClickListener((parent, view, position, id) -> {
-            if (position < adapter.getCount()) {  // Use adapter.getCount() instead of passwordDataList.size()
-                String[] selectedAccountData = (String[]) adapter.getItem(position);
-                if (selectedAccountData.length > 0) {
-                    saveDebugLogToFile("setupPasswordList: Showing details for account: " + selectedAccountData[0]);
-                    showPasswordDetails(selectedAccountData[0]);  // Show details using account name
-                } else {
-                    Log.e("MainActivity", "Selected account data array is empty or has insufficient elements.");
-                    saveDebugLogToFile("setupPasswordList: Selected account data array is empty or insufficient.");
+        saveDebugLogToFile("setupPasswordList: Setting up the password list.");
+        passwordAdapter = new CustomAdapter(id -> {
+            saveDebugLogToFile("setupPasswordList: Showing details for entry: " + id);
+            showPasswordDetails(id);  // Show details using the row id
+        });
+        LinearLayoutManager layoutManager = new LinearLayoutManager(this);
+        passwordListView.setLayoutManager(layoutManager);
+        DividerItemDecoration divider = new DividerItemDecoration(this, DividerItemDecoration.VERTICAL);
+        divider.setDrawable(ContextCompat.getDrawable(this, R.drawable.list_divider));
+        passwordListView.addItemDecoration(divider);
+        passwordListView.setAdapter(passwordAdapter);
+        passwordListLoader = new VaultListLoader(db, LIST_PAGE_SIZE);
+        passwordListLoader.start();
+
+        passwordListView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                // The loader ignores the request while a page is loading or once the end of the vault is loaded
+                if (PasswordFts.toPrefixQuery(searchEditText.getText().toString()) == null
+                        && layoutManager.findLastVisibleItemPosition() >= passwordAdapter.getItemCount() - LIST_PREFETCH_DISTANCE) {
+                    passwordListLoader.loadMore();
                 }
-            } else {
-                Log.e("MainActivity", "Invalid position: " + position + " for adapter of size " + adapter.getCount());
-                saveDebugLogToFile("setupPasswordList: Invalid position: " + position + " for adapter of size " + adapter.getCount());
             }
         });
+
+        searchEditText.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                loadPasswords();
+            }
+        });
+
+        loadPasswords();
     }
     /**
-     * Loads passwords from the Room database and updates the ListView.
-     * This method retrieves the passwords from the database and updates the adapter's data.
-     * If the adapter is null, it initializes the adapter and sets it to the ListView.
+     * Points the password list at the rows matching the current search text.
+     * If the search box contains words, the list observes the ranked full-text matches;
+     * otherwise it shows the pages of the vault loaded by {@link VaultListLoader}.
+     * Each emitted list is diffed against the displayed one by the adapter, so only changed rows are rebound.
      */
     private void loadPasswords() {
-        saveDebugLogToFile("loadPasswords: Loading passwords from the database.");
-        List<Password> passwords = db.passwordDao().getAll();
-
-        List<String[]> passwordDataList = new ArrayList<>();
-        for (Password password : passwords) {
-            passwordDataList.add(new String[]{password.accountName, password.username});
+        saveDebugLogToFile("loadPasswords: Observing passwords from the database.");
+        if (passwordListSource != null) {
+            passwordListSource.removeObservers(this);
         }
-
-        CustomAdapter adapter = (CustomAdapter) passwordListView.getAdapter();
-        if (adapter != null) {
-            adapter.updateData(passwordDataList);  // Update the adapter's data and notify it to refresh
-            saveDebugLogToFile("loadPasswords: Password list updated.");
+        String searchQuery = PasswordFts.toPrefixQuery(searchEditText.getText().toString());
+        if (searchQuery != null) {
+            passwordListSource = db.passwordDao().observeSearch(searchQuery, SEARCH_RESULT_LIMIT);
         } else {
-            // If adapter is null, initialize it and set it to the ListView
-            adapter = new CustomAdapter(this, passwordDataList);
-            passwordListView.setAdapter(adapter);
-            saveDebugLogToFile("loadPasswords: Adapter initialized and set to the ListView.");
+            passwordListSource = passwordListLoader.getRows();
         }
+        passwordListSource.observe(this, passwordAdapter::submitList);
     }
     /**
-     * Displays the password details for the specified account.
-     * This method retrieves the password information from the database,
+     * Displays the password details for the specified entry.
+     * This method retrieves the password information from the database by primary key,
      * decrypts the password, and shows it in a dialog. The dialog allows the user
      * to edit or delete the password or simply view the details.
      *
-     * @param accountName The name of the account for which the password details are being displayed.
+     * @param id The id of the password entry whose details are being displayed.
+     */
+    public void showPasswordDetails(int id) {
+        saveDebugLogToFile("showPasswordDetails: Retrieving details for entry: " + id);
+        runOnDatabase(() -> db.passwordDao().findById(id), password -> showPasswordDetails(id, password));
+    }
+    /**
+     * Shows the details dialog for a password entry that was loaded by {@link #showPasswordDetails(int)}.
+     *
+     * @param id       The id of the password entry that was requested.
+     * @param password The loaded entry, or null if it no longer exists.
      */
-    public void showPasswordDetails(String accountName) {
-        saveDebugLogToFile("showPasswordDetails: Retrieving details for account: " + accountName);
-        Password password = db.passwordDao().findByAccountName(accountName);
+    private void showPasswordDetails(int id, @Nullable Password password) {
+        if (password == null) {
+            // The entry was deleted since the list was loaded; the observed list drops it by itself
+            saveDebugLogToFile("showPasswordDetails: No entry found for id: " + id);
+            return;
+        }
 
         MaterialAlertDialogBuilder builder = new MaterialAlertDialogBuilder(this);
-        builder.setTitle(accountName);
+        builder.setTitle(password.accountName);
 
         // Inflate the custom dialog layout
         View dialogView = getLayoutInflater().inflate(R.layout.dialog_password_details, null);
@@ -620,10 +664,14 @@ public class MainActivity extends AppCompatActivity {
 
         // Add Delete button
         builder.setNegativeButton("Delete", (dialog, which) -> {
-            db.passwordDao().delete(password);
-            loadPasswords();
-            Toast.makeText(this, "Password deleted", Toast.LENGTH_SHORT).show();
-            saveDebugLogToFile("showPasswordDetails: Deleted password");
+            runOnDatabase(() -> {
+                db.passwordDao().delete(password);
+                return null;
+            }, result -> {
+                BackupScheduler.requestBackup(this);
+                Toast.makeText(this, "Password deleted", Toast.LENGTH_SHORT).show();
+                saveDebugLogToFile("showPasswordDetails: Deleted password");
+            });
         });
 
         // Add OK button
@@ -676,7 +724,7 @@ public class MainActivity extends AppCompatActivity {
             password.accountName = accountName;
             password.username = username;
             try {
-                password.password = EncryptionUtils.encrypt(passwordStr);
+                password.password = EncryptionUtils.encryptToBytes(passwordStr);
             } catch (Exception e) {
                 Log.e("PasswordManager", "Encryption failed", e);
                 Toast.makeText(this, "Failed to encrypt password", Toast.LENGTH_SHORT).show();
@@ -686,14 +734,15 @@ public class MainActivity extends AppCompatActivity {
             }
             password.notes = notes;
 
-            // Update the database
-            db.passwordDao().update(password);
-
-            // Refresh the list
-            loadPasswords();
-
-            Toast.makeText(this, "Password updated", Toast.LENGTH_SHORT).show();
-            saveDebugLogToFile("showEditPasswordDialog: Updated password for account");
+            // Update the database; the observed list rebinds the edited row
+            runOnDatabase(() -> {
+                db.passwordDao().update(password);
+                return null;
+            }, result -> {
+                BackupScheduler.requestBackup(this);
+                Toast.makeText(this, "Password updated", Toast.LENGTH_SHORT).show();
+                saveDebugLogToFile("showEditPasswordDialog: Updated password for account");
+            });
         });
 
         builder.setNegativeButton("Cancel", (dialog, which) -> dialog.dismiss());
@@ -725,9 +774,9 @@ public class MainActivity extends AppCompatActivity {
             return;
         }
 
-        String encryptedPassword = null;
+        byte[] encryptedPassword = null;
         try {
-            encryptedPassword = EncryptionUtils.encrypt(password);
+            encryptedPassword = EncryptionUtils.encryptToBytes(password);
         } catch (Exception e) {
             Log.e("PasswordManager", "Encryption failed", e);
         }
@@ -742,19 +791,22 @@ public class MainActivity extends AppCompatActivity {
         passwordEntity.password = encryptedPassword;
         passwordEntity.notes = notes;
 
-        db.passwordDao().insert(passwordEntity);
-        saveDebugLogToFile("addPassword: Password successfully added for account");
-
-        // Update the adapter with the new data
-        loadPasswords();
+        runOnDatabase(() -> {
+            db.passwordDao().insert(passwordEntity);
+            return null;
+        }, result -> {
+            BackupScheduler.requestBackup(this);
+            saveDebugLogToFile("addPassword: Password successfully added for account");
+        });
     }
     /**
-     * Initiates the process of exporting stored passwords to an Excel file.
+     * Initiates the process of exporting stored passwords.
      * If the Excel password is not set, the user is prompted to set a password before proceeding.
-     * Once the password is available, it calls the method to create the Excel file.
+     * Once the password is available, the user picks the format: a compact CipherSafe backup (.csvault)
+     * that can be restored into the app, or an Excel workbook that can be opened in a spreadsheet.
      */
     private void exportToExcel() {
-        saveDebugLogToFile("exportToExcel: Initiating export to Excel.");
+        saveDebugLogToFile("exportToExcel: Initiating export.");
         SharedPreferences sharedPreferences = getSharedPreferences("AppPreferences", MODE_PRIVATE);
         String password = sharedPreferences.getString("EXCEL_PASSWORD", null);
 
@@ -765,45 +817,80 @@ public class MainActivity extends AppCompatActivity {
             return;
         }
 
-        createExcelFile(password);
-        saveDebugLogToFile("exportToExcel: Export to Excel initiated with stored password.");
+        String[] formats = {"CipherSafe backup (.csvault)", "Excel workbook (.xlsx)"};
+        new MaterialAlertDialogBuilder(this)
+                .setTitle("Export format")
+                .setItems(formats, (dialog, which) -> {
+                    EXPORT_EXECUTOR.execute(() -> {
+                        try {
+                            if (which == 0) {
+                                createVaultFile(password);
+                            } else {
+                                createExcelFile(password);
+                            }
+                        } catch (RuntimeException e) {
+                            Log.e("MainActivity", "Export failed", e);
+                            saveDebugLogToFile("exportToExcel: Export failed: " + e.getMessage());
+                        }
+                    });
+                    saveDebugLogToFile("exportToExcel: Export initiated with stored password, format " + formats[which]);
+                })
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+    /**
+     * Creates an encrypted CipherSafe backup (.csvault) that contains all the stored passwords; see {@link VaultBackupWriter}.
+     * Rows are streamed into the file through {@link ExportPipeline}, so memory use does not grow with the vault.
+     * The file is saved in the Downloads/CipherSafe folder, encrypted with a key derived from the provided password.
+     * Must be called off the main thread; results are reported with a Toast on the main thread.
+     *
+     * @param password The password used to encrypt the backup.
+     */
+    private void createVaultFile(String password) {
+        saveDebugLogToFile("createVaultFile: Creating vault backup.");
+        String fileName = "Passwords_" + System.currentTimeMillis() + ".csvault";
+
+        ContentValues values = new ContentValues();
+        values.put(MediaStore.MediaColumns.DISPLAY_NAME, fileName);
+        values.put(MediaStore.MediaColumns.MIME_TYPE, "application/octet-stream");
+        values.put(MediaStore.MediaColumns.RELATIVE_PATH, "Download/CipherSafe");
+
+        ContentResolver resolver = getContentResolver();
+        Uri uri = resolver.insert(MediaStore.Files.getContentUri("external"), values);
+
+        ExportPipeline.Stats stats;
+        try (VaultBackupWriter writer = new VaultBackupWriter(resolver.openOutputStream(uri), password)) {
+            stats = ExportPipeline.run(db.passwordDao(), writer::write);
+            writer.finish();
+        } catch (Exception e) {
+            Log.e("PasswordManager", "Vault export failed", e);
+            if (uri != null) {
+                // Do not leave a partial backup behind
+                resolver.delete(uri, null, null);
+            }
+            runOnUiThread(() -> Toast.makeText(this, "Failed to export", Toast.LENGTH_SHORT).show());
+            saveDebugLogToFile("createVaultFile: Failed to export vault backup.");
+            return;
+        }
+
+        if (stats.failureCount > 0) {
+            saveDebugLogToFile("createVaultFile: Decryption failed for " + stats.failureCount + " entries");
+        }
+        saveDebugLogToFile("createVaultFile: Exported " + stats);
+        runOnUiThread(() -> Toast.makeText(this, "Exported successfully as " + fileName, Toast.LENGTH_SHORT).show());
+        saveDebugLogToFile("createVaultFile: Exported vault backup successfully as " + fileName);
     }
     /**
-     * Creates an encrypted Excel file that contains all the stored passwords.
+     * Creates an encrypted Excel file that contains all the stored passwords; see {@link ExcelExport}.
      * The Excel file includes columns for account name, username, password (decrypted), and notes.
+     * Rows are streamed into the workbook and the encrypted file is built in a temporary file, so memory use does not grow with the vault.
      * The file is saved in the Downloads/CipherSafe folder, and encryption is applied using the provided password.
+     * Must be called off the main thread; results are reported with a Toast on the main thread.
      *
      * @param password The password used to encrypt the Excel file.
      */
     private void createExcelFile(String password) {
         saveDebugLogToFile("createExcelFile: Creating Excel file with encryption.");
-        Workbook workbook = new XSSFWorkbook();
-        Sheet sheet = workbook.createSheet("Passwords");
-
-        Row headerRow = sheet.createRow(0);
-        headerRow.createCell(0).setCellValue("Account Name");
-        headerRow.createCell(1).setCellValue("Username");
-        headerRow.createCell(2).setCellValue("Password");
-        headerRow.createCell(3).setCellValue("Notes");
-
-        List<Password> passwords = db.passwordDao().getAll();
-        int rowIndex = 1;
-        for (Password passwordObj : passwords) {
-            Row row = sheet.createRow(rowIndex++);
-            row.createCell(0).setCellValue(passwordObj.accountName);
-            row.createCell(1).setCellValue(passwordObj.username);
-            String decryptedPassword = null;
-            try {
-                decryptedPassword = EncryptionUtils.decrypt(passwordObj.password);
-                saveDebugLogToFile("createExcelFile: Decryption successful for account: ");
-            } catch (Exception e) {
-                Log.e("PasswordManager", "Decryption failed", e);
-                saveDebugLogToFile("createExcelFile: Decryption failed for account");
-            }
-            row.createCell(2).setCellValue(decryptedPassword != null ? decryptedPassword : "[Decryption failed]");
-            row.createCell(3).setCellValue(passwordObj.notes);
-        }
-
         // Generate a unique filename using timestamp
         String timestamp = String.valueOf(System.currentTimeMillis());
         String fileName = "Passwords_" + timestamp + ".xlsx";
@@ -814,33 +901,229 @@ public class MainActivity extends AppCompatActivity {
         values.put(MediaStore.MediaColumns.RELATIVE_PATH, "Download/CipherSafe");
 
         ContentResolver resolver = getContentResolver();
-        Uri externalContentUri = MediaStore.Files.getContentUri("external");
-        Uri uri = resolver.insert(externalContentUri, values);
-
-        try (POIFSFileSystem fs = new POIFSFileSystem();
-             OutputStream os = resolver.openOutputStream(uri)) {
+        Uri uri = resolver.insert(MediaStore.Files.getContentUri("external"), values);
 
-            EncryptionInfo info = new EncryptionInfo(EncryptionMode.standard);
-            Encryptor encryptor = info.getEncryptor();
-            encryptor.confirmPassword(password);
-
-            try (OutputStream encOS = encryptor.getDataStream(fs)) {
-                workbook.write(encOS);
+        ExportPipeline.Stats stats;
+        try (OutputStream os = resolver.openOutputStream(uri)) {
+            stats = ExcelExport.write(db.passwordDao(), password, getCacheDir(), os);
+        } catch (Exception e) {
+            Log.e("PasswordManager", "Excel export failed", e);
+            if (uri != null) {
+                // Do not leave a partial workbook behind
+                resolver.delete(uri, null, null);
             }
+            runOnUiThread(() -> Toast.makeText(this, "Failed to export", Toast.LENGTH_SHORT).show());
+            saveDebugLogToFile("createExcelFile: Failed to export Excel file: " + e.getMessage());
+            return;
+        }
 
-            fs.writeFilesystem(os);
-            Toast.makeText(this, "Exported to Excel successfully as " + fileName, Toast.LENGTH_SHORT).show();
-            saveDebugLogToFile("createExcelFile: Exported to Excel successfully as " + fileName);
-
-            // Now upload the file to Google Drive
-            // uploadFileToGoogleDrive(uri);
-
-        } catch (Exception e) {
-            e.printStackTrace();
-            Toast.makeText(this, "Failed to export", Toast.LENGTH_SHORT).show();
-            saveDebugLogToFile("createExcelFile: Failed to export Excel file.");
+        if (stats.failureCount > 0) {
+            Log.e("PasswordManager", "Decryption failed for " + stats.failureCount + " entries");
+            saveDebugLogToFile("createExcelFile: Decryption failed for " + stats.failureCount + " of " + stats.entryCount + " entries");
+        }
+        saveDebugLogToFile("createExcelFile: Exported " + stats);
+        runOnUiThread(() -> Toast.makeText(this, "Exported to Excel successfully as " + fileName, Toast.LENGTH_SHORT).show());
+        saveDebugLogToFile("createExcelFile: Exported to Excel successfully as " + fileName);
+    }
+    /**
+     * Displays the restore options: the backup on Google Drive, if signed in, or a .csvault file picked by the user.
+     */
+    private void showRestoreOptionsDialog() {
+        saveDebugLogToFile("showRestoreOptionsDialog: Showing restore options.");
+        String[] sources = {"From Google Drive", "From a CipherSafe backup file (.csvault)"};
+        new MaterialAlertDialogBuilder(this)
+                .setTitle("Restore backup")
+                .setItems(sources, (dialog, which) -> {
+                    if (which == 0) {
+                        if (GoogleSignIn.getLastSignedInAccount(this) == null) {
+                            Toast.makeText(this, "Enable Google Drive backups to restore from Google Drive", Toast.LENGTH_SHORT).show();
+                            return;
+                        }
+                        chooseDriveBackup();
+                    } else {
+                        // The picker opens documents from any provider, including Download/CipherSafe
+                        Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+                        intent.addCategory(Intent.CATEGORY_OPENABLE);
+                        intent.setType("*/*");
+                        startActivityForResult(intent, REQUEST_RESTORE_FILE);
+                    }
+                })
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+    /**
+     * Lists the backups on Google Drive in the background and lets the user choose one if there are several,
+     * e.g. of another device or of an earlier installation, then prompts for its password.
+     */
+    private void chooseDriveBackup() {
+        GoogleSignInAccount account = GoogleSignIn.getLastSignedInAccount(this);
+        String ownFileId = getSharedPreferences("AppPreferences", MODE_PRIVATE).getString("GOOGLE_DRIVE_FILE_ID", null);
+        new Thread(() -> {
+            List<com.google.api.services.drive.model.File> backups;
+            try {
+                backups = RestoreWorker.listBackups(this, account);
+            } catch (IOException e) {
+                Log.e("MainActivity", "Failed to list the backups on Google Drive", e);
+                saveDebugLogToFile("chooseDriveBackup: Failed to list backups: " + e.getMessage());
+                runOnUiThread(() -> Toast.makeText(this, "No backup found on Google Drive", Toast.LENGTH_SHORT).show());
+                return;
+            }
+            runOnUiThread(() -> {
+                if (backups.isEmpty()) {
+                    Toast.makeText(this, "No backup found on Google Drive", Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                if (backups.size() == 1) {
+                    promptForRestorePassword(null, backups.get(0).getId());
+                    return;
+                }
+                String[] labels = new String[backups.size()];
+                for (int i = 0; i < labels.length; i++) {
+                    com.google.api.services.drive.model.File backup = backups.get(i);
+                    String device = backup.getAppProperties() != null ? backup.getAppProperties().get(BackupWorker.BASE_DEVICE_PROPERTY) : null;
+                    labels[i] = (device != null ? device : "Unknown device")
+                            + (backup.getId().equals(ownFileId) ? " (this device)" : "")
+                            + (backup.getModifiedTime() != null
+                            ? ", " + DateFormat.getDateTimeInstance().format(new Date(backup.getModifiedTime().getValue())) : "");
+                }
+                new MaterialAlertDialogBuilder(this)
+                        .setTitle("Choose a backup")
+                        .setItems(labels, (dialog, which) -> promptForRestorePassword(null, backups.get(which).getId()))
+                        .setNegativeButton("Cancel", null)
+                        .show();
+            });
+        }, "RestoreLookup").start();
+    }
+    /**
+     * Prompts for the password of the backup to restore, then starts the restore.
+     * The stored backup password is filled in, since it is usually the one the backup was made with.
+     *
+     * @param sourceUri  The content URI of the backup file, or null to restore from Google Drive.
+     * @param baseFileId The file id of the Google Drive backup to restore, or null for a backup file.
+     */
+    private void promptForRestorePassword(@Nullable Uri sourceUri, @Nullable String baseFileId) {
+        MaterialAlertDialogBuilder builder = new MaterialAlertDialogBuilder(this);
+        builder.setTitle("Backup Password");
+        View dialogView = getLayoutInflater().inflate(R.layout.dialog_set_password, null);
+        builder.setView(dialogView);
+        TextInputLayout passwordLayout = dialogView.findViewById(R.id.password_layout);
+        TextInputEditText passwordEditText = dialogView.findViewById(R.id.input_password);
+        passwordEditText.setText(getSharedPreferences("AppPreferences", MODE_PRIVATE).getString("EXCEL_PASSWORD", ""));
 
+        builder.setPositiveButton("Restore", null); // Set to null for manual validation handling
+        builder.setNegativeButton("Cancel", (dialog, which) -> dialog.cancel());
+        AlertDialog dialog = builder.create();
+        dialog.setOnShowListener(dialogInterface -> dialog.getButton(AlertDialog.BUTTON_POSITIVE).setOnClickListener(view -> {
+            String password = passwordEditText.getText().toString().trim();
+            if (password.isEmpty()) {
+                passwordLayout.setError("Password cannot be empty");
+                return;
+            }
+            dialog.dismiss();
+            startRestore(sourceUri, baseFileId, password);
+        }));
+        dialog.show();
+    }
+    /**
+     * Starts a {@link RestoreWorker} and shows its progress in a dialog until it finishes.
+     * The restore runs in the background, so leaving the dialog with Cancel stops it between batches.
+     * Restores are unique work, so while one is running a new request is dropped and the dialog follows the running one.
+     *
+     * @param sourceUri  The content URI of the backup file, or null to restore from Google Drive.
+     * @param baseFileId The file id of the Google Drive backup to restore, or null for a backup file.
+     * @param password   The backup password.
+     */
+    private void startRestore(@Nullable Uri sourceUri, @Nullable String baseFileId, String password) {
+        saveDebugLogToFile("startRestore: Starting restore from " + (sourceUri == null ? "Google Drive" : "a file") + ".");
+        Data.Builder input = new Data.Builder();
+        if (sourceUri != null) {
+            input.putString(RestoreWorker.SOURCE_URI_KEY, sourceUri.toString());
+        }
+        if (baseFileId != null) {
+            input.putString(RestoreWorker.BASE_FILE_ID_KEY, baseFileId);
         }
+        OneTimeWorkRequest request = new OneTimeWorkRequest.Builder(RestoreWorker.class)
+                .setInputData(input.build())
+                .build();
+        // Not part of the input data, which WorkManager persists unencrypted
+        RestoreWorker.setPassword(request.getId(), password);
+        WorkManager workManager = WorkManager.getInstance(this);
+        workManager.enqueueUniqueWork(RestoreWorker.WORK_NAME, ExistingWorkPolicy.KEEP, request);
+
+        AlertDialog progressDialog = new MaterialAlertDialogBuilder(this)
+                .setTitle("Restoring backup")
+                .setMessage("Starting…")
+                .setCancelable(false)
+                .setNegativeButton("Cancel", (dialog, which) -> workManager.cancelUniqueWork(RestoreWorker.WORK_NAME))
+                .show();
+        // The restore shown: this request, or the one that was already running and kept instead of it
+        UUID[] shownId = {null};
+        workManager.getWorkInfosForUniqueWorkLiveData(RestoreWorker.WORK_NAME).observe(this, workInfos -> {
+            WorkInfo workInfo = findRestore(workInfos, shownId[0] != null ? shownId[0] : request.getId());
+            if (workInfo == null && shownId[0] == null) {
+                workInfo = findUnfinishedRestore(workInfos);
+            }
+            if (workInfo == null) {
+                return;
+            }
+            if (shownId[0] == null && !workInfo.getId().equals(request.getId())) {
+                // This request was dropped, so its password will not be used
+                RestoreWorker.forgetPassword(request.getId());
+                saveDebugLogToFile("startRestore: A restore is already running, showing its progress.");
+            }
+            shownId[0] = workInfo.getId();
+            if (!workInfo.getState().isFinished()) {
+                Data progress = workInfo.getProgress();
+                long totalBytes = progress.getLong(RestoreWorker.TOTAL_BYTES_KEY, -1);
+                String message = "Restored " + progress.getInt(RestoreWorker.RESTORED_COUNT_KEY, 0) + " entries";
+                if (totalBytes > 0) {
+                    message += " (" + (100 * progress.getLong(RestoreWorker.BYTES_READ_KEY, 0) / totalBytes) + "%)";
+                }
+                progressDialog.setMessage(message);
+                return;
+            }
+            progressDialog.dismiss();
+            Data output = workInfo.getOutputData();
+            int restored = output.getInt(RestoreWorker.RESTORED_COUNT_KEY, 0);
+            int skipped = output.getInt(RestoreWorker.SKIPPED_COUNT_KEY, 0);
+            String message;
+            if (workInfo.getState() == WorkInfo.State.SUCCEEDED) {
+                message = "Restored " + restored + " entries" + (skipped > 0 ? ", skipped " + skipped : "");
+            } else if (workInfo.getState() == WorkInfo.State.CANCELLED) {
+                message = "Restore cancelled";
+            } else {
+                message = "Restore failed: " + output.getString(RestoreWorker.ERROR_MESSAGE_KEY);
+            }
+            Toast.makeText(this, message, Toast.LENGTH_LONG).show();
+            saveDebugLogToFile("startRestore: " + message);
+            if (restored > 0) {
+                BackupScheduler.requestBackup(this);
+            }
+        });
+    }
+    // Returns the restore with the given id, or null if it is not in the list
+    @Nullable
+    private static WorkInfo findRestore(@Nullable List<WorkInfo> workInfos, UUID id) {
+        if (workInfos != null) {
+            for (WorkInfo workInfo : workInfos) {
+                if (workInfo.getId().equals(id)) {
+                    return workInfo;
+                }
+            }
+        }
+        return null;
+    }
+    // Returns a restore that has not finished, or null if there is none
+    @Nullable
+    private static WorkInfo findUnfinishedRestore(@Nullable List<WorkInfo> workInfos) {
+        if (workInfos != null) {
+            for (WorkInfo workInfo : workInfos) {
+                if (!workInfo.getState().isFinished()) {
+                    return workInfo;
+                }
+            }
+        }
+        return null;
     }
     /**
      * Displays the Google Drive backup options dialog based on the user's subscription status.
@@ -1119,7 +1402,6 @@ public class MainActivity extends AppCompatActivity {
 
                         saveDebugLogToFile("authenticateAppStart: Authentication succeeded.");
 
-                        setupDatabase();
                         setupPasswordList();
                         setupButtonListeners();
                         passwordListView.setVisibility(View.VISIBLE);
@@ -1142,6 +1424,7 @@ public class MainActivity extends AppCompatActivity {
             try {
                 Log.d("MainActivity", "Starting biometric prompt");
                 biometricPrompt.authenticate(promptInfo);
+                AppStartup.reportInteractive(this, "unlock prompt");
             } catch (Exception e) {
                 Log.e("FaceAuth", "Exception during authentication", e);
                 saveDebugLogToFile("authenticateAppStart: Exception during authentication: " + e.getMessage());
@@ -1151,11 +1434,11 @@ public class MainActivity extends AppCompatActivity {
         } else {
             Log.d("MainActivity", "Already authenticated, initializing app");
             saveDebugLogToFile("authenticateAppStart: Already authenticated, initializing app.");
-            setupDatabase();
             setupPasswordList();
             setupButtonListeners();
             passwordListView.setVisibility(View.VISIBLE);
             checkGoogleDriveSignInStatus();
+            AppStartup.reportInteractive(this, "vault list");
         }
     }
     /**
@@ -1169,6 +1452,10 @@ public class MainActivity extends AppCompatActivity {
 
         //exportPasswordsButton.setOnClickListener(v -> authenticateAndExportToExcel());
         downloadImage.setOnClickListener(v -> exportToExcel());
+        downloadImage.setOnLongClickListener(v -> {
+            showRestoreOptionsDialog();
+            return true;
+        });
 
         cloudImage.setOnClickListener(new View.OnClickListener() {
             @Override
@@ -1297,7 +1584,8 @@ public class MainActivity extends AppCompatActivity {
     /**
      * Starts the connection to the Google Play Billing service.
      * Once the connection is established, the app is ready to handle in-app purchases and subscriptions.
-     * If the connection is successful, a log message is generated and a toast message is shown.
+     * If the connection is successful, a log message is generated, a toast message is shown and the subscription status is queried.
+     * May be called on any thread; the listener runs on the main thread.
      * If the connection fails, it logs an error message and handles disconnection scenarios.
      */
     private void startBillingConnection() {
@@ -1310,6 +1598,8 @@ public class MainActivity extends AppCompatActivity {
                     Log.d("BillingClient", "Billing Client setup finished. Ready to make purchases.");
                     Toast.makeText(MainActivity.this, "Billing Client is connected!", Toast.LENGTH_SHORT).show();
                     saveDebugLogToFile("startBillingConnection: Billing client setup finished, ready for purchases.");
+                    // Queries need a connected client
+                    querySubscriptionStatus();
                 } else {
                     Log.e("BillingClient", "Billing setup failed with code: " + billingResult.getResponseCode());
                     saveDebugLogToFile("startBillingConnection: Billing setup failed with code: " + billingResult.getResponseCode());
@@ -0,0 +1,251 @@
+package com.ciphersafe;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics is the process-wide registry of counters and latency histograms that the app records into as it runs:
+ * database access, Keystore encryption and decryption, exports, backup phases and Google Drive requests.
+ * It is shown and exported as JSON by {@link DiagnosticsActivity}; nothing is persisted, so the numbers cover the
+ * current process only.
+ * <p>
+ * Recording is cheap enough to stay on in release builds: it is lock-free and allocation-free. Callers look a metric
+ * up once, keep it in a static field, and then only increment counters or add values to atomic bucket counts.
+ * Histograms bucket values like an HDR histogram, by power of two with {@link Histogram#SUB_BUCKETS} linear
+ * sub-buckets each, so any value is known within 1/8 of itself whatever its magnitude.
+ */
+public final class Metrics {
+
+    private static final ConcurrentMap<String, Counter> COUNTERS = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Histogram> HISTOGRAMS = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    /**
+     * Returns the counter with a name, creating it on first use.
+     *
+     * @param name The name, dot-separated by area, e.g. "export.entries".
+     * @return The counter.
+     */
+    public static Counter counter(String name) {
+        Counter counter = COUNTERS.get(name);
+        if (counter == null) {
+            Counter created = new Counter();
+            counter = COUNTERS.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * Returns the latency histogram with a name, creating it on first use. Values are durations in nanoseconds.
+     *
+     * @param name The name, dot-separated by area, e.g. "crypto.decrypt".
+     * @return The histogram.
+     */
+    public static Histogram histogram(String name) {
+        Histogram histogram = HISTOGRAMS.get(name);
+        if (histogram == null) {
+            Histogram created = new Histogram();
+            histogram = HISTOGRAMS.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Returns every counter and histogram as JSON: counter values, and the count, mean, p50, p95, p99 and maximum of
+     * every histogram in microseconds.
+     *
+     * @return The metrics, sorted by name.
+     * @throws JSONException Never in practice; declared by the JSON API.
+     */
+    public static JSONObject toJson() throws JSONException {
+        JSONObject counters = new JSONObject();
+        for (Map.Entry<String, Counter> entry : new TreeMap<>(COUNTERS).entrySet()) {
+            counters.put(entry.getKey(), entry.getValue().get());
+        }
+        JSONObject histograms = new JSONObject();
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(HISTOGRAMS).entrySet()) {
+            Histogram histogram = entry.getValue();
+            long count = histogram.getCount();
+            JSONObject summary = new JSONObject();
+            summary.put("count", count);
+            summary.put("meanMicros", count > 0 ? histogram.getSumNanos() / count / 1000 : 0);
+            summary.put("p50Micros", histogram.getPercentileNanos(50) / 1000);
+            summary.put("p95Micros", histogram.getPercentileNanos(95) / 1000);
+            summary.put("p99Micros", histogram.getPercentileNanos(99) / 1000);
+            summary.put("maxMicros", histogram.getMaxNanos() / 1000);
+            histograms.put(entry.getKey(), summary);
+        }
+        JSONObject metrics = new JSONObject();
+        metrics.put("counters", counters);
+        metrics.put("histograms", histograms);
+        return metrics;
+    }
+
+    /**
+     * Formats every counter and histogram as a text table, with durations in milliseconds.
+     *
+     * @return The table, or a note that nothing was recorded yet.
+     */
+    public static String render() {
+        if (COUNTERS.isEmpty() && HISTOGRAMS.isEmpty()) {
+            return "No metrics recorded yet.\n";
+        }
+        StringBuilder text = new StringBuilder();
+        text.append(String.format(Locale.US, "%-24s %7s %8s %8s %8s%n", "latency (ms)", "count", "p50", "p99", "max"));
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(HISTOGRAMS).entrySet()) {
+            Histogram histogram = entry.getValue();
+            text.append(String.format(Locale.US, "%-24s %7d %8.2f %8.2f %8.2f%n", entry.getKey(), histogram.getCount(),
+                    histogram.getPercentileNanos(50) / 1e6, histogram.getPercentileNanos(99) / 1e6,
+                    histogram.getMaxNanos() / 1e6));
+        }
+        text.append('\n');
+        for (Map.Entry<String, Counter> entry : new TreeMap<>(COUNTERS).entrySet()) {
+            text.append(String.format(Locale.US, "%-24s %7d%n", entry.getKey(), entry.getValue().get()));
+        }
+        return text.toString();
+    }
+
+    /**
+     * A monotonically increasing count, e.g. of entries exported or requests failed.
+     */
+    public static final class Counter {
+        private final LongAdder value = new LongAdder();
+
+        private Counter() {
+        }
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long amount) {
+            value.add(amount);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    /**
+     * A histogram of durations in nanoseconds.
+     * Percentiles are reported as the upper bound of the bucket holding them, so they overstate by at most 1/8.
+     */
+    public static final class Histogram {
+        // Linear sub-buckets per power of two; values below this are counted exactly
+        static final int SUB_BUCKETS = 8;
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        private Histogram() {
+        }
+
+        /**
+         * Adds a duration; negative durations, e.g. across a clock change, count as 0.
+         *
+         * @param nanos The duration in nanoseconds.
+         */
+        public void record(long nanos) {
+            long value = Math.max(0, nanos);
+            buckets.incrementAndGet(bucketIndex(value));
+            sum.add(value);
+            long currentMax = max.get();
+            while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+                currentMax = max.get();
+            }
+        }
+
+        /**
+         * Adds the time elapsed since a {@link System#nanoTime()} reading.
+         *
+         * @param startNanos The reading taken when the operation started.
+         */
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        public long getCount() {
+            long count = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                count += buckets.get(i);
+            }
+            return count;
+        }
+
+        public long getSumNanos() {
+            return sum.sum();
+        }
+
+        public long getMaxNanos() {
+            return max.get();
+        }
+
+        /**
+         * Returns a percentile of the recorded durations (nearest rank), or 0 if nothing was recorded.
+         *
+         * @param percentile The percentile, from 0 to 100.
+         * @return The upper bound of the bucket holding the percentile, at most the maximum.
+         */
+        public long getPercentileNanos(double percentile) {
+            long[] counts = new long[BUCKET_COUNT];
+            long total = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                counts[i] = buckets.get(i);
+                total += counts[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    long upperBound = i + 1 < BUCKET_COUNT ? lowestValue(i + 1) - 1 : Long.MAX_VALUE;
+                    return Math.min(upperBound, getMaxNanos());
+                }
+            }
+            return getMaxNanos();
+        }
+
+        // The highest set bit picks the power of two, the next SUB_BUCKET_BITS bits the sub-bucket within it
+        static int bucketIndex(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+        }
+
+        // The smallest value counted in a bucket
+        static long lowestValue(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int shift = index / SUB_BUCKETS - 1;
+            return (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        }
+    }
+}
@@ -1,13 +1,15 @@
 package com.ciphersafe;
 
 import androidx.room.Entity;
+import androidx.room.Index;
 import androidx.room.PrimaryKey;
 
 /**
  * The Password class represents an entity in the Room database, storing information related to user accounts and their associated credentials.
  * This class defines the structure of the table in the database, where each instance represents a row in the "Password" table.
+ * The accountName column is indexed so lookups by account name do not scan the whole table.
  */
-@Entity
+@Entity(indices = {@Index("accountName")})
 public class Password {
 
     /**
@@ -28,9 +30,9 @@ public class Password {
     public String username;
 
     /**
-     * The encrypted password for the account.
+     * The encrypted password for the account, stored as a BLOB: the 12-byte AES-GCM IV followed by the ciphertext.
      */
-    public String password;
+    public byte[] password;
 
     /**
      * Optional field for storing additional notes or information related to the account.
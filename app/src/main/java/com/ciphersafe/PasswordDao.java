@@ -1,5 +1,6 @@
 package com.ciphersafe;
 
+import androidx.lifecycle.LiveData;
 import androidx.room.Dao;
 import androidx.room.Delete;
 import androidx.room.Insert;
@@ -23,6 +24,46 @@ public interface PasswordDao {
     @Query("SELECT * FROM password")
     List<Password> getAll();
 
+    /**
+     * Retrieves one page of complete password records, ordered by id.
+     * Pages are keyed by the last id already read, so streaming the whole table costs one range scan per page.
+     *
+     * @param afterId The id of the last record already read, or 0 to read the first page.
+     * @param limit   The maximum number of records to return.
+     * @return A list of {@link Password} objects ordered by id.
+     */
+    @Query("SELECT * FROM password WHERE id > :afterId ORDER BY id LIMIT :limit")
+    List<Password> getPage(int afterId, int limit);
+
+    /**
+     * Checks whether the vault holds any record, without reading one; SQLite stops at the first row.
+     *
+     * @return true if the "Password" table is not empty.
+     */
+    @Query("SELECT EXISTS(SELECT 1 FROM password)")
+    boolean hasAny();
+
+    /**
+     * Reads one page of the vault list, reading only the columns needed to display a row.
+     * Pages are keyed by the last id already loaded, so every page costs one short range scan of the primary key
+     * however far the list has been scrolled; see {@link VaultListLoader}.
+     *
+     * @param afterId The id of the last row already loaded, or 0 to read the first page.
+     * @param limit   The maximum number of rows to return.
+     * @return A list of {@link PasswordSummary} objects ordered by id.
+     */
+    @Query("SELECT id, accountName, username FROM password WHERE id > :afterId ORDER BY id LIMIT :limit")
+    List<PasswordSummary> getSummaryPage(int afterId, int limit);
+
+    /**
+     * Reads the rows of the vault list up to a given id, to refresh the part of the list already loaded after a change.
+     *
+     * @param lastId The id of the last row loaded.
+     * @return A list of {@link PasswordSummary} objects ordered by id.
+     */
+    @Query("SELECT id, accountName, username FROM password WHERE id <= :lastId ORDER BY id")
+    List<PasswordSummary> getSummariesUpTo(int lastId);
+
     /**
      * Inserts a new password record into the "Password" table.
      *
@@ -49,11 +90,65 @@ public interface PasswordDao {
 
     /**
      * Finds and retrieves a single password record based on the provided account name.
-     * This query limits the result to the first matching record found.
+     * This query limits the result to the first matching record found and uses the index on accountName.
      *
      * @param accountName The name of the account for which the password is being retrieved.
      * @return A {@link Password} object representing the first matching account, or null if not found.
      */
     @Query("SELECT * FROM password WHERE accountName = :accountName LIMIT 1")
     Password findByAccountName(String accountName);
+
+    /**
+     * Checks whether the vault already holds an entry for the given account name and username.
+     * Uses the index on accountName.
+     *
+     * @param accountName The account name of the entry.
+     * @param username    The username of the entry; null matches only entries without a username.
+     * @return true if such an entry exists.
+     */
+    @Query("SELECT EXISTS(SELECT 1 FROM password WHERE accountName = :accountName AND username IS :username)")
+    boolean exists(String accountName, String username);
+
+    /**
+     * Finds and retrieves a single password record by its primary key.
+     *
+     * @param id The id of the password record.
+     * @return The matching {@link Password} object, or null if not found.
+     */
+    @Query("SELECT * FROM password WHERE id = :id")
+    Password findById(int id);
+
+    /**
+     * Retrieves the password records with the given ids, in no particular order. Ids without a row are skipped.
+     *
+     * @param ids The ids of the password records; at most 999, the SQLite bound-parameter limit.
+     * @return A list of the matching {@link Password} objects.
+     */
+    @Query("SELECT * FROM password WHERE id IN (:ids)")
+    List<Password> findByIds(List<Integer> ids);
+
+    /**
+     * Observes the full-text search results for entries whose account name, username or notes match the given expression.
+     * Results are ranked by their number of matches, best match first, and are re-computed when the vault changes.
+     * Every occurrence of a search term in the account name, username or notes counts as one match; offsets() reports each
+     * as a tuple of four integers, so the matches are the space-separated integers divided by four. Ties are ordered by id.
+     *
+     * @param query An FTS MATCH expression, see {@link PasswordFts#toPrefixQuery(String)}.
+     * @param limit The maximum number of rows to return.
+     * @return A LiveData list of matching {@link PasswordSummary} objects.
+     */
+    @Query("SELECT password.id, password.accountName, password.username FROM "
+            + "(SELECT rowid AS ftsId, offsets(password_fts) AS hits FROM password_fts WHERE password_fts MATCH :query) "
+            + "JOIN password ON password.id = ftsId "
+            + "ORDER BY (length(hits) - length(replace(hits, ' ', '')) + 1) / 4 DESC, password.id LIMIT :limit")
+    LiveData<List<PasswordSummary>> observeSearch(String query, int limit);
+
+    /**
+     * Returns the vault generation, which database triggers increment on every insert, update and delete in the "Password" table.
+     * Two equal generations mean the vault has not changed in between.
+     *
+     * @return The current vault generation.
+     */
+    @Query("SELECT generation FROM vault_state WHERE id = " + VaultState.SINGLETON_ID)
+    long getVaultGeneration();
 }
@@ -0,0 +1,55 @@
+package com.ciphersafe;
+
+import androidx.room.Entity;
+import androidx.room.Fts4;
+
+/**
+ * PasswordFts is a full-text index over the searchable columns of the "Password" table.
+ * It is an external-content FTS4 table: Room creates triggers on "Password" so the index stays in sync
+ * on every insert, update and delete, and the text itself is only stored once, in "Password".
+ */
+@Fts4(contentEntity = Password.class)
+@Entity(tableName = "password_fts")
+public class PasswordFts {
+
+    /**
+     * The name of the account, mirrored from {@link Password#accountName}.
+     */
+    public String accountName;
+
+    /**
+     * The username or email, mirrored from {@link Password#username}.
+     */
+    public String username;
+
+    /**
+     * The notes, mirrored from {@link Password#notes}.
+     */
+    public String notes;
+
+    /**
+     * Builds an FTS MATCH expression that prefix-matches every word the user typed.
+     * For example "git hub" becomes "git* hub*", which matches rows containing words starting with both terms.
+     * Characters that are not letters or digits are treated as word separators, the same way the FTS tokenizer does,
+     * so user input can never produce an invalid MATCH expression.
+     *
+     * @param input The raw text from the search box.
+     * @return The MATCH expression, or null if the input contains no searchable words.
+     */
+    public static String toPrefixQuery(String input) {
+        if (input == null) {
+            return null;
+        }
+        StringBuilder query = new StringBuilder();
+        for (String term : input.split("[^\\p{L}\\p{N}]+")) {
+            if (term.isEmpty()) {
+                continue;
+            }
+            if (query.length() > 0) {
+                query.append(' ');
+            }
+            query.append(term).append('*');
+        }
+        return query.length() > 0 ? query.toString() : null;
+    }
+}
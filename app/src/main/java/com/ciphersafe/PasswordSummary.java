@@ -0,0 +1,23 @@
+package com.ciphersafe;
+
+/**
+ * PasswordSummary is a lightweight projection of the "Password" table used by the vault list.
+ * It carries only the columns shown in a list row, so the encrypted password and notes are never loaded while scrolling.
+ */
+public class PasswordSummary {
+
+    /**
+     * The primary key of the underlying {@link Password} record.
+     */
+    public int id;
+
+    /**
+     * The name of the account (e.g., the website or service name).
+     */
+    public String accountName;
+
+    /**
+     * The username or email associated with the account.
+     */
+    public String username;
+}
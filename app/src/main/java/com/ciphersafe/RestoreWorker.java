@@ -0,0 +1,444 @@
+package com.ciphersafe;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.OpenableColumns;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
+import androidx.work.Data;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+import com.google.android.gms.auth.api.signin.GoogleSignInAccount;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.FileList;
+
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * RestoreWorker restores a CipherSafe backup into the vault: either the backup on Google Drive, or a ".csvault" file
+ * exported to Download/CipherSafe and picked by the user.
+ * <p>
+ * The backup is streamed: entries are read one at a time with {@link VaultBackupReader}, their passwords are re-encrypted
+ * with this device's Keystore key in parallel, and they are inserted in transactions of {@link #BATCH_SIZE} entries,
+ * so memory use does not depend on the size of the backup. Progress is published after every batch, and the work can be
+ * cancelled between batches. Batches committed before a cancellation or failure are kept; restoring again skips them.
+ * <p>
+ * Restored entries are added as new rows. Entries already in the vault, with the same account name and username,
+ * are left as they are, so restoring the same backup twice does not duplicate entries.
+ * For a Drive backup, the journal segments of the chosen base snapshot that are newer than it are read first (their number
+ * is bounded by the backup's compaction) and applied to the base entries as they stream past. Every installation writes
+ * a base of its own, so the base is picked by its file id, never by its modification time; see {@link #listBackups}.
+ */
+public class RestoreWorker extends Worker {
+    // Unique work name; a restore that is already running is kept rather than replaced
+    public static final String WORK_NAME = "cipherSafe_restore";
+    // Input data: the content URI of a .csvault file, absent to restore from Google Drive
+    public static final String SOURCE_URI_KEY = "SOURCE_URI";
+    // Input data: the file id of the Drive base snapshot to restore; absent to restore this installation's own backup
+    public static final String BASE_FILE_ID_KEY = "BASE_FILE_ID";
+    // Progress and output data
+    public static final String RESTORED_COUNT_KEY = "RESTORED_COUNT";
+    public static final String SKIPPED_COUNT_KEY = "SKIPPED_COUNT";
+    public static final String BYTES_READ_KEY = "BYTES_READ";
+    public static final String TOTAL_BYTES_KEY = "TOTAL_BYTES";
+    public static final String ERROR_MESSAGE_KEY = "ERROR_MESSAGE";
+    // Entries encrypted and inserted per transaction; bounds both memory use and how long the database is locked
+    private static final int BATCH_SIZE = 500;
+    private static final String TAG = "RestoreWorker";
+    private static final Metrics.Histogram INSERT_BATCH_NANOS = Metrics.histogram("dao.restoreBatch");
+    private static final Metrics.Counter RESTORED_ENTRIES = Metrics.counter("restore.entries");
+    // Backup passwords of enqueued restores, by work id. WorkManager stores input data in plain text in its database,
+    // so the password is only handed over in memory; a restore whose process died before it ran fails and is started again.
+    private static final Map<UUID, String> PASSWORDS = new ConcurrentHashMap<>();
+
+    private final AppDatabase db;
+    private final SharedPreferences sharedPreferences;
+    private int restoredCount;
+    private int skippedCount;
+    private long totalBytes = -1;
+
+    /**
+     * Constructor for RestoreWorker.
+     *
+     * @param context The context of the application.
+     * @param params  The parameters passed to the worker.
+     */
+    public RestoreWorker(@NonNull Context context, @NonNull WorkerParameters params) {
+        super(context, params);
+        db = AppDatabase.getInstance(context);
+        sharedPreferences = context.getSharedPreferences("AppPreferences", Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Hands the backup password to a restore that is about to be enqueued. It is kept in memory only, until the restore
+     * finishes or {@link #forgetPassword(UUID)} is called.
+     *
+     * @param workId   The id of the restore's work request.
+     * @param password The backup password.
+     */
+    public static void setPassword(UUID workId, String password) {
+        PASSWORDS.put(workId, password);
+    }
+
+    /**
+     * Drops the backup password of a restore, e.g. one that was not enqueued because another restore was running.
+     *
+     * @param workId The id of the restore's work request.
+     */
+    public static void forgetPassword(UUID workId) {
+        PASSWORDS.remove(workId);
+    }
+
+    /**
+     * Restores the backup named by the input data, with the password given to {@link #setPassword(UUID, String)}.
+     *
+     * @return success with the restored and skipped counts, or failure with an error message.
+     */
+    @NonNull
+    @Override
+    public Result doWork() {
+        // Removed now, so the password does not outlive the run whatever its outcome
+        String password = PASSWORDS.remove(getId());
+        String sourceUri = getInputData().getString(SOURCE_URI_KEY);
+        if (password == null) {
+            return Result.failure(buildData().putString(ERROR_MESSAGE_KEY, "The restore was interrupted, please start it again").build());
+        }
+        long startTime = System.currentTimeMillis();
+        try {
+            if (sourceUri != null) {
+                restoreFromUri(Uri.parse(sourceUri), password);
+            } else {
+                restoreFromDrive(getInputData().getString(BASE_FILE_ID_KEY), password);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Restore failed after " + restoredCount + " entries: " + e.getMessage(), e);
+            return Result.failure(buildData().putString(ERROR_MESSAGE_KEY, e.getMessage()).build());
+        }
+        Log.d(TAG, "Restored " + restoredCount + " entries, skipped " + skippedCount + ", in "
+                + (System.currentTimeMillis() - startTime) + " ms" + (isStopped() ? " before being cancelled" : ""));
+        return Result.success(buildData().build());
+    }
+
+    /**
+     * Restores a .csvault file through the content resolver.
+     *
+     * @param uri      The content URI of the file.
+     * @param password The backup password.
+     * @throws Exception If the file could not be read, is not a valid backup, or the entries could not be stored.
+     */
+    private void restoreFromUri(Uri uri, String password) throws Exception {
+        try (Cursor cursor = getApplicationContext().getContentResolver().query(uri, new String[]{OpenableColumns.SIZE}, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst() && !cursor.isNull(0)) {
+                totalBytes = cursor.getLong(0);
+            }
+        }
+        InputStream in = getApplicationContext().getContentResolver().openInputStream(uri);
+        if (in == null) {
+            throw new IOException("The backup file could not be opened");
+        }
+        restore(in, password, Collections.<Integer, ChangeJournal.Entry>emptyMap());
+    }
+
+    /**
+     * Lists the backups in the "cipherSafe" folder on Google Drive: one base snapshot per installation that backed up.
+     * Makes network requests, so it must not be called on the main thread.
+     *
+     * @param context Any context.
+     * @param account The signed-in Google account.
+     * @return The base snapshots with their id, modification time, size and app properties, most recently modified first.
+     * @throws IOException If the folder does not exist or could not be listed.
+     */
+    public static List<File> listBackups(Context context, GoogleSignInAccount account) throws IOException {
+        Drive googleDriveService = DriveServiceHolder.getDrive(context, account);
+        String folderId = findCipherSafeFolder(googleDriveService, context.getSharedPreferences("AppPreferences", Context.MODE_PRIVATE));
+        List<File> bases = new ArrayList<>();
+        String pageToken = null;
+        do {
+            FileList result = googleDriveService.files().list()
+                    .setQ("'" + folderId + "' in parents and name='" + BackupWorker.BACKUP_FILE_NAME + "' and trashed=false")
+                    .setSpaces("drive")
+                    .setOrderBy("modifiedTime desc")
+                    .setFields("nextPageToken, files(id, modifiedTime, size, appProperties)")
+                    .setPageToken(pageToken)
+                    .execute();
+            bases.addAll(result.getFiles());
+            pageToken = result.getNextPageToken();
+        } while (pageToken != null);
+        return bases;
+    }
+
+    /**
+     * Restores a backup in the "cipherSafe" folder on Google Drive: a base snapshot and the journal segments written after it.
+     *
+     * @param baseFileId The file id of the base snapshot, or null for the one this installation backs up to, or the
+     *                   only one there is.
+     * @param password   The backup password.
+     * @throws Exception If the backup could not be found, downloaded or read, or the entries could not be stored.
+     */
+    private void restoreFromDrive(String baseFileId, String password) throws Exception {
+        GoogleSignInAccount account = DriveServiceHolder.getSignedInAccount(getApplicationContext());
+        if (account == null) {
+            throw new IOException("Sign in to Google Drive to restore its backup");
+        }
+        Drive googleDriveService = DriveServiceHolder.getDrive(getApplicationContext(), account);
+        String folderId = findCipherSafeFolder(googleDriveService, sharedPreferences);
+        if (baseFileId == null) {
+            baseFileId = sharedPreferences.getString("GOOGLE_DRIVE_FILE_ID", null);
+        }
+        if (baseFileId == null) {
+            List<File> bases = listBackups(getApplicationContext(), account);
+            if (bases.isEmpty()) {
+                throw new IOException("No backup found on Google Drive");
+            }
+            if (bases.size() > 1) {
+                throw new IOException("Google Drive holds backups of several devices; choose one to restore");
+            }
+            baseFileId = bases.get(0).getId();
+        }
+        File base = googleDriveService.files().get(baseFileId)
+                .setFields("id, size, appProperties")
+                .execute();
+        if (base.getSize() != null) {
+            totalBytes = base.getSize();
+        }
+
+        // Without a recorded sequence number it is unknown which segments are newer than the base, so none are applied
+        long baseSeq = Long.MAX_VALUE;
+        if (base.getAppProperties() != null && base.getAppProperties().get(BackupWorker.BASE_JOURNAL_SEQ_PROPERTY) != null) {
+            baseSeq = Long.parseLong(base.getAppProperties().get(BackupWorker.BASE_JOURNAL_SEQ_PROPERTY));
+        }
+        Map<Integer, ChangeJournal.Entry> changes = readJournalChanges(googleDriveService, folderId, base.getId(), baseSeq, password);
+
+        restore(googleDriveService.files().get(base.getId()).executeMediaAsInputStream(), password, changes);
+    }
+
+    /**
+     * Returns the ID of the "cipherSafe" folder on Google Drive. Unlike a backup, a restore never creates it.
+     *
+     * @param googleDriveService The Google Drive service instance.
+     * @param sharedPreferences  The "AppPreferences" preferences, which hold the folder ID once a backup found it.
+     * @return The ID of the folder.
+     * @throws IOException If the folder does not exist or could not be listed.
+     */
+    private static String findCipherSafeFolder(Drive googleDriveService, SharedPreferences sharedPreferences) throws IOException {
+        String folderId = sharedPreferences.getString(BackupWorker.DRIVE_FOLDER_ID_KEY, null);
+        if (folderId != null) {
+            return folderId;
+        }
+        FileList result = googleDriveService.files().list()
+                .setQ("mimeType='application/vnd.google-apps.folder' and name='cipherSafe' and trashed=false")
+                .setSpaces("drive")
+                .setFields("files(id)")
+                .execute();
+        if (result.getFiles().isEmpty()) {
+            throw new IOException("No backup found on Google Drive");
+        }
+        return result.getFiles().get(0).getId();
+    }
+
+    /**
+     * Reads the journal segments written after the base snapshot and folds them into the latest change per row, deletes included.
+     * Only segments that name the base as theirs are read; segments of other bases and of older versions are ignored.
+     *
+     * @param googleDriveService The Google Drive service instance.
+     * @param folderId           The ID of the "cipherSafe" folder.
+     * @param baseFileId         The file id of the base snapshot.
+     * @param baseSeq            The sequence number the base snapshot was taken at.
+     * @param password           The backup password.
+     * @return The latest change per row id, in the order the rows first changed.
+     * @throws IOException If a segment could not be downloaded or decrypted.
+     */
+    @VisibleForTesting
+    static Map<Integer, ChangeJournal.Entry> readJournalChanges(Drive googleDriveService, String folderId, String baseFileId, long baseSeq, String password) throws IOException {
+        List<File> segments = new ArrayList<>();
+        String pageToken = null;
+        do {
+            FileList result = googleDriveService.files().list()
+                    .setQ("'" + folderId + "' in parents and name contains 'journal-' and trashed=false and appProperties has { key='"
+                            + BackupWorker.SEGMENT_BASE_ID_PROPERTY + "' and value='" + baseFileId + "' }")
+                    .setSpaces("drive")
+                    .setFields("nextPageToken, files(id, name)")
+                    .setPageToken(pageToken)
+                    .execute();
+            for (File segment : result.getFiles()) {
+                // Segments left over from before the base are already contained in it
+                if (ChangeJournal.isSegmentName(segment.getName()) && ChangeJournal.segmentSeq(segment.getName()) > baseSeq) {
+                    segments.add(segment);
+                }
+            }
+            pageToken = result.getNextPageToken();
+        } while (pageToken != null);
+        // Zero-padded names sort in replay order
+        Collections.sort(segments, (a, b) -> a.getName().compareTo(b.getName()));
+
+        Map<Integer, ChangeJournal.Entry> changes = new LinkedHashMap<>();
+        for (File segment : segments) {
+            try (InputStream in = googleDriveService.files().get(segment.getId()).executeMediaAsInputStream()) {
+                for (ChangeJournal.Entry entry : ChangeJournal.read(in, password).entries) {
+                    changes.put(entry.id, ChangeJournal.apply(changes.get(entry.id), entry));
+                }
+            }
+        }
+        Log.d(TAG, "Read " + changes.size() + " journaled changes from " + segments.size() + " segments");
+        return changes;
+    }
+
+    /**
+     * Streams a .csvault backup into the vault, applying the given journal changes on the way.
+     *
+     * @param in       The backup stream; it is closed when done.
+     * @param password The backup password.
+     * @param changes  The latest journaled change per row id of the backup; entries are removed as they are applied.
+     * @throws Exception If the backup is not valid or the entries could not be stored.
+     */
+    private void restore(InputStream in, String password, Map<Integer, ChangeJournal.Entry> changes) throws Exception {
+        CountingInputStream counted = new CountingInputStream(new BufferedInputStream(in, 64 * 1024));
+        List<ChangeJournal.Entry> batch = new ArrayList<>(BATCH_SIZE);
+        try (VaultBackupReader reader = new VaultBackupReader(counted, password)) {
+            ChangeJournal.Entry entry;
+            while ((entry = reader.read()) != null) {
+                ChangeJournal.Entry change = changes.isEmpty() ? null : changes.remove(entry.id);
+                if (change != null) {
+                    if (change.op == ChangeRecord.OP_DELETE) {
+                        continue;
+                    }
+                    entry = ChangeJournal.apply(entry, change);
+                }
+                batch.add(entry);
+                if (batch.size() == BATCH_SIZE) {
+                    insertBatch(batch, counted.getCount());
+                    if (isStopped()) {
+                        return;
+                    }
+                }
+            }
+        }
+        // What is left was created after the base snapshot
+        for (ChangeJournal.Entry change : changes.values()) {
+            if (change.op == ChangeRecord.OP_UPSERT) {
+                batch.add(change);
+                if (batch.size() == BATCH_SIZE) {
+                    insertBatch(batch, counted.getCount());
+                    if (isStopped()) {
+                        return;
+                    }
+                }
+            }
+        }
+        insertBatch(batch, counted.getCount());
+    }
+
+    /**
+     * Re-encrypts a batch of entries with this device's key and inserts the new ones in one transaction, then publishes progress.
+     * Entries whose password was not decryptable when the backup was made are skipped.
+     *
+     * @param batch     The entries to insert; cleared when done.
+     * @param bytesRead The number of backup bytes read so far.
+     * @throws Exception If the passwords could not be encrypted.
+     */
+    private void insertBatch(List<ChangeJournal.Entry> batch, long bytesRead) throws Exception {
+        List<ChangeJournal.Entry> restorable = new ArrayList<>(batch.size());
+        List<String> plainPasswords = new ArrayList<>(batch.size());
+        for (ChangeJournal.Entry entry : batch) {
+            if (entry.password == null) {
+                skippedCount++;
+            } else {
+                restorable.add(entry);
+                plainPasswords.add(entry.password);
+            }
+        }
+        batch.clear();
+
+        // Encrypt outside the transaction so the database is only locked for the inserts
+        List<byte[]> encryptedPasswords = EncryptionUtils.encryptAll(plainPasswords);
+        PasswordDao passwordDao = db.passwordDao();
+        int[] inserted = new int[1];
+        long transactionStart = System.nanoTime();
+        db.runInTransaction(() -> {
+            for (int i = 0; i < restorable.size(); i++) {
+                ChangeJournal.Entry entry = restorable.get(i);
+                // Rows inserted earlier in the transaction are visible, so duplicates within the backup are caught too
+                if (passwordDao.exists(entry.accountName, entry.username)) {
+                    continue;
+                }
+                Password row = new Password();
+                row.accountName = entry.accountName;
+                row.username = entry.username;
+                row.password = encryptedPasswords.get(i);
+                row.notes = entry.notes;
+                passwordDao.insert(row);
+                inserted[0]++;
+            }
+        });
+        INSERT_BATCH_NANOS.recordSince(transactionStart);
+        RESTORED_ENTRIES.add(inserted[0]);
+        restoredCount += inserted[0];
+        skippedCount += restorable.size() - inserted[0];
+
+        setProgressAsync(buildData().putLong(BYTES_READ_KEY, bytesRead).build());
+    }
+
+    // Progress and output data shared by every report
+    private Data.Builder buildData() {
+        return new Data.Builder()
+                .putInt(RESTORED_COUNT_KEY, restoredCount)
+                .putInt(SKIPPED_COUNT_KEY, skippedCount)
+                .putLong(TOTAL_BYTES_KEY, totalBytes);
+    }
+
+    /**
+     * Counts the bytes read from the backup, for progress reporting.
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+        private long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+}
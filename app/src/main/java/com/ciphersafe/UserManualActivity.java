@@ -3,11 +3,13 @@ package com.ciphersafe;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.Bundle;
+import android.util.Log;
 import android.widget.Button;
 import android.widget.TextView;
 import androidx.appcompat.app.AppCompatActivity;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 
 /**
@@ -15,6 +17,9 @@ import java.util.ArrayList;
  * It provides options for users to read the manual, close the activity, and send log files for troubleshooting.
  */
 public class UserManualActivity extends AppCompatActivity {
+    // Upper bound on the wait for queued log messages before sending the log files
+    private static final long LOG_FLUSH_TIMEOUT_MILLIS = 2000;
+
     /**
      * Called when the activity is first created. It sets up the user interface for displaying the user manual.
      * It also sets up buttons to close the activity and send log files to the developer.
@@ -74,6 +79,9 @@ public class UserManualActivity extends AppCompatActivity {
                 "Tap the download icon at the top of the main screen to export your passwords to an Excel file.\n" +
                 "You will be prompted to set a password to encrypt the Excel file.\n" +
                 "The file will be saved in your device's \"Download\" directory and can also be uploaded to Google Drive if connected.\n" +
+                "4.3. Restoring a Backup\n" +
+                "Press and hold the download icon to restore a backup, either from Google Drive or from a CipherSafe backup (.csvault) file.\n" +
+                "Enter the password the backup was made with. Entries that are already in the app are kept as they are.\n" +
                 "5. Security Features\n" +
                 "5.1. Biometric Authentication\n" +
                 "The app supports biometric authentication (fingerprint or face recognition) to provide an additional layer of security.\n" +
@@ -99,24 +107,42 @@ public class UserManualActivity extends AppCompatActivity {
 
         userManualText.setText(userManualContent);
         closeButton.setOnClickListener(v -> finish());
-        sendLogButton.setOnClickListener(v -> sendLogFile());
+        sendLogButton.setOnClickListener(v -> {
+            // The logs are kept as binary segments; render them to text off the main thread before attaching the files
+            new Thread(() -> {
+                DebugLog debugLog = DebugLog.get(this);
+                for (String fileName : new String[]{DebugLog.BACKUP_LOG, DebugLog.MAIN_LOG}) {
+                    try {
+                        debugLog.exportText(fileName, LOG_FLUSH_TIMEOUT_MILLIS);
+                    } catch (IOException e) {
+                        Log.e("UserManualActivity", "Failed to export " + fileName + ": " + e.getMessage());
+                    }
+                }
+                runOnUiThread(this::sendLogFile);
+            }).start();
+        });
+        // Backup timings for troubleshooting slow backups; kept out of the way of regular users
+        sendLogButton.setOnLongClickListener(v -> {
+            startActivity(new Intent(this, DiagnosticsActivity.class));
+            return true;
+        });
     }
     /**
-     * Sends the log file via email to the developer. The log file is retrieved from the cache directory,
+     * Sends the log file via email to the developer. The log files, rendered by DebugLog, are retrieved from the cache directory,
      * and an email intent is created to send the file using the Gmail app.
      */
     private void sendLogFile() {
         try {
             // Get the log files from the cache directory
             File cacheDir = getCacheDir();
-            File backupWorkerLogFile = new File(cacheDir, "BackupWorkerLog.txt");
-            File mainActivityLogFile = new File(cacheDir, "MainActivity.txt");
+            File backupWorkerLogFile = new File(cacheDir, DebugLog.BACKUP_LOG);
+            File mainActivityLogFile = new File(cacheDir, DebugLog.MAIN_LOG);
 
             // List to hold URIs of log files
             ArrayList<Uri> fileUris = new ArrayList<>();
 
-            // Check if BackupWorkerLog file exists and add to the list
-            if (backupWorkerLogFile.exists()) {
+            // Check if BackupWorkerLog file has any content and add to the list
+            if (backupWorkerLogFile.length() > 0) {
                 Uri fileUri = androidx.core.content.FileProvider.getUriForFile(
                         this,
                         getApplicationContext().getPackageName() + ".provider",
@@ -124,8 +150,8 @@ public class UserManualActivity extends AppCompatActivity {
                 fileUris.add(fileUri);
             }
 
-            // Check if MainActivity log file exists and add to the list
-            if (mainActivityLogFile.exists()) {
+            // Check if MainActivity log file has any content and add to the list
+            if (mainActivityLogFile.length() > 0) {
                 Uri fileUri = androidx.core.content.FileProvider.getUriForFile(
                         this,
                         getApplicationContext().getPackageName() + ".provider",
@@ -0,0 +1,176 @@
+package com.ciphersafe;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import javax.crypto.SecretKey;
+
+/**
+ * VaultBackupReader reads a ".csvault" backup written by {@link VaultBackupWriter}, one entry at a time,
+ * so memory use does not depend on the vault size.
+ * Every chunk is authenticated before any of its records are returned; a wrong password, a modified file or a
+ * truncated file fails with an {@link IOException}.
+ */
+public class VaultBackupReader implements Closeable {
+
+    // Upper bound on the chunk size accepted from a header, so a corrupt header cannot trigger a huge allocation
+    private static final int MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+
+    private final InputStream in;
+    private final Inflater inflater;
+    private final OpeningInputStream chunks;
+    private final DataInputStream records;
+    private boolean finished;
+
+    /**
+     * Opens a backup stream: reads the header and derives the decryption key.
+     *
+     * @param in       The stream to read the backup from; it is closed by {@link #close()}.
+     * @param password The backup password.
+     * @throws IOException If the stream is not a .csvault backup or the key could not be derived.
+     */
+    public VaultBackupReader(InputStream in, String password) throws IOException {
+        this.in = in;
+        DataInputStream header = new DataInputStream(in);
+        if (header.readInt() != VaultBackupWriter.MAGIC) {
+            throw new IOException("Not a CipherSafe backup");
+        }
+        int version = header.readInt();
+        if (version != VaultBackupWriter.FORMAT_VERSION) {
+            throw new IOException("Unsupported backup version " + version);
+        }
+        byte[] salt = new byte[EncryptionUtils.BACKUP_SALT_LENGTH];
+        header.readFully(salt);
+        int chunkSize = header.readInt();
+        if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+            throw new IOException("Corrupt backup header");
+        }
+
+        SecretKey key;
+        try {
+            key = EncryptionUtils.deriveBackupKey(password, salt);
+        } catch (Exception e) {
+            throw new IOException("Failed to derive the backup key", e);
+        }
+        inflater = new Inflater();
+        chunks = new OpeningInputStream(in, key, chunkSize);
+        records = new DataInputStream(new BufferedInputStream(new InflaterInputStream(chunks, inflater, 8192), 8192));
+    }
+
+    /**
+     * Reads the next entry.
+     *
+     * @return The entry as an upsert {@link ChangeJournal.Entry}, or null after the last entry.
+     * @throws IOException If the backup is corrupt, truncated or was encrypted with another password.
+     */
+    public ChangeJournal.Entry read() throws IOException {
+        if (finished) {
+            return null;
+        }
+        byte type = records.readByte();
+        if (type == VaultBackupWriter.RECORD_END) {
+            // Read up to the end of the chunk stream, which verifies that the final chunk is present and authentic
+            if (records.read() != -1 || chunks.read() != -1) {
+                throw new IOException("Unexpected data after the end of the backup");
+            }
+            finished = true;
+            return null;
+        }
+        if (type != VaultBackupWriter.RECORD_ENTRY) {
+            throw new IOException("Unknown backup record type " + type);
+        }
+        int id = records.readInt();
+        return new ChangeJournal.Entry(ChangeRecord.OP_UPSERT, id,
+                ChangeJournal.readString(records), ChangeJournal.readString(records),
+                ChangeJournal.readString(records), ChangeJournal.readString(records));
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            in.close();
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Reads sealed chunks, authenticates and decrypts them, and returns their payload as one stream.
+     * The stream ends only after the chunk marked last; running out of chunks before that is an error.
+     */
+    private static final class OpeningInputStream extends InputStream {
+        private final DataInputStream in;
+        private final SecretKey key;
+        private final int maxSealedLength;
+        private byte[] chunk = new byte[0];
+        private int position;
+        private long chunkIndex;
+        private boolean lastChunkRead;
+
+        OpeningInputStream(InputStream in, SecretKey key, int chunkSize) {
+            this.in = new DataInputStream(in);
+            this.key = key;
+            // IV and GCM tag on top of the payload; anything larger is corrupt and must not be allocated
+            this.maxSealedLength = chunkSize + 12 + 16;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return chunk[position++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int count = Math.min(length, chunk.length - position);
+            System.arraycopy(chunk, position, buffer, offset, count);
+            position += count;
+            return count;
+        }
+
+        // Makes sure unread payload is available; returns false at the end of the last chunk
+        private boolean fill() throws IOException {
+            while (position == chunk.length) {
+                if (lastChunkRead) {
+                    return false;
+                }
+                boolean last;
+                byte[] sealed;
+                try {
+                    last = in.readBoolean();
+                    int sealedLength = in.readInt();
+                    if (sealedLength < 0 || sealedLength > maxSealedLength) {
+                        throw new IOException("Corrupt backup chunk " + chunkIndex);
+                    }
+                    sealed = new byte[sealedLength];
+                    in.readFully(sealed);
+                } catch (EOFException e) {
+                    throw new IOException("The backup is truncated", e);
+                }
+                try {
+                    chunk = EncryptionUtils.decryptWithKey(key, sealed, 0, sealed.length, VaultBackupWriter.chunkAssociatedData(chunkIndex, last));
+                } catch (Exception e) {
+                    throw new IOException("Backup chunk " + chunkIndex + " failed authentication; wrong password or corrupt file", e);
+                }
+                position = 0;
+                chunkIndex++;
+                lastChunkRead = last;
+            }
+            return true;
+        }
+    }
+}
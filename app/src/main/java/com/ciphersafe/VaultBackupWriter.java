@@ -0,0 +1,224 @@
+package com.ciphersafe;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import javax.crypto.SecretKey;
+
+/**
+ * VaultBackupWriter writes the native ".csvault" backup format as a stream, so memory use does not depend on the vault size.
+ * <p>
+ * A .csvault file is a plain header (magic, format version, PBKDF2 salt, chunk size) followed by a sequence of
+ * sealed chunks. The payload inside the chunks is a deflate stream of framed records: an entry record per vault entry,
+ * then an end record. The payload is cut into chunks of {@link #CHUNK_SIZE} bytes, and each chunk is encrypted with
+ * AES-GCM under a key derived from the backup password. Each chunk's index and a final-chunk flag are authenticated
+ * with it, so chunks cannot be reordered, dropped or appended, and a truncated file is detected.
+ * <p>
+ * Entries carry the row id, so journal segments can be replayed on top of a restored snapshot; see {@link ChangeJournal}.
+ * Read the format with {@link VaultBackupReader}.
+ * <p>
+ * A backup is only complete once {@link #finish()} returned. Closing the writer without finishing it, e.g. when an
+ * exception leaves a try-with-resources block, closes the stream without the end record and the final chunk, so the
+ * reader rejects the file as truncated.
+ */
+public class VaultBackupWriter implements Closeable {
+
+    static final int MAGIC = 0x43535631; // "CSV1"
+    static final int FORMAT_VERSION = 1;
+    // Plaintext bytes per sealed chunk: large enough that the per-chunk IV and tag are negligible, small enough to stay off the large heap
+    static final int CHUNK_SIZE = 64 * 1024;
+    static final byte RECORD_ENTRY = 1;
+    static final byte RECORD_END = 0;
+
+    private final Deflater deflater;
+    private final SealingOutputStream sealing;
+    private final DataOutputStream records;
+    private int entryCount;
+    private boolean closed;
+
+    /**
+     * Starts a backup stream: writes the header and derives the encryption key.
+     *
+     * @param out      The stream to write the backup to; it is closed by {@link #finish()} or {@link #close()}.
+     * @param password The backup password.
+     * @throws IOException If the header could not be written or the key could not be derived.
+     */
+    public VaultBackupWriter(OutputStream out, String password) throws IOException {
+        byte[] salt = EncryptionUtils.newBackupSalt();
+        SecretKey key;
+        try {
+            key = EncryptionUtils.deriveBackupKey(password, salt);
+        } catch (Exception e) {
+            throw new IOException("Failed to derive the backup key", e);
+        }
+
+        DataOutputStream header = new DataOutputStream(out);
+        header.writeInt(MAGIC);
+        header.writeInt(FORMAT_VERSION);
+        header.write(salt);
+        header.writeInt(CHUNK_SIZE);
+
+        deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        // Buffered so the many small writes of a record reach the deflater in blocks
+        sealing = new SealingOutputStream(out, key);
+        records = new DataOutputStream(new BufferedOutputStream(new DeflaterOutputStream(sealing, deflater, 8192), 8192));
+    }
+
+    /**
+     * Appends one vault entry.
+     *
+     * @param id          The id of the entry.
+     * @param accountName The account name.
+     * @param username    The username.
+     * @param password    The plain-text password, or null if it could not be decrypted.
+     * @param notes       The notes.
+     * @throws IOException If the entry could not be written.
+     */
+    public void write(int id, String accountName, String username, String password, String notes) throws IOException {
+        records.writeByte(RECORD_ENTRY);
+        records.writeInt(id);
+        ChangeJournal.writeString(records, accountName);
+        ChangeJournal.writeString(records, username);
+        ChangeJournal.writeString(records, password);
+        ChangeJournal.writeString(records, notes);
+        entryCount++;
+    }
+
+    /**
+     * Returns the number of entries written so far.
+     *
+     * @return The entry count.
+     */
+    public int getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     * Writes the end record, seals the final chunk and closes the underlying stream, completing the backup.
+     *
+     * @throws IOException If the backup could not be completed; it is then left truncated.
+     */
+    public void finish() throws IOException {
+        if (closed) {
+            throw new IOException("The backup stream is already closed");
+        }
+        records.writeByte(RECORD_END);
+        // Closing the record stream finishes the deflate data, seals the final chunk and closes the output
+        records.close();
+        closed = true;
+        // A deflater passed in by the caller is not ended by the stream
+        deflater.end();
+    }
+
+    /**
+     * Closes the underlying stream. Unless {@link #finish()} completed the backup before, nothing more is written,
+     * so the reader rejects the backup as truncated.
+     *
+     * @throws IOException If the underlying stream could not be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            sealing.abort();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Returns the associated data authenticated with a chunk: its index and whether it is the last chunk.
+     *
+     * @param index The index of the chunk, starting at 0.
+     * @param last  true for the last chunk of the stream.
+     * @return The associated data.
+     */
+    static byte[] chunkAssociatedData(long index, boolean last) {
+        return ByteBuffer.allocate(9).putLong(index).put((byte) (last ? 1 : 0)).array();
+    }
+
+    /**
+     * Buffers the payload and writes it out as sealed chunks of {@link #CHUNK_SIZE} bytes.
+     * A full buffer is only sealed once more data arrives, so the chunk sealed by {@link #close()} is always marked last;
+     * {@link #abort()} closes the output without sealing anything more.
+     */
+    private static final class SealingOutputStream extends OutputStream {
+        private final DataOutputStream out;
+        private final SecretKey key;
+        private final byte[] buffer = new byte[CHUNK_SIZE];
+        private int buffered;
+        private long chunkIndex;
+        private boolean closed;
+
+        SealingOutputStream(OutputStream out, SecretKey key) {
+            this.out = new DataOutputStream(out);
+            this.key = key;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (buffered == CHUNK_SIZE) {
+                sealChunk(false);
+            }
+            buffer[buffered++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (buffered == CHUNK_SIZE) {
+                    sealChunk(false);
+                }
+                int count = Math.min(length, CHUNK_SIZE - buffered);
+                System.arraycopy(data, offset, buffer, buffered, count);
+                buffered += count;
+                offset += count;
+                length -= count;
+            }
+        }
+
+        // Chunk frame: last flag, sealed length, then the IV and ciphertext
+        private void sealChunk(boolean last) throws IOException {
+            byte[] sealed;
+            try {
+                sealed = EncryptionUtils.encryptWithKey(key, buffer, 0, buffered, chunkAssociatedData(chunkIndex, last));
+            } catch (Exception e) {
+                throw new IOException("Failed to encrypt backup chunk " + chunkIndex, e);
+            }
+            out.writeBoolean(last);
+            out.writeInt(sealed.length);
+            out.write(sealed);
+            chunkIndex++;
+            buffered = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                sealChunk(true);
+                out.flush();
+            } finally {
+                out.close();
+            }
+        }
+
+        // Closes the output without sealing the buffered data, leaving the stream without its final chunk
+        void abort() throws IOException {
+            closed = true;
+            out.close();
+        }
+    }
+}
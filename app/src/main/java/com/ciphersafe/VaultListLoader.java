@@ -0,0 +1,182 @@
+package com.ciphersafe;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MutableLiveData;
+import androidx.room.InvalidationTracker;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * VaultListLoader loads the vault list page by page with keyset queries, and keeps the loaded rows current.
+ * <p>
+ * Each page is read with {@link PasswordDao#getSummaryPage(int, int)} after the last id already loaded, so loading the
+ * next page costs the same however far the user has scrolled. The "Password" table is watched through Room's
+ * invalidation tracker rather than an observed query; when it changes, only the range already loaded is read again,
+ * plus the next page if the end of the vault was shown, so new entries appear.
+ * <p>
+ * Queries run on the database's query executor; every other method must be called on the main thread, where the
+ * rows are also delivered.
+ */
+final class VaultListLoader {
+
+    private static final String TAG = "VaultListLoader";
+    private static final Metrics.Histogram PAGE_NANOS = Metrics.histogram("dao.listPage");
+
+    private final AppDatabase db;
+    private final int pageSize;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final MutableLiveData<List<PasswordSummary>> rows = new MutableLiveData<>();
+    private final InvalidationTracker.Observer observer = new InvalidationTracker.Observer("Password") {
+        @Override
+        public void onInvalidated(@NonNull Set<String> tables) {
+            mainHandler.post(VaultListLoader.this::reload);
+        }
+    };
+
+    // Main-thread state
+    private List<PasswordSummary> loaded = Collections.emptyList();
+    private boolean endReached;
+    private boolean loading;
+    private boolean started;
+    // Incremented by every reload, so a page read before the table changed is dropped
+    private int version;
+
+    /**
+     * Creates a loader; nothing is read until {@link #start()}.
+     *
+     * @param db       The database to read from.
+     * @param pageSize The number of rows read per page.
+     */
+    VaultListLoader(AppDatabase db, int pageSize) {
+        this.db = db;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Returns the rows loaded so far, ordered by id. A new list is delivered after every page and every change.
+     *
+     * @return A LiveData list of {@link PasswordSummary} objects.
+     */
+    LiveData<List<PasswordSummary>> getRows() {
+        return rows;
+    }
+
+    /**
+     * Starts watching the "Password" table and loads the first page.
+     */
+    void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+        db.getInvalidationTracker().addObserver(observer);
+        reload();
+    }
+
+    /**
+     * Stops watching the "Password" table; results of queries still running are dropped.
+     */
+    void stop() {
+        if (!started) {
+            return;
+        }
+        started = false;
+        version++;
+        db.getInvalidationTracker().removeObserver(observer);
+    }
+
+    /**
+     * Loads the page after the last loaded row, unless a load is running or the end of the vault was reached.
+     */
+    void loadMore() {
+        if (!started || loading || endReached) {
+            return;
+        }
+        loading = true;
+        int requestVersion = version;
+        int afterId = loaded.isEmpty() ? 0 : loaded.get(loaded.size() - 1).id;
+        query(() -> db.passwordDao().getSummaryPage(afterId, pageSize), page -> {
+            if (requestVersion != version) {
+                return;
+            }
+            List<PasswordSummary> next = new ArrayList<>(loaded.size() + page.size());
+            next.addAll(loaded);
+            next.addAll(page);
+            deliver(next, page.size() < pageSize);
+        });
+    }
+
+    // Reads the loaded range again after a change, and the next page too if the end was shown
+    private void reload() {
+        if (!started) {
+            return;
+        }
+        loading = true;
+        int requestVersion = ++version;
+        boolean loadNext = loaded.isEmpty() || endReached;
+        int lastId = loaded.isEmpty() ? 0 : loaded.get(loaded.size() - 1).id;
+        query(() -> {
+            PasswordDao passwordDao = db.passwordDao();
+            List<PasswordSummary> reloaded = new ArrayList<>(passwordDao.getSummariesUpTo(lastId));
+            if (loadNext) {
+                reloaded.addAll(passwordDao.getSummaryPage(lastId, pageSize));
+            }
+            return reloaded;
+        }, reloaded -> {
+            if (requestVersion != version) {
+                return;
+            }
+            int nextPageSize = reloaded.size() - countUpTo(reloaded, lastId);
+            deliver(reloaded, loadNext ? nextPageSize < pageSize : endReached);
+        });
+    }
+
+    private void deliver(List<PasswordSummary> next, boolean end) {
+        loaded = next;
+        endReached = end;
+        loading = false;
+        rows.setValue(Collections.unmodifiableList(next));
+    }
+
+    // Number of rows with an id up to lastId; the rows are ordered by id
+    private static int countUpTo(List<PasswordSummary> rows, int lastId) {
+        int count = 0;
+        while (count < rows.size() && rows.get(count).id <= lastId) {
+            count++;
+        }
+        return count;
+    }
+
+    private interface Query {
+        List<PasswordSummary> run();
+    }
+
+    private interface Result {
+        void accept(List<PasswordSummary> rows);
+    }
+
+    // Runs a query on the query executor and hands its result to the main thread
+    private void query(Query query, Result result) {
+        db.getQueryExecutor().execute(() -> {
+            List<PasswordSummary> queried;
+            long startNanos = System.nanoTime();
+            try {
+                queried = query.run();
+                PAGE_NANOS.recordSince(startNanos);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Failed to load the vault list", e);
+                mainHandler.post(() -> loading = false);
+                return;
+            }
+            mainHandler.post(() -> result.accept(queried));
+        });
+    }
+}
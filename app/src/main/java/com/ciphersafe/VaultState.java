@@ -0,0 +1,29 @@
+package com.ciphersafe;
+
+import androidx.room.Entity;
+import androidx.room.PrimaryKey;
+
+/**
+ * VaultState is a single-row table holding metadata about the vault as a whole.
+ * Its generation counter is incremented by database triggers on every insert, update and delete in the "Password" table,
+ * so any change to the vault, whichever code path makes it, produces a new generation.
+ */
+@Entity(tableName = "vault_state")
+public class VaultState {
+
+    /**
+     * The id of the only row in the table.
+     */
+    public static final int SINGLETON_ID = 0;
+
+    /**
+     * The primary key; always {@link #SINGLETON_ID}.
+     */
+    @PrimaryKey
+    public int id;
+
+    /**
+     * The number of writes made to the "Password" table since the counter was created.
+     */
+    public long generation;
+}
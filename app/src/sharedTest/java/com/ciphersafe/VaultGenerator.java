@@ -0,0 +1,115 @@
+package com.ciphersafe;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * VaultGenerator fills a database with synthetic entries, to reproduce the behaviour of large vaults.
+ * <p>
+ * The content is deterministic: entry i always has the same account name, username, password and notes for the same
+ * seed and field lengths, whatever the number of entries, so {@link #accountName(int)} can name an existing entry
+ * without reading the database. Account names end with the entry index and are therefore unique. Passwords are
+ * encrypted with {@link EncryptionUtils} like real entries; only the IVs, and so the ciphertexts, differ between runs.
+ * <p>
+ * Only use it on a database of its own, such as {@link AppDatabase#createInMemory(android.content.Context)}.
+ * It is shared by the local tests, the instrumented tests and {@code BenchmarkVaultSeeder} in benchmark builds.
+ */
+final class VaultGenerator {
+
+    private static final String ALPHABET = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
+    private static final String PASSWORD_ALPHABET = ALPHABET + "!@#$%^&*-_=+";
+    // Rows encrypted and inserted per transaction
+    private static final int BATCH_SIZE = 1000;
+
+    private final long seed;
+    private final int accountNameLength;
+    private final int usernameLength;
+    private final int passwordLength;
+    private final int notesLength;
+
+    /**
+     * Creates a generator.
+     *
+     * @param seed              The seed of the content.
+     * @param accountNameLength The length of the random part of account names; the entry index is appended.
+     * @param usernameLength    The length of usernames.
+     * @param passwordLength    The length of the plain-text passwords.
+     * @param notesLength       The length of the notes, or 0 for entries without notes.
+     */
+    VaultGenerator(long seed, int accountNameLength, int usernameLength, int passwordLength, int notesLength) {
+        this.seed = seed;
+        this.accountNameLength = accountNameLength;
+        this.usernameLength = usernameLength;
+        this.passwordLength = passwordLength;
+        this.notesLength = notesLength;
+    }
+
+    /**
+     * Creates a generator with field lengths typical of a real vault: short names and passwords, short notes.
+     *
+     * @param seed The seed of the content.
+     * @return The generator.
+     */
+    static VaultGenerator typical(long seed) {
+        return new VaultGenerator(seed, 12, 20, 16, 64);
+    }
+
+    /**
+     * Inserts entries 0 to rowCount - 1 through {@link PasswordDao}, in batches of one transaction each.
+     * Must not be called on the main thread; encrypting a large vault takes a while.
+     *
+     * @param db       The database to fill.
+     * @param rowCount The number of entries.
+     * @throws Exception If a password could not be encrypted.
+     */
+    void seed(AppDatabase db, int rowCount) throws Exception {
+        PasswordDao passwordDao = db.passwordDao();
+        for (int from = 0; from < rowCount; from += BATCH_SIZE) {
+            int to = Math.min(rowCount, from + BATCH_SIZE);
+            List<Password> rows = new ArrayList<>(to - from);
+            List<String> plainPasswords = new ArrayList<>(to - from);
+            for (int i = from; i < to; i++) {
+                Random random = randomFor(i);
+                Password row = new Password();
+                row.accountName = randomString(random, ALPHABET, accountNameLength) + "-" + i;
+                row.username = randomString(random, ALPHABET, usernameLength);
+                plainPasswords.add(randomString(random, PASSWORD_ALPHABET, passwordLength));
+                row.notes = notesLength > 0 ? randomString(random, ALPHABET, notesLength) : null;
+                rows.add(row);
+            }
+            // Encrypted outside the transaction, as RestoreWorker does, so the write lock is only held for the inserts
+            List<byte[]> encryptedPasswords = EncryptionUtils.encryptAll(plainPasswords);
+            db.runInTransaction(() -> {
+                for (int i = 0; i < rows.size(); i++) {
+                    Password row = rows.get(i);
+                    row.password = encryptedPasswords.get(i);
+                    passwordDao.insert(row);
+                }
+            });
+        }
+    }
+
+    /**
+     * Returns the account name of an entry, as {@link #seed(AppDatabase, int)} stores it.
+     *
+     * @param index The index of the entry.
+     * @return The account name.
+     */
+    String accountName(int index) {
+        return randomString(randomFor(index), ALPHABET, accountNameLength) + "-" + index;
+    }
+
+    // Each entry has its own generator, so its content does not depend on the entries before it
+    private Random randomFor(int index) {
+        return new Random(seed + index * 0x9E3779B97F4A7C15L);
+    }
+
+    private static String randomString(Random random, String alphabet, int length) {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = alphabet.charAt(random.nextInt(alphabet.length()));
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,158 @@
+package com.ciphersafe;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import androidx.test.core.app.ApplicationProvider;
+import androidx.work.Data;
+import androidx.work.ListenableWorker;
+import androidx.work.testing.TestWorkerBuilder;
+
+import com.google.android.gms.auth.api.signin.GoogleSignIn;
+import com.google.android.gms.common.api.Scope;
+import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.DriveScopes;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+/**
+ * Runs {@link BackupWorker} against a local server that answers like Google Drive, to check that an upload interrupted
+ * by a server error is retried and then resumed from the last byte the server committed.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class BackupWorkerResumeTest {
+
+    private static final int CHUNK_SIZE = 256 * 1024;
+    private static final int ROW_COUNT = 1500;
+    private static final long SEED = 3;
+
+    @Rule
+    public SoftwareKeyRule softwareKey = new SoftwareKeyRule();
+
+    private Context context;
+    private SharedPreferences preferences;
+    private MockWebServer server;
+    private AppDatabase db;
+
+    @Before
+    public void setUp() throws Exception {
+        context = ApplicationProvider.getApplicationContext();
+        db = AppDatabase.createInMemory(context);
+        AppDatabase.setInstanceForTesting(db);
+        // Long notes, so that the backup spans three upload chunks
+        new VaultGenerator(SEED, 12, 20, 16, 512).seed(db, ROW_COUNT);
+
+        server = new MockWebServer();
+        server.start();
+        NetHttpTransport transport = new NetHttpTransport();
+        Drive drive = new Drive.Builder(transport, GsonFactory.getDefaultInstance(), null)
+                .setRootUrl(server.url("/").toString())
+                .setApplicationName("PasswordManager")
+                .build();
+        HttpRequestFactory requestFactory = transport.createRequestFactory();
+        DriveServiceHolder.setClientsForTesting(GoogleSignIn.getAccountForScopes(context, new Scope(DriveScopes.DRIVE_FILE)),
+                drive, requestFactory);
+
+        preferences = context.getSharedPreferences("AppPreferences", Context.MODE_PRIVATE);
+        preferences.edit()
+                .putString("EXCEL_PASSWORD", "resume-test")
+                .putString(BackupWorker.DRIVE_FOLDER_ID_KEY, "folder-id")
+                .commit();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        DriveServiceHolder.setClientsForTesting(null, null, null);
+        AppDatabase.setInstanceForTesting(null);
+        db.close();
+        server.shutdown();
+    }
+
+    @Test
+    public void serverErrorMidUploadRetriesAndResumesFromTheCommittedRange() throws Exception {
+        String sessionUri = server.url("/upload/drive/v3/files?uploadType=resumable&upload_id=session").toString();
+        server.enqueue(new MockResponse().setResponseCode(200).setHeader("Location", sessionUri));
+        server.enqueue(new MockResponse().setResponseCode(308).setHeader("Range", "bytes=0-" + (CHUNK_SIZE - 1)));
+        server.enqueue(new MockResponse().setResponseCode(503));
+
+        ListenableWorker.Result first = runWorker();
+
+        assertEquals(ListenableWorker.Result.retry(), first);
+        assertEquals(sessionUri, preferences.getString(BackupWorker.PENDING_UPLOAD_SESSION_KEY, null));
+        assertNull(preferences.getString("GOOGLE_DRIVE_FILE_ID", null));
+        File stagedFile = new File(context.getNoBackupFilesDir(), BackupWorker.BACKUP_FILE_NAME);
+        assertTrue("The staged backup was deleted", stagedFile.exists());
+        long length = stagedFile.length();
+        assertTrue("The backup is " + length + " bytes, not three chunks", length > 2 * CHUNK_SIZE && length <= 3 * CHUNK_SIZE);
+        RecordedRequest start = takeRequest();
+        assertEquals("POST", start.getMethod());
+        assertTrue(start.getPath().startsWith("/upload/drive/v3/files?"));
+        assertEquals(String.valueOf(length), start.getHeader("X-Upload-Content-Length"));
+        assertEquals("bytes 0-" + (CHUNK_SIZE - 1) + "/" + length, takeRequest().getHeader("Content-Range"));
+        assertEquals("bytes " + CHUNK_SIZE + "-" + (2 * CHUNK_SIZE - 1) + "/" + length, takeRequest().getHeader("Content-Range"));
+
+        // The server kept only the first chunk
+        server.enqueue(new MockResponse().setResponseCode(308).setHeader("Range", "bytes=0-" + (CHUNK_SIZE - 1)));
+        server.enqueue(new MockResponse().setResponseCode(308).setHeader("Range", "bytes=0-" + (2 * CHUNK_SIZE - 1)));
+        server.enqueue(new MockResponse().setResponseCode(200)
+                .setHeader("Content-Type", "application/json; charset=UTF-8")
+                .setBody("{\"id\": \"file-id\", \"parents\": [\"folder-id\"]}"));
+
+        ListenableWorker.Result second = runWorker();
+
+        assertTrue("Expected success, got " + second, second instanceof ListenableWorker.Result.Success);
+        RecordedRequest query = takeRequest();
+        assertEquals("PUT", query.getMethod());
+        assertEquals("bytes */" + length, query.getHeader("Content-Range"));
+        assertEquals(0, query.getBodySize());
+        RecordedRequest resumed = takeRequest();
+        assertEquals("bytes " + CHUNK_SIZE + "-" + (2 * CHUNK_SIZE - 1) + "/" + length, resumed.getHeader("Content-Range"));
+        assertEquals(CHUNK_SIZE, resumed.getBodySize());
+        RecordedRequest last = takeRequest();
+        assertEquals("bytes " + 2 * CHUNK_SIZE + "-" + (length - 1) + "/" + length, last.getHeader("Content-Range"));
+        assertEquals(6, server.getRequestCount());
+
+        assertEquals("file-id", preferences.getString("GOOGLE_DRIVE_FILE_ID", null));
+        assertNull(preferences.getString(BackupWorker.PENDING_UPLOAD_SESSION_KEY, null));
+        assertEquals(db.passwordDao().getVaultGeneration(), preferences.getLong(BackupWorker.LAST_BACKUP_GENERATION_KEY, -1));
+        assertFalse("The staged backup was kept", stagedFile.exists());
+    }
+
+    private ListenableWorker.Result runWorker() {
+        BackupWorker worker = TestWorkerBuilder.from(context, BackupWorker.class, Executors.newSingleThreadExecutor())
+                .setInputData(new Data.Builder().putInt("UPLOAD_CHUNK_SIZE", CHUNK_SIZE).build())
+                .build();
+        return worker.doWork();
+    }
+
+    private RecordedRequest takeRequest() throws InterruptedException {
+        RecordedRequest request = server.takeRequest(5, TimeUnit.SECONDS);
+        assertNotNull("Expected another request", request);
+        return request;
+    }
+}
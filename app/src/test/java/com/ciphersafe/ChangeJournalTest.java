@@ -0,0 +1,282 @@
+package com.ciphersafe;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.services.drive.Drive;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import okhttp3.HttpUrl;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+/**
+ * Checks that journal segments read back as they were written, that replaying them applies deletes and keeps passwords
+ * a segment could not carry, and that {@link RestoreWorker#readJournalChanges} reads only the segments newer than the
+ * base, in sequence order.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class ChangeJournalTest {
+
+    private static final String BACKUP_PASSWORD = "journal-test";
+    private static final String FOLDER_ID = "folder-id";
+    private static final String BASE_FILE_ID = "base-id";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private MockWebServer server;
+    // Segment files by Drive file id, served by the local server
+    private final Map<String, byte[]> segmentFiles = new HashMap<>();
+    // Pages of the segment listing, as lists of Drive file ids and names
+    private final List<List<String[]>> listingPages = new ArrayList<>();
+    private final List<String> downloadedIds = Collections.synchronizedList(new ArrayList<>());
+
+    @Before
+    public void startServer() throws IOException {
+        server = new MockWebServer();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                return serve(request);
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void stopServer() throws IOException {
+        server.shutdown();
+    }
+
+    @Test
+    public void readReturnsTheSegmentAsWritten() throws Exception {
+        char[] longNotes = new char[70000];
+        Arrays.fill(longNotes, 'n');
+        ChangeJournal.Segment written = new ChangeJournal.Segment(12, 17, Arrays.asList(
+                upsert(3, "bank", "alice", "s3cret", "pin 1234"),
+                new ChangeJournal.Entry(ChangeRecord.OP_DELETE, 5, null, null, null, null),
+                upsert(8, "mail \u00e9\u00e8 \u4e2d", "", null, null),
+                upsert(9, "notes", "bob", "pw", new String(longNotes))), 1);
+
+        ChangeJournal.Segment read = readBack(written, BACKUP_PASSWORD);
+
+        assertEquals(12, read.fromSeq);
+        assertEquals(17, read.toSeq);
+        // The failure count is only known while collecting and is not stored
+        assertEquals(0, read.failureCount);
+        assertEquals(written.entries.size(), read.entries.size());
+        for (int i = 0; i < written.entries.size(); i++) {
+            assertEntryEquals(written.entries.get(i), read.entries.get(i));
+        }
+    }
+
+    @Test
+    public void readFailsWithAnotherPassword() throws Exception {
+        ChangeJournal.Segment written = new ChangeJournal.Segment(0, 1,
+                Collections.singletonList(upsert(1, "bank", "alice", "s3cret", null)), 0);
+        try {
+            readBack(written, "another-password");
+            fail("A segment was read with the wrong password");
+        } catch (IOException expected) {
+            assertEquals("Failed to decrypt the journal segment", expected.getMessage());
+        }
+    }
+
+    @Test
+    public void readRejectsAFileThatIsNotASegment() {
+        try {
+            ChangeJournal.read(new ByteArrayInputStream(new byte[64]), BACKUP_PASSWORD);
+            fail("A file that is not a segment was read");
+        } catch (IOException expected) {
+            assertEquals("Not a journal segment", expected.getMessage());
+        }
+    }
+
+    @Test
+    public void applyKeepsThePreviousPasswordWhenTheChangeHasNone() {
+        ChangeJournal.Entry previous = upsert(4, "bank", "alice", "old-password", "old notes");
+        ChangeJournal.Entry change = upsert(4, "bank", "alice.smith", null, "new notes");
+
+        ChangeJournal.Entry applied = ChangeJournal.apply(previous, change);
+
+        assertEntryEquals(upsert(4, "bank", "alice.smith", "old-password", "new notes"), applied);
+    }
+
+    @Test
+    public void applyReturnsTheChangeWhenNothingIsKept() {
+        ChangeJournal.Entry previous = upsert(4, "bank", "alice", "old-password", null);
+        ChangeJournal.Entry withPassword = upsert(4, "bank", "alice", "new-password", null);
+        ChangeJournal.Entry withoutPassword = upsert(4, "bank", "alice", null, null);
+        ChangeJournal.Entry delete = new ChangeJournal.Entry(ChangeRecord.OP_DELETE, 4, null, null, null, null);
+
+        assertSame(withPassword, ChangeJournal.apply(previous, withPassword));
+        assertSame(delete, ChangeJournal.apply(previous, delete));
+        assertSame(withoutPassword, ChangeJournal.apply(null, withoutPassword));
+        // A delete followed by an insert without a password has nothing to keep
+        assertSame(withoutPassword, ChangeJournal.apply(delete, withoutPassword));
+    }
+
+    @Test
+    public void replayAppliesUpsertsAndDeletesInOrder() {
+        Map<Integer, ChangeJournal.Entry> vault = new HashMap<>();
+        vault.put(1, upsert(1, "bank", "alice", "one", null));
+        vault.put(2, upsert(2, "mail", "bob", "two", null));
+
+        ChangeJournal.replay(vault, new ChangeJournal.Segment(5, 8, Arrays.asList(
+                upsert(1, "bank", "alice", null, "renamed"),
+                new ChangeJournal.Entry(ChangeRecord.OP_DELETE, 2, null, null, null, null),
+                upsert(3, "shop", "carol", "three", null),
+                new ChangeJournal.Entry(ChangeRecord.OP_DELETE, 3, null, null, null, null),
+                upsert(3, "shop", "carol", "three again", null)), 0));
+
+        assertEquals(2, vault.size());
+        assertEntryEquals(upsert(1, "bank", "alice", "one", "renamed"), vault.get(1));
+        assertEntryEquals(upsert(3, "shop", "carol", "three again", null), vault.get(3));
+    }
+
+    @Test
+    public void readJournalChangesReadsNewerSegmentsInSequenceOrder() throws Exception {
+        addSegment("seg-5", new ChangeJournal.Segment(0, 5, Collections.singletonList(
+                upsert(9, "old", "dave", "contained in the base", null)), 0));
+        addSegment("seg-20", new ChangeJournal.Segment(10, 20, Arrays.asList(
+                upsert(1, "bank", "alice", "first", "v1"),
+                upsert(2, "mail", "bob", "two", null),
+                new ChangeJournal.Entry(ChangeRecord.OP_DELETE, 3, null, null, null, null)), 0));
+        addSegment("seg-30", new ChangeJournal.Segment(20, 30, Arrays.asList(
+                upsert(1, "bank", "alice", null, "v2"),
+                new ChangeJournal.Entry(ChangeRecord.OP_DELETE, 2, null, null, null, null),
+                upsert(4, "shop", "carol", "four", null)), 0));
+        // Listed newest first and across pages, with a file that is not a segment
+        listingPages.add(Collections.singletonList(new String[]{"seg-30", ChangeJournal.segmentName(30)}));
+        listingPages.add(Arrays.asList(
+                new String[]{"seg-5", ChangeJournal.segmentName(5)},
+                new String[]{"other", "journal-notes.txt"},
+                new String[]{"seg-20", ChangeJournal.segmentName(20)}));
+
+        Map<Integer, ChangeJournal.Entry> changes =
+                RestoreWorker.readJournalChanges(drive(), FOLDER_ID, BASE_FILE_ID, 10, BACKUP_PASSWORD);
+
+        assertEquals(Arrays.asList("seg-20", "seg-30"), downloadedIds);
+        // In the order the rows first changed, each in its latest state
+        assertEquals(Arrays.asList(1, 2, 3, 4), new ArrayList<>(changes.keySet()));
+        assertEntryEquals(upsert(1, "bank", "alice", "first", "v2"), changes.get(1));
+        assertEquals(ChangeRecord.OP_DELETE, changes.get(2).op);
+        assertEquals(ChangeRecord.OP_DELETE, changes.get(3).op);
+        assertEntryEquals(upsert(4, "shop", "carol", "four", null), changes.get(4));
+    }
+
+    @Test
+    public void readJournalChangesSkipsSegmentsUpToTheBase() throws Exception {
+        addSegment("seg-20", new ChangeJournal.Segment(10, 20, Collections.singletonList(
+                upsert(1, "bank", "alice", "first", null)), 0));
+        addSegment("seg-30", new ChangeJournal.Segment(20, 30, Collections.singletonList(
+                upsert(2, "mail", "bob", "two", null)), 0));
+        listingPages.add(Arrays.asList(
+                new String[]{"seg-20", ChangeJournal.segmentName(20)},
+                new String[]{"seg-30", ChangeJournal.segmentName(30)}));
+
+        Map<Integer, ChangeJournal.Entry> changes =
+                RestoreWorker.readJournalChanges(drive(), FOLDER_ID, BASE_FILE_ID, 20, BACKUP_PASSWORD);
+
+        assertEquals(Collections.singletonList("seg-30"), downloadedIds);
+        assertEquals(Collections.singletonList(2), new ArrayList<>(changes.keySet()));
+
+        // A base without a recorded sequence number is restored on its own
+        downloadedIds.clear();
+        assertTrue(RestoreWorker.readJournalChanges(drive(), FOLDER_ID, BASE_FILE_ID, Long.MAX_VALUE, BACKUP_PASSWORD).isEmpty());
+        assertTrue(downloadedIds.isEmpty());
+
+        // Only the segments of the given base are listed
+        RecordedRequest listing = server.takeRequest();
+        String query = listing.getRequestUrl().queryParameter("q");
+        assertTrue(query, query.contains("'" + FOLDER_ID + "' in parents"));
+        assertTrue(query, query.contains("value='" + BASE_FILE_ID + "'"));
+    }
+
+    // Answers segment listings from listingPages and segment downloads from segmentFiles
+    private MockResponse serve(RecordedRequest request) {
+        HttpUrl url = request.getRequestUrl();
+        List<String> path = url.pathSegments();
+        if (path.size() == 3 && path.get(2).equals("files")) {
+            String token = url.queryParameter("pageToken");
+            int page = token != null ? Integer.parseInt(token) : 0;
+            StringBuilder json = new StringBuilder("{\"files\": [");
+            for (String[] file : page < listingPages.size() ? listingPages.get(page) : Collections.<String[]>emptyList()) {
+                json.append(json.charAt(json.length() - 1) == '[' ? "" : ", ")
+                        .append("{\"id\": \"").append(file[0]).append("\", \"name\": \"").append(file[1]).append("\"}");
+            }
+            json.append("]");
+            if (page + 1 < listingPages.size()) {
+                json.append(", \"nextPageToken\": \"").append(page + 1).append("\"");
+            }
+            json.append("}");
+            return new MockResponse().setHeader("Content-Type", "application/json; charset=UTF-8").setBody(json.toString());
+        }
+        if (path.size() == 4 && "media".equals(url.queryParameter("alt")) && segmentFiles.containsKey(path.get(3))) {
+            downloadedIds.add(path.get(3));
+            return new MockResponse().setBody(new Buffer().write(segmentFiles.get(path.get(3))));
+        }
+        return new MockResponse().setResponseCode(404);
+    }
+
+    private Drive drive() {
+        return new Drive.Builder(new NetHttpTransport(), GsonFactory.getDefaultInstance(), null)
+                .setRootUrl(server.url("/").toString())
+                .setApplicationName("PasswordManager")
+                .build();
+    }
+
+    private void addSegment(String fileId, ChangeJournal.Segment segment) throws IOException {
+        File file = temporaryFolder.newFile(fileId + ".csj");
+        ChangeJournal.write(segment, BACKUP_PASSWORD, file);
+        segmentFiles.put(fileId, Files.readAllBytes(file.toPath()));
+    }
+
+    private ChangeJournal.Segment readBack(ChangeJournal.Segment segment, String password) throws IOException {
+        File file = temporaryFolder.newFile();
+        ChangeJournal.write(segment, BACKUP_PASSWORD, file);
+        try (InputStream in = new FileInputStream(file)) {
+            return ChangeJournal.read(in, password);
+        }
+    }
+
+    private static ChangeJournal.Entry upsert(int id, String accountName, String username, String password, String notes) {
+        return new ChangeJournal.Entry(ChangeRecord.OP_UPSERT, id, accountName, username, password, notes);
+    }
+
+    private static void assertEntryEquals(ChangeJournal.Entry expected, ChangeJournal.Entry actual) {
+        assertArrayEquals(new Object[]{expected.op, expected.id, expected.accountName, expected.username, expected.password, expected.notes},
+                new Object[]{actual.op, actual.id, actual.accountName, actual.username, actual.password, actual.notes});
+    }
+}
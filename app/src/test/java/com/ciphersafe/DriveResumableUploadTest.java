@@ -0,0 +1,225 @@
+package com.ciphersafe;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.services.drive.model.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+/**
+ * Runs {@link DriveResumableUpload#upload} against a local server that answers like Drive's resumable upload endpoint.
+ */
+public class DriveResumableUploadTest {
+
+    private static final int CHUNK_SIZE = 256 * 1024;
+    private static final String MIME_TYPE = "application/octet-stream";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private MockWebServer server;
+    private DriveResumableUpload upload;
+    private String sessionUri;
+
+    @Before
+    public void startServer() throws IOException {
+        server = new MockWebServer();
+        server.start();
+        upload = new DriveResumableUpload(new NetHttpTransport().createRequestFactory(), CHUNK_SIZE);
+        sessionUri = server.url("/upload/drive/v3/files?uploadType=resumable&upload_id=session").toString();
+    }
+
+    @After
+    public void stopServer() throws IOException {
+        server.shutdown();
+    }
+
+    @Test
+    public void uploadSendsTheFileInChunks() throws Exception {
+        byte[] content = content(2 * CHUNK_SIZE + 100);
+        server.enqueue(incomplete("bytes=0-" + (CHUNK_SIZE - 1)));
+        server.enqueue(incomplete("bytes=0-" + (2 * CHUNK_SIZE - 1)));
+        server.enqueue(finished());
+
+        File uploaded = upload.upload(sessionUri, write(content), MIME_TYPE, false);
+
+        assertEquals("file-id", uploaded.getId());
+        assertEquals("folder-id", uploaded.getParents().get(0));
+        assertChunk(takeRequest(), content, 0, CHUNK_SIZE);
+        assertChunk(takeRequest(), content, CHUNK_SIZE, CHUNK_SIZE);
+        assertChunk(takeRequest(), content, 2 * CHUNK_SIZE, 100);
+        assertEquals(3, server.getRequestCount());
+    }
+
+    @Test
+    public void uploadResendsFromTheLastCommittedByte() throws Exception {
+        byte[] content = content(CHUNK_SIZE + 10);
+        // The server kept only part of the first chunk
+        server.enqueue(incomplete("bytes=0-99999"));
+        server.enqueue(finished());
+
+        upload.upload(sessionUri, write(content), MIME_TYPE, false);
+
+        assertChunk(takeRequest(), content, 0, CHUNK_SIZE);
+        assertChunk(takeRequest(), content, 100000, CHUNK_SIZE + 10 - 100000);
+    }
+
+    @Test
+    public void resumeAsksForTheCommittedRangeAndContinuesAfterIt() throws Exception {
+        byte[] content = content(2 * CHUNK_SIZE + 100);
+        server.enqueue(incomplete("bytes=0-" + (CHUNK_SIZE - 1)));
+        server.enqueue(incomplete("bytes=0-" + (2 * CHUNK_SIZE - 1)));
+        server.enqueue(finished());
+
+        File uploaded = upload.upload(sessionUri, write(content), MIME_TYPE, true);
+
+        assertEquals("file-id", uploaded.getId());
+        RecordedRequest query = takeRequest();
+        assertEquals("PUT", query.getMethod());
+        assertEquals("bytes */" + content.length, query.getHeader("Content-Range"));
+        assertEquals(0, query.getBodySize());
+        assertChunk(takeRequest(), content, CHUNK_SIZE, CHUNK_SIZE);
+        assertChunk(takeRequest(), content, 2 * CHUNK_SIZE, 100);
+    }
+
+    @Test
+    public void resumeWithoutRangeStartsAtTheFirstByte() throws Exception {
+        byte[] content = content(1000);
+        server.enqueue(incomplete(null));
+        server.enqueue(finished());
+
+        upload.upload(sessionUri, write(content), MIME_TYPE, true);
+
+        assertEquals("bytes */1000", takeRequest().getHeader("Content-Range"));
+        assertChunk(takeRequest(), content, 0, 1000);
+    }
+
+    @Test
+    public void resumeOfACompletedUploadReturnsTheFile() throws Exception {
+        server.enqueue(finished());
+
+        File uploaded = upload.upload(sessionUri, write(content(1000)), MIME_TYPE, true);
+
+        assertEquals("file-id", uploaded.getId());
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void resumeWhenEverythingIsCommittedFinalizesWithAnEmptyChunk() throws Exception {
+        byte[] content = content(1000);
+        server.enqueue(incomplete("bytes=0-999"));
+        server.enqueue(finished());
+
+        upload.upload(sessionUri, write(content), MIME_TYPE, true);
+
+        takeRequest();
+        RecordedRequest finalize = takeRequest();
+        assertEquals("bytes */1000", finalize.getHeader("Content-Range"));
+        assertEquals(0, finalize.getBodySize());
+    }
+
+    @Test
+    public void notFoundMeansTheSessionExpired() throws Exception {
+        assertSessionExpired(404);
+    }
+
+    @Test
+    public void goneMeansTheSessionExpired() throws Exception {
+        assertSessionExpired(410);
+    }
+
+    @Test
+    public void serverErrorKeepsTheSession() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(503));
+
+        try {
+            upload.upload(sessionUri, write(content(1000)), MIME_TYPE, false);
+            fail("Expected an HttpResponseException");
+        } catch (HttpResponseException e) {
+            assertEquals(503, e.getStatusCode());
+        }
+    }
+
+    @Test
+    public void uploadFailsWhenTheServerCommitsNothing() throws Exception {
+        server.enqueue(incomplete(null));
+
+        try {
+            upload.upload(sessionUri, write(content(1000)), MIME_TYPE, false);
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            assertFalse(e instanceof DriveResumableUpload.SessionExpiredException);
+        }
+        assertEquals(1, server.getRequestCount());
+    }
+
+    private void assertSessionExpired(int status) throws IOException {
+        server.enqueue(new MockResponse().setResponseCode(status));
+
+        try {
+            upload.upload(sessionUri, write(content(1000)), MIME_TYPE, true);
+            fail("Expected a SessionExpiredException");
+        } catch (DriveResumableUpload.SessionExpiredException e) {
+            assertTrue(e.getMessage().contains(String.valueOf(status)));
+        }
+    }
+
+    // Checks that a request sent length bytes of content starting at offset, with a matching Content-Range
+    private static void assertChunk(RecordedRequest request, byte[] content, int offset, int length) {
+        assertEquals("PUT", request.getMethod());
+        assertEquals("bytes " + offset + "-" + (offset + length - 1) + "/" + content.length, request.getHeader("Content-Range"));
+        assertArrayEquals(Arrays.copyOfRange(content, offset, offset + length), request.getBody().readByteArray());
+    }
+
+    private RecordedRequest takeRequest() throws InterruptedException {
+        RecordedRequest request = server.takeRequest(5, TimeUnit.SECONDS);
+        assertTrue("Expected another request", request != null);
+        assertNull(request.getHeader("X-HTTP-Method-Override"));
+        return request;
+    }
+
+    private static MockResponse incomplete(String range) {
+        MockResponse response = new MockResponse().setResponseCode(308);
+        return range != null ? response.setHeader("Range", range) : response;
+    }
+
+    private static MockResponse finished() {
+        return new MockResponse().setResponseCode(200)
+                .setHeader("Content-Type", "application/json; charset=UTF-8")
+                .setBody("{\"id\": \"file-id\", \"parents\": [\"folder-id\"]}");
+    }
+
+    private java.io.File write(byte[] content) throws IOException {
+        java.io.File file = temporaryFolder.newFile();
+        Files.write(file.toPath(), content);
+        return file;
+    }
+
+    private static byte[] content(int length) {
+        byte[] content = new byte[length];
+        for (int i = 0; i < length; i++) {
+            content[i] = (byte) (i * 7 + i / 251);
+        }
+        return content;
+    }
+}
@@ -0,0 +1,320 @@
+package com.ciphersafe;
+
+import static org.junit.Assume.assumeTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.os.Looper;
+import android.util.Base64;
+import android.view.ContextThemeWrapper;
+import android.view.LayoutInflater;
+import android.view.View;
+
+import androidx.appcompat.app.AlertDialog;
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.Observer;
+import androidx.test.core.app.ApplicationProvider;
+
+import com.google.android.material.dialog.MaterialAlertDialogBuilder;
+import com.google.android.material.textfield.TextInputEditText;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HotPathBenchmark times the paths that dominate the app's CPU time, as a local Robolectric test on the JVM:
+ * <ul>
+ *     <li>single and batch encryption and decryption with {@link EncryptionUtils};</li>
+ *     <li>Base64 encoding and decoding of an encrypted password, as in the pre-BLOB schema;</li>
+ *     <li>{@link PasswordDao#getAll()} and {@link PasswordDao#findByAccountName(String)};</li>
+ *     <li>{@link PasswordDao#observeSearch(String, int)} with the prefix query the search box builds from one and from three
+ *     typed letters, until the ranked results are delivered;</li>
+ *     <li>opening an entry: what {@link MainActivity} does between a tap on a row and showing the details dialog;</li>
+ *     <li>exporting the vault to an encrypted Excel workbook with {@link ExcelExport} and to a .csvault backup with
+ *     {@link BackupWorker#writeVaultBackup}, the two export formats of {@link MainActivity}, along with the size of each
+ *     file.</li>
+ * </ul>
+ * The DAO and export benchmarks run for each of {@link #ROW_COUNTS} on a private in-memory database filled by
+ * {@link VaultGenerator}, so the vault is never touched. Every benchmark runs {@link #WARMUP_ROUNDS} untimed rounds
+ * and then {@link #MEASURED_ROUNDS} timed rounds, and reports the median and minimum time per operation.
+ * <p>
+ * Passwords are encrypted with the software key of {@link SoftwareKeyRule} and Room runs on Robolectric's SQLite, so
+ * the times measure the app's own code on the JVM, not a device. They are meant for comparing commits on one machine.
+ * <p>
+ * The benchmark takes minutes, so it is skipped unless Gradle is run with {@code -Pbenchmark}, which sets
+ * {@link #OUTPUT_DIR_PROPERTY}; the results are written there as JSON to {@link #RESULT_FILE_NAME}:
+ * {@code ./gradlew :app:testDebugUnitTest --tests com.ciphersafe.HotPathBenchmark -Pbenchmark}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class HotPathBenchmark {
+
+    /**
+     * The file the results are written to, in the directory named by {@link #OUTPUT_DIR_PROPERTY}.
+     */
+    static final String RESULT_FILE_NAME = "hotpath-benchmark.json";
+
+    /**
+     * The system property holding the directory to write the results to; the benchmark is skipped if it is not set.
+     */
+    static final String OUTPUT_DIR_PROPERTY = "ciphersafe.benchmarkDir";
+
+    private static final int[] ROW_COUNTS = {1000, 10000, 50000, 100000};
+    private static final int WARMUP_ROUNDS = 2;
+    private static final int MEASURED_ROUNDS = 5;
+    // Operations per round of the per-item benchmarks
+    private static final int CRYPTO_OPERATIONS = 200;
+    private static final int BATCH_SIZE = ExportPipeline.PAGE_SIZE;
+    private static final int BASE64_OPERATIONS = 10000;
+    private static final int LOOKUP_OPERATIONS = 1000;
+    private static final int DETAIL_OPERATIONS = 100;
+    private static final int SEARCH_OPERATIONS = 20;
+    // Results shown for a search, as in MainActivity
+    private static final int SEARCH_RESULT_LIMIT = 200;
+    private static final long SEARCH_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final String EXPORT_PASSWORD = "benchmark";
+    private static final long SEED = 42;
+
+    /**
+     * One benchmarked operation, repeated as many times as a round asks for.
+     */
+    private interface Operation {
+        void run(int operations) throws Exception;
+    }
+
+    @Rule
+    public SoftwareKeyRule softwareKey = new SoftwareKeyRule();
+
+    private final Context context = ApplicationProvider.getApplicationContext();
+    private final JSONArray results = new JSONArray();
+
+    @Before
+    public void onlyWhenRequested() {
+        assumeTrue("Run with -Pbenchmark", System.getProperty(OUTPUT_DIR_PROPERTY) != null);
+    }
+
+    /**
+     * Runs every benchmark and writes the results.
+     *
+     * @throws Exception If a benchmarked operation fails or the results cannot be written.
+     */
+    @Test
+    public void hotPaths() throws Exception {
+        long start = System.currentTimeMillis();
+        runCrypto();
+        for (int rowCount : ROW_COUNTS) {
+            runVault(rowCount);
+        }
+        File file = writeResults(System.currentTimeMillis() - start);
+        System.out.println("Results written to " + file);
+    }
+
+    private void runCrypto() throws Exception {
+        String plain = "correct-horse-battery";
+        byte[] encrypted = EncryptionUtils.encryptToBytes(plain);
+        measure("crypto.encrypt", 0, CRYPTO_OPERATIONS, operations -> {
+            for (int i = 0; i < operations; i++) {
+                EncryptionUtils.encryptToBytes(plain);
+            }
+        });
+        measure("crypto.decrypt", 0, CRYPTO_OPERATIONS, operations -> {
+            for (int i = 0; i < operations; i++) {
+                EncryptionUtils.decrypt(encrypted);
+            }
+        });
+
+        List<String> plainBatch = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            plainBatch.add(plain + i);
+        }
+        List<byte[]> encryptedBatch = EncryptionUtils.encryptAll(plainBatch);
+        measure("crypto.encryptAll", 0, BATCH_SIZE, operations -> EncryptionUtils.encryptAll(plainBatch));
+        measure("crypto.decryptAll", 0, BATCH_SIZE, operations -> EncryptionUtils.decryptAll(encryptedBatch));
+
+        String encoded = Base64.encodeToString(encrypted, Base64.DEFAULT);
+        measure("base64.encode", 0, BASE64_OPERATIONS, operations -> {
+            for (int i = 0; i < operations; i++) {
+                Base64.encodeToString(encrypted, Base64.DEFAULT);
+            }
+        });
+        measure("base64.decode", 0, BASE64_OPERATIONS, operations -> {
+            for (int i = 0; i < operations; i++) {
+                Base64.decode(encoded, Base64.DEFAULT);
+            }
+        });
+    }
+
+    private void runVault(int rowCount) throws Exception {
+        AppDatabase db = AppDatabase.createInMemory(context);
+        try {
+            VaultGenerator generator = VaultGenerator.typical(SEED);
+            generator.seed(db, rowCount);
+            PasswordDao passwordDao = db.passwordDao();
+
+            measure("dao.getAll", rowCount, 1, operations -> passwordDao.getAll());
+            Random random = new Random(SEED);
+            measure("dao.findByAccountName", rowCount, LOOKUP_OPERATIONS, operations -> {
+                for (int i = 0; i < operations; i++) {
+                    passwordDao.findByAccountName(generator.accountName(random.nextInt(rowCount)));
+                }
+            });
+            measure("search.oneLetter", rowCount, SEARCH_OPERATIONS, operations -> {
+                for (int i = 0; i < operations; i++) {
+                    search(passwordDao, generator.accountName(random.nextInt(rowCount)).substring(0, 1));
+                }
+            });
+            measure("search.threeLetters", rowCount, SEARCH_OPERATIONS, operations -> {
+                for (int i = 0; i < operations; i++) {
+                    search(passwordDao, generator.accountName(random.nextInt(rowCount)).substring(0, 3));
+                }
+            });
+            Context themedContext = new ContextThemeWrapper(context, R.style.Theme_MyApplication);
+            measure("detail.open", rowCount, DETAIL_OPERATIONS, operations -> {
+                for (int i = 0; i < operations; i++) {
+                    // Ids are assigned from 1 in insertion order
+                    openDetails(themedContext, passwordDao, 1 + random.nextInt(rowCount));
+                }
+            });
+            File exportFile = File.createTempFile("export", null, context.getCacheDir());
+            try {
+                measure("export.xlsx", rowCount, 1, exportFile, operations -> {
+                    try (OutputStream out = new FileOutputStream(exportFile)) {
+                        ExcelExport.write(passwordDao, EXPORT_PASSWORD, context.getCacheDir(), out);
+                    }
+                });
+                measure("export.csvault", rowCount, 1, exportFile,
+                        operations -> BackupWorker.writeVaultBackup(passwordDao, EXPORT_PASSWORD, exportFile));
+            } finally {
+                exportFile.delete();
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    // Runs a search as typed into the search box and waits for its results, which Room computes on its query executor
+    // and delivers on the main looper
+    private static List<PasswordSummary> search(PasswordDao passwordDao, String typed) {
+        LiveData<List<PasswordSummary>> results = passwordDao.observeSearch(PasswordFts.toPrefixQuery(typed), SEARCH_RESULT_LIMIT);
+        Observer<List<PasswordSummary>> observer = rows -> {
+        };
+        results.observeForever(observer);
+        try {
+            long deadline = System.nanoTime() + SEARCH_TIMEOUT_NANOS;
+            while (results.getValue() == null) {
+                if (System.nanoTime() > deadline) {
+                    throw new AssertionError("No results for " + typed);
+                }
+                Thread.yield();
+                shadowOf(Looper.getMainLooper()).idle();
+            }
+            return results.getValue();
+        } finally {
+            results.removeObserver(observer);
+        }
+    }
+
+    // Loads an entry by id, decrypts it and builds the details dialog as MainActivity.showPasswordDetails does; the
+    // dialog is created but not shown, as there is no window to show it in
+    private static AlertDialog openDetails(Context themedContext, PasswordDao passwordDao, int id) throws Exception {
+        Password password = passwordDao.findById(id);
+        MaterialAlertDialogBuilder builder = new MaterialAlertDialogBuilder(themedContext);
+        builder.setTitle(password.accountName);
+        View dialogView = LayoutInflater.from(themedContext).inflate(R.layout.dialog_password_details, null);
+        TextInputEditText usernameEditText = dialogView.findViewById(R.id.dialog_username);
+        TextInputEditText passwordEditText = dialogView.findViewById(R.id.dialog_password);
+        TextInputEditText notesEditText = dialogView.findViewById(R.id.dialog_notes);
+        usernameEditText.setText(password.username);
+        passwordEditText.setText(EncryptionUtils.decrypt(password.password));
+        notesEditText.setText(password.notes);
+        builder.setView(dialogView);
+        builder.setNeutralButton("Edit", null);
+        builder.setNegativeButton("Delete", null);
+        builder.setPositiveButton("OK", null);
+        return builder.create();
+    }
+
+    // Times an operation and adds its median and minimum time per operation to the results
+    private void measure(String name, int rowCount, int operations, Operation operation) throws Exception {
+        measure(name, rowCount, operations, null, operation);
+    }
+
+    // Times an operation that writes a file, and adds the size of the file to its results
+    private void measure(String name, int rowCount, int operations, File output, Operation operation) throws Exception {
+        for (int round = 0; round < WARMUP_ROUNDS; round++) {
+            operation.run(operations);
+        }
+        long[] nanosPerOperation = new long[MEASURED_ROUNDS];
+        for (int round = 0; round < MEASURED_ROUNDS; round++) {
+            long start = System.nanoTime();
+            operation.run(operations);
+            nanosPerOperation[round] = (System.nanoTime() - start) / operations;
+        }
+        Arrays.sort(nanosPerOperation);
+
+        JSONObject result = new JSONObject();
+        result.put("name", name);
+        if (rowCount > 0) {
+            result.put("rows", rowCount);
+        }
+        result.put("operationsPerRound", operations);
+        result.put("rounds", MEASURED_ROUNDS);
+        result.put("medianNanos", nanosPerOperation[MEASURED_ROUNDS / 2]);
+        result.put("minNanos", nanosPerOperation[0]);
+        if (output != null) {
+            result.put("fileBytes", output.length());
+        }
+        results.put(result);
+        System.out.println(result);
+    }
+
+    private File writeResults(long elapsedMillis) throws IOException, JSONException {
+        JSONObject report = new JSONObject();
+        report.put("timestamp", System.currentTimeMillis());
+        report.put("appVersion", getAppVersion());
+        report.put("jvm", System.getProperty("java.vm.name") + " " + System.getProperty("java.version"));
+        report.put("os", System.getProperty("os.name") + " " + System.getProperty("os.arch"));
+        report.put("processors", Runtime.getRuntime().availableProcessors());
+        report.put("elapsedMillis", elapsedMillis);
+        report.put("results", results);
+
+        File directory = new File(System.getProperty(OUTPUT_DIR_PROPERTY));
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        File file = new File(directory, RESULT_FILE_NAME);
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            out.write(report.toString(2));
+        }
+        return file;
+    }
+
+    private String getAppVersion() {
+        try {
+            return context.getPackageManager().getPackageInfo(context.getPackageName(), 0).versionName;
+        } catch (PackageManager.NameNotFoundException e) {
+            return "unknown";
+        }
+    }
+}
@@ -0,0 +1,320 @@
+package com.ciphersafe;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.content.Context;
+import android.net.Uri;
+
+import androidx.test.core.app.ApplicationProvider;
+import androidx.work.Data;
+import androidx.work.ListenableWorker;
+import androidx.work.ProgressUpdater;
+import androidx.work.WorkInfo;
+import androidx.work.testing.TestWorkerBuilder;
+
+import com.google.android.gms.auth.api.signin.GoogleSignIn;
+import com.google.android.gms.common.api.Scope;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.DriveScopes;
+import com.google.common.util.concurrent.Futures;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.HttpUrl;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+/**
+ * Runs {@link RestoreWorker} on backups written by {@link BackupWorker#writeVaultBackup}, into an empty in-memory vault:
+ * restoring twice adds nothing, a cancelled restore keeps its committed batches, a wrong password fails at the first
+ * chunk, and a Drive restore applies the journal written after its base.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class RestoreWorkerTest {
+
+    private static final String BACKUP_PASSWORD = "restore-test";
+    private static final Uri BACKUP_URI = Uri.parse("content://com.ciphersafe.test/vault.csvault");
+    // Entries per transaction of RestoreWorker
+    private static final int BATCH_SIZE = 500;
+
+    @Rule
+    public SoftwareKeyRule softwareKey = new SoftwareKeyRule();
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Context context;
+    private AppDatabase vault;
+    // The rows of the vault most recently backed up by writeBackup(), ordered by id
+    private List<Password> backedUpRows;
+    private final AtomicLong sourceBytesRead = new AtomicLong();
+    private RestoreWorker runningWorker;
+
+    @Before
+    public void setUp() {
+        context = ApplicationProvider.getApplicationContext();
+        vault = AppDatabase.createInMemory(context);
+        AppDatabase.setInstanceForTesting(vault);
+    }
+
+    @After
+    public void tearDown() {
+        DriveServiceHolder.setClientsForTesting(null, null, null);
+        AppDatabase.setInstanceForTesting(null);
+        vault.close();
+    }
+
+    @Test
+    public void restoringTheSameBackupTwiceSkipsEveryEntry() throws Exception {
+        int rowCount = BATCH_SIZE + 100;
+        provideBackup(writeBackup(VaultGenerator.typical(1), rowCount));
+
+        Data first = runRestore(null).getOutputData();
+        assertEquals(rowCount, first.getInt(RestoreWorker.RESTORED_COUNT_KEY, -1));
+        assertEquals(0, first.getInt(RestoreWorker.SKIPPED_COUNT_KEY, -1));
+
+        Data second = runRestore(null).getOutputData();
+        assertEquals(0, second.getInt(RestoreWorker.RESTORED_COUNT_KEY, -1));
+        assertEquals(rowCount, second.getInt(RestoreWorker.SKIPPED_COUNT_KEY, -1));
+        assertEquals(rowCount, vault.passwordDao().getAll().size());
+    }
+
+    @Test
+    public void cancellingBetweenBatchesKeepsTheCommittedBatches() throws Exception {
+        int rowCount = 2 * BATCH_SIZE + 200;
+        provideBackup(writeBackup(VaultGenerator.typical(2), rowCount));
+        List<Password> backedUp = backedUpRows;
+
+        // The restore reports progress after every committed batch; it is cancelled after the first
+        ListenableWorker.Result cancelled = runRestore((workerContext, workId, progress) -> {
+            runningWorker.stop(WorkInfo.STOP_REASON_CANCELLED_BY_APP);
+            return Futures.immediateFuture(null);
+        });
+
+        // A cancelled restore reports what it committed
+        assertTrue("Expected success, got " + cancelled, cancelled instanceof ListenableWorker.Result.Success);
+        assertEquals(BATCH_SIZE, cancelled.getOutputData().getInt(RestoreWorker.RESTORED_COUNT_KEY, -1));
+        List<Password> restored = vault.passwordDao().getPage(0, Integer.MAX_VALUE);
+        assertEquals(BATCH_SIZE, restored.size());
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            assertEquals(backedUp.get(i).accountName, restored.get(i).accountName);
+        }
+
+        // Restoring again adds the rest
+        Data resumed = runRestore(null).getOutputData();
+        assertEquals(rowCount - BATCH_SIZE, resumed.getInt(RestoreWorker.RESTORED_COUNT_KEY, -1));
+        assertEquals(BATCH_SIZE, resumed.getInt(RestoreWorker.SKIPPED_COUNT_KEY, -1));
+        assertEquals(rowCount, vault.passwordDao().getAll().size());
+    }
+
+    @Test
+    public void aWrongPasswordFailsOnTheFirstChunk() throws Exception {
+        // Long notes, so that the backup spans many chunks
+        File backup = writeBackup(new VaultGenerator(3, 12, 20, 16, 512), 1500);
+        assertTrue(backup.length() > 6 * VaultBackupWriter.CHUNK_SIZE);
+        provideBackup(backup);
+
+        ListenableWorker.Result result = runRestore(null, "wrong-password");
+
+        assertTrue("Expected failure, got " + result, result instanceof ListenableWorker.Result.Failure);
+        assertNotNull(result.getOutputData().getString(RestoreWorker.ERROR_MESSAGE_KEY));
+        assertEquals(0, result.getOutputData().getInt(RestoreWorker.RESTORED_COUNT_KEY, -1));
+        assertFalse(vault.passwordDao().hasAny());
+        // The header, the first chunk, and what the read buffer fetched ahead of it
+        assertTrue("Read " + sourceBytesRead.get() + " bytes", sourceBytesRead.get() < 3 * VaultBackupWriter.CHUNK_SIZE);
+    }
+
+    @Test
+    public void aDriveRestoreAppliesTheJournalAfterItsBase() throws Exception {
+        File base = writeBackup(VaultGenerator.typical(4), 5);
+        List<Password> baseRows = backedUpRows;
+        Password deleted = baseRows.get(1);
+        Password updated = baseRows.get(2);
+        Password updatedWithoutPassword = baseRows.get(3);
+
+        Map<String, byte[]> files = new HashMap<>();
+        files.put("base-id", Files.readAllBytes(base.toPath()));
+        // Contained in the base, so it must not delete the first entry
+        files.put("seg-5", segment(new ChangeJournal.Segment(0, 5, Arrays.asList(
+                new ChangeJournal.Entry(ChangeRecord.OP_DELETE, baseRows.get(0).id, null, null, null, null)), 0)));
+        files.put("seg-20", segment(new ChangeJournal.Segment(10, 20, Arrays.asList(
+                new ChangeJournal.Entry(ChangeRecord.OP_DELETE, deleted.id, null, null, null, null),
+                new ChangeJournal.Entry(ChangeRecord.OP_UPSERT, updated.id, updated.accountName, "renamed", "changed", null),
+                new ChangeJournal.Entry(ChangeRecord.OP_UPSERT, updatedWithoutPassword.id, updatedWithoutPassword.accountName,
+                        updatedWithoutPassword.username, null, "changed notes"),
+                new ChangeJournal.Entry(ChangeRecord.OP_UPSERT, 100, "new-account", "new-user", "new-password", null)), 0)));
+        MockWebServer server = startDrive(files, base.length());
+        try {
+            ListenableWorker.Result result = runWorker(new Data.Builder()
+                    .putString(RestoreWorker.BASE_FILE_ID_KEY, "base-id")
+                    .build(), null, BACKUP_PASSWORD);
+
+            assertTrue("Expected success, got " + result, result instanceof ListenableWorker.Result.Success);
+            assertEquals(5, result.getOutputData().getInt(RestoreWorker.RESTORED_COUNT_KEY, -1));
+        } finally {
+            server.shutdown();
+        }
+
+        PasswordDao passwordDao = vault.passwordDao();
+        assertEquals(5, passwordDao.getAll().size());
+        assertNotNull(passwordDao.findByAccountName(baseRows.get(0).accountName));
+        assertNull(passwordDao.findByAccountName(deleted.accountName));
+        Password restoredUpdate = passwordDao.findByAccountName(updated.accountName);
+        assertEquals("renamed", restoredUpdate.username);
+        assertEquals("changed", EncryptionUtils.decrypt(restoredUpdate.password));
+        Password restoredWithoutPassword = passwordDao.findByAccountName(updatedWithoutPassword.accountName);
+        assertEquals("changed notes", restoredWithoutPassword.notes);
+        assertEquals(EncryptionUtils.decrypt(updatedWithoutPassword.password), EncryptionUtils.decrypt(restoredWithoutPassword.password));
+        Password inserted = passwordDao.findByAccountName("new-account");
+        assertEquals("new-user", inserted.username);
+        assertEquals("new-password", EncryptionUtils.decrypt(inserted.password));
+        assertEquals(baseRows.get(4).accountName, passwordDao.findByAccountName(baseRows.get(4).accountName).accountName);
+    }
+
+    // Backs up a vault of generated entries into a file and remembers its rows
+    private File writeBackup(VaultGenerator generator, int rowCount) throws Exception {
+        AppDatabase source = AppDatabase.createInMemory(context);
+        try {
+            generator.seed(source, rowCount);
+            backedUpRows = source.passwordDao().getPage(0, Integer.MAX_VALUE);
+            File backup = temporaryFolder.newFile();
+            BackupWorker.writeVaultBackup(source.passwordDao(), BACKUP_PASSWORD, backup);
+            return backup;
+        } finally {
+            source.close();
+        }
+    }
+
+    // Serves the backup file at BACKUP_URI, counting the bytes read from it
+    private void provideBackup(File backup) {
+        shadowOf(context.getContentResolver()).registerInputStreamSupplier(BACKUP_URI, () -> {
+            try {
+                return new FilterInputStream(new FileInputStream(backup)) {
+                    @Override
+                    public int read() throws IOException {
+                        int b = super.read();
+                        if (b != -1) {
+                            sourceBytesRead.incrementAndGet();
+                        }
+                        return b;
+                    }
+
+                    @Override
+                    public int read(byte[] buffer, int offset, int length) throws IOException {
+                        int read = super.read(buffer, offset, length);
+                        if (read > 0) {
+                            sourceBytesRead.addAndGet(read);
+                        }
+                        return read;
+                    }
+                };
+            } catch (FileNotFoundException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    private byte[] segment(ChangeJournal.Segment segment) throws IOException {
+        File file = temporaryFolder.newFile();
+        ChangeJournal.write(segment, BACKUP_PASSWORD, file);
+        return Files.readAllBytes(file.toPath());
+    }
+
+    // Starts a local server that answers like Google Drive for a base "base-id" taken at sequence number 10, whose
+    // segments are the other files
+    private MockWebServer startDrive(Map<String, byte[]> files, long baseLength) throws IOException {
+        MockWebServer server = new MockWebServer();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                HttpUrl url = request.getRequestUrl();
+                List<String> path = url.pathSegments();
+                if (path.size() == 3) {
+                    StringBuilder json = new StringBuilder("{\"files\": [");
+                    for (String id : files.keySet()) {
+                        if (!id.equals("base-id")) {
+                            json.append(json.charAt(json.length() - 1) == '[' ? "" : ", ").append("{\"id\": \"").append(id)
+                                    .append("\", \"name\": \"").append(ChangeJournal.segmentName(Long.parseLong(id.substring(4)))).append("\"}");
+                        }
+                    }
+                    return json(json.append("]}").toString());
+                }
+                String id = path.get(3);
+                if (!files.containsKey(id)) {
+                    return new MockResponse().setResponseCode(404);
+                }
+                if ("media".equals(url.queryParameter("alt"))) {
+                    return new MockResponse().setBody(new Buffer().write(files.get(id)));
+                }
+                return json("{\"id\": \"base-id\", \"size\": \"" + baseLength + "\", \"appProperties\": {\""
+                        + BackupWorker.BASE_JOURNAL_SEQ_PROPERTY + "\": \"10\"}}");
+            }
+        });
+        server.start();
+        Drive drive = new Drive.Builder(new NetHttpTransport(), GsonFactory.getDefaultInstance(), null)
+                .setRootUrl(server.url("/").toString())
+                .setApplicationName("PasswordManager")
+                .build();
+        DriveServiceHolder.setClientsForTesting(GoogleSignIn.getAccountForScopes(context, new Scope(DriveScopes.DRIVE_FILE)),
+                drive, new NetHttpTransport().createRequestFactory());
+        context.getSharedPreferences("AppPreferences", Context.MODE_PRIVATE).edit()
+                .putString(BackupWorker.DRIVE_FOLDER_ID_KEY, "folder-id")
+                .commit();
+        return server;
+    }
+
+    private static MockResponse json(String body) {
+        return new MockResponse().setHeader("Content-Type", "application/json; charset=UTF-8").setBody(body);
+    }
+
+    private ListenableWorker.Result runRestore(ProgressUpdater progressUpdater) {
+        return runRestore(progressUpdater, BACKUP_PASSWORD);
+    }
+
+    private ListenableWorker.Result runRestore(ProgressUpdater progressUpdater, String password) {
+        return runWorker(new Data.Builder().putString(RestoreWorker.SOURCE_URI_KEY, BACKUP_URI.toString()).build(),
+                progressUpdater, password);
+    }
+
+    private ListenableWorker.Result runWorker(Data inputData, ProgressUpdater progressUpdater, String password) {
+        TestWorkerBuilder<RestoreWorker> builder = TestWorkerBuilder.from(context, RestoreWorker.class, Executors.newSingleThreadExecutor())
+                .setInputData(inputData);
+        if (progressUpdater != null) {
+            builder.setProgressUpdater(progressUpdater);
+        }
+        runningWorker = builder.build();
+        RestoreWorker.setPassword(runningWorker.getId(), password);
+        return runningWorker.doWork();
+    }
+}
@@ -0,0 +1,30 @@
+package com.ciphersafe;
+
+import org.junit.rules.ExternalResource;
+
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * SoftwareKeyRule makes {@link EncryptionUtils} encrypt with a fixed software AES key for the duration of a test.
+ * Local tests have no Android Keystore; the Keystore is restored after the test.
+ */
+final class SoftwareKeyRule extends ExternalResource {
+
+    private static final byte[] KEY = new byte[32];
+
+    static {
+        for (int i = 0; i < KEY.length; i++) {
+            KEY[i] = (byte) i;
+        }
+    }
+
+    @Override
+    protected void before() {
+        EncryptionUtils.setKeyProvider(() -> new SecretKeySpec(KEY, "AES"));
+    }
+
+    @Override
+    protected void after() {
+        EncryptionUtils.setKeyProvider(null);
+    }
+}
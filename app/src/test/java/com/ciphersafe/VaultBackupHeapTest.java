@@ -0,0 +1,126 @@
+package com.ciphersafe;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Backs up a vault of {@link #ROW_COUNT} entries with {@link BackupWorker#writeVaultBackup} and checks that the heap
+ * it keeps alive stays bounded, then reads every entry back.
+ * <p>
+ * While the backup runs, a sampler thread repeatedly collects garbage and records the heap in use at the end of the
+ * collection, so the samples count what the export retains and not the garbage it leaves behind. Entries carry long
+ * notes, so keeping every entry in memory would retain over 60 MB; streaming keeps a few pages.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class VaultBackupHeapTest {
+
+    private static final int ROW_COUNT = 100000;
+    private static final long SEED = 7;
+    private static final int NOTES_LENGTH = 512;
+    private static final String BACKUP_PASSWORD = "heap-test";
+    // Heap the backup may retain on top of the seeded database
+    private static final long MAX_RETAINED_BYTES = 24L * 1024 * 1024;
+    private static final long SAMPLE_INTERVAL_MILLIS = 50;
+
+    @Rule
+    public SoftwareKeyRule softwareKey = new SoftwareKeyRule();
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final VaultGenerator generator = new VaultGenerator(SEED, 12, 20, 16, NOTES_LENGTH);
+    private AppDatabase db;
+
+    @Before
+    public void seedVault() throws Exception {
+        db = AppDatabase.createInMemory(ApplicationProvider.getApplicationContext());
+        generator.seed(db, ROW_COUNT);
+    }
+
+    @After
+    public void closeVault() {
+        db.close();
+    }
+
+    @Test
+    public void backupOfALargeVaultRetainsBoundedHeapAndReadsBack() throws Exception {
+        File backupFile = temporaryFolder.newFile("vault.csvault");
+        long baseline = retainedHeap();
+        AtomicLong peak = new AtomicLong(baseline);
+        AtomicBoolean running = new AtomicBoolean(true);
+        Thread sampler = new Thread(() -> {
+            while (running.get()) {
+                peak.accumulateAndGet(retainedHeap(), Math::max);
+                try {
+                    Thread.sleep(SAMPLE_INTERVAL_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "HeapSampler");
+        sampler.start();
+
+        ExportPipeline.Stats stats;
+        try {
+            stats = BackupWorker.writeVaultBackup(db.passwordDao(), BACKUP_PASSWORD, backupFile);
+        } finally {
+            running.set(false);
+            sampler.join();
+        }
+
+        assertEquals(ROW_COUNT, stats.entryCount);
+        assertEquals(0, stats.failureCount);
+        long retained = peak.get() - baseline;
+        assertTrue("The backup retained " + retained / 1024 + " KB", retained < MAX_RETAINED_BYTES);
+
+        try (VaultBackupReader reader = new VaultBackupReader(new BufferedInputStream(new FileInputStream(backupFile)), BACKUP_PASSWORD)) {
+            for (int i = 0; i < ROW_COUNT; i++) {
+                ChangeJournal.Entry entry = reader.read();
+                assertNotNull("Missing entry " + i, entry);
+                // Ids are assigned from 1 in insertion order
+                assertEquals(i + 1, entry.id);
+                assertEquals(generator.accountName(i), entry.accountName);
+                assertNotNull(entry.password);
+            }
+            assertNull(reader.read());
+        }
+    }
+
+    // Heap in use right after a full collection, as recorded by the collector; unlike Runtime.freeMemory() this does
+    // not count what other threads allocate once the collection is over
+    private static long retainedHeap() {
+        System.gc();
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            MemoryUsage usage = pool.getCollectionUsage();
+            if (pool.getType() == MemoryType.HEAP && usage != null) {
+                used += usage.getUsed();
+            }
+        }
+        return used;
+    }
+}
@@ -0,0 +1,196 @@
+package com.ciphersafe;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.os.Looper;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how the user-facing operations scale with the vault size and fails if any of them exceeds its budget.
+ * <p>
+ * For each of {@link #ROW_COUNTS}, a private in-memory database is filled by {@link VaultGenerator} and these
+ * operations are timed:
+ * <ul>
+ *     <li>list first page: the first page of the vault list, loaded by {@link VaultListLoader} as MainActivity does;</li>
+ *     <li>list scroll: scrolling {@link VaultListLoader} from the top to the end of the vault, page by page;</li>
+ *     <li>list last page: the last page of that scroll, which must cost as much as the first;</li>
+ *     <li>detail lookup: reading one entry by id and decrypting its password, as the detail dialog does;</li>
+ *     <li>export: the encrypted Excel workbook that MainActivity exports, written by {@link ExcelExport};</li>
+ *     <li>backup serialization: streaming the vault through {@link ExportPipeline} into a {@link VaultBackupWriter}.</li>
+ * </ul>
+ * The median of several runs is compared with the operation's budget, which is a fixed part plus a part per thousand
+ * entries. Every result is printed, and the test fails after the last size if any operation was over budget.
+ * Passwords are encrypted with a software key, as local tests have no Keystore.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class VaultScaleCheckTest {
+
+    private static final int[] ROW_COUNTS = {1000, 10000, 100000};
+    private static final long SEED = 42;
+    // Rows per page of the vault list, as in MainActivity
+    private static final int LIST_PAGE_SIZE = 50;
+    private static final int LOOKUP_RUNS = 20;
+    private static final int SCROLL_RUNS = 3;
+    private static final int EXPORT_RUNS = 3;
+    private static final String BACKUP_PASSWORD = "scale-check";
+    private static final long LOAD_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    // Budgets, in milliseconds: {fixed, per thousand entries}
+    private static final long[] LIST_PAGE_BUDGET = {50, 0};
+    private static final long[] LIST_SCROLL_BUDGET = {500, 100};
+    private static final long[] DETAIL_LOOKUP_BUDGET = {30, 0};
+    private static final long[] EXPORT_BUDGET = {1000, 600};
+    private static final long[] BACKUP_BUDGET = {1000, 400};
+
+    @Rule
+    public SoftwareKeyRule softwareKey = new SoftwareKeyRule();
+
+    private final StringBuilder summary = new StringBuilder();
+    private boolean passed = true;
+
+    /**
+     * One timed operation, run once per call.
+     */
+    private interface Operation {
+        void run() throws Exception;
+    }
+
+    @Test
+    public void operationsStayWithinBudget() throws Exception {
+        for (int rowCount : ROW_COUNTS) {
+            runAt(rowCount);
+        }
+        System.out.print(summary);
+        assertTrue("Over budget:\n" + summary, passed);
+    }
+
+    private void runAt(int rowCount) throws Exception {
+        VaultGenerator generator = VaultGenerator.typical(SEED);
+        AppDatabase db = AppDatabase.createInMemory(ApplicationProvider.getApplicationContext());
+        try {
+            generator.seed(db, rowCount);
+
+            measure("listFirstPage", rowCount, LOOKUP_RUNS, LIST_PAGE_BUDGET, () -> {
+                VaultListLoader loader = new VaultListLoader(db, LIST_PAGE_SIZE);
+                loader.start();
+                try {
+                    assertEquals(Math.min(rowCount, LIST_PAGE_SIZE), awaitRows(loader, null).size());
+                } finally {
+                    loader.stop();
+                }
+            });
+            long[] lastPageNanos = new long[SCROLL_RUNS];
+            int[] scroll = {0};
+            measure("listScroll", rowCount, SCROLL_RUNS, LIST_SCROLL_BUDGET,
+                    () -> lastPageNanos[scroll[0]++] = scrollToEnd(db, rowCount));
+            check("listLastPage", rowCount, lastPageNanos, LIST_PAGE_BUDGET);
+
+            PasswordDao passwordDao = db.passwordDao();
+            Random random = new Random(SEED);
+            measure("detailLookup", rowCount, LOOKUP_RUNS, DETAIL_LOOKUP_BUDGET, () -> {
+                // Ids are assigned from 1 in insertion order
+                Password entry = passwordDao.findById(1 + random.nextInt(rowCount));
+                EncryptionUtils.decrypt(entry.password);
+            });
+            File cacheDir = ApplicationProvider.getApplicationContext().getCacheDir();
+            measure("export", rowCount, EXPORT_RUNS, EXPORT_BUDGET,
+                    () -> ExcelExport.write(passwordDao, BACKUP_PASSWORD, cacheDir, new NullOutputStream()));
+            measure("backupSerialization", rowCount, EXPORT_RUNS, BACKUP_BUDGET, () -> {
+                try (VaultBackupWriter writer = new VaultBackupWriter(new NullOutputStream(), BACKUP_PASSWORD)) {
+                    ExportPipeline.run(passwordDao, writer::write);
+                    writer.finish();
+                }
+            });
+        } finally {
+            db.close();
+        }
+    }
+
+    // Scrolls the vault list from the top to the end as MainActivity does, and returns the time the last page took
+    private static long scrollToEnd(AppDatabase db, int rowCount) {
+        VaultListLoader loader = new VaultListLoader(db, LIST_PAGE_SIZE);
+        loader.start();
+        try {
+            List<PasswordSummary> rows = awaitRows(loader, null);
+            long lastPageNanos = 0;
+            while (rows.size() < rowCount) {
+                long startNanos = System.nanoTime();
+                loader.loadMore();
+                rows = awaitRows(loader, rows);
+                lastPageNanos = System.nanoTime() - startNanos;
+            }
+            assertEquals(rowCount, rows.size());
+            return lastPageNanos;
+        } finally {
+            loader.stop();
+        }
+    }
+
+    // Runs the main looper, where the loader delivers its pages, until it delivers a list other than previous
+    private static List<PasswordSummary> awaitRows(VaultListLoader loader, List<PasswordSummary> previous) {
+        long deadline = System.nanoTime() + LOAD_TIMEOUT_NANOS;
+        while (true) {
+            shadowOf(Looper.getMainLooper()).idle();
+            List<PasswordSummary> rows = loader.getRows().getValue();
+            if (rows != null && rows != previous) {
+                return rows;
+            }
+            if (System.nanoTime() > deadline) {
+                throw new AssertionError("The vault list did not load");
+            }
+            Thread.yield();
+        }
+    }
+
+    // Runs an operation several times and checks its median time against its budget
+    private void measure(String name, int rowCount, int runs, long[] budget, Operation operation) throws Exception {
+        long[] nanos = new long[runs];
+        for (int run = 0; run < runs; run++) {
+            long startNanos = System.nanoTime();
+            operation.run();
+            nanos[run] = System.nanoTime() - startNanos;
+        }
+        check(name, rowCount, nanos, budget);
+    }
+
+    // Compares the median of the measured times with the budget and adds the result to the summary
+    private void check(String name, int rowCount, long[] nanos, long[] budget) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        long medianMillis = TimeUnit.NANOSECONDS.toMillis(sorted[sorted.length / 2]);
+        long budgetMillis = budget[0] + budget[1] * rowCount / 1000;
+        boolean withinBudget = medianMillis <= budgetMillis;
+        passed &= withinBudget;
+        summary.append(String.format(Locale.US, "%-20s %7d %7d ms / %7d ms %s%n",
+                name, rowCount, medianMillis, budgetMillis, withinBudget ? "ok" : "OVER BUDGET"));
+    }
+
+    // Discards everything written to it
+    private static final class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.ciphersafe.benchmark;
+
+import static org.junit.Assume.assumeTrue;
+
+import androidx.benchmark.macro.junit4.BaselineProfileRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.test.uiautomator.UiDevice;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import kotlin.Unit;
+
+/**
+ * Generates the baseline profile of the app from the journeys in {@link VaultFlows}: the start-up that
+ * {@link StartupBenchmark} measures, and, on a vault of {@value #VAULT_ROWS} entries, unlocking, scrolling to the end
+ * of the list, opening an entry and exporting in both formats.
+ * <p>
+ * Run {@code ./gradlew :app:generateBaselineProfile} with a device connected; the profile is written to
+ * {@code app/src/release/generated/baselineProfiles/} and compiled into release builds. The vault journeys need the
+ * device PIN, see {@link VaultFlows}; without it only the start-up is profiled.
+ */
+@RunWith(AndroidJUnit4.class)
+public class BaselineProfileGenerator {
+
+    private static final int VAULT_ROWS = 5000;
+
+    @Rule
+    public BaselineProfileRule baselineProfileRule = new BaselineProfileRule();
+
+    private final UiDevice device = UiDevice.getInstance(InstrumentationRegistry.getInstrumentation());
+
+    @Test
+    public void startup() {
+        VaultFlows.seedVault(device, 0);
+        baselineProfileRule.collect(VaultFlows.PACKAGE_NAME, scope -> {
+            VaultFlows.acceptPolicyIfShown(scope);
+            scope.startActivityAndWait();
+            VaultFlows.awaitVaultList(scope);
+            return Unit.INSTANCE;
+        });
+    }
+
+    @Test
+    public void vaultJourneys() {
+        assumeTrue("The devicePin instrumentation argument is not set", VaultFlows.devicePin() != null);
+        VaultFlows.seedVault(device, VAULT_ROWS);
+        baselineProfileRule.collect(VaultFlows.PACKAGE_NAME, scope -> {
+            scope.startActivityAndWait();
+            VaultFlows.unlock(scope);
+            VaultFlows.scrollToEnd(scope, VAULT_ROWS);
+            VaultFlows.openEntry(scope);
+            VaultFlows.export(scope, "CipherSafe backup (.csvault)");
+            VaultFlows.export(scope, "Excel workbook (.xlsx)");
+            return Unit.INSTANCE;
+        });
+    }
+}
@@ -0,0 +1,80 @@
+package com.ciphersafe.benchmark;
+
+import androidx.benchmark.macro.BaselineProfileMode;
+import androidx.benchmark.macro.CompilationMode;
+import androidx.benchmark.macro.StartupMode;
+import androidx.benchmark.macro.StartupTimingMetric;
+import androidx.benchmark.macro.junit4.MacrobenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.test.uiautomator.UiDevice;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Collections;
+
+import kotlin.Unit;
+
+/**
+ * Measures cold and warm starts to the vault list, as {@code timeToInitialDisplay} and, through the app's
+ * reportFullyDrawn() call, {@code timeToFullDisplay}. A cold start begins with a new process; a warm start reuses the
+ * process and recreates only the activity.
+ * <p>
+ * Each start is measured without ahead-of-time compilation and with the baseline profile only, so the two results
+ * show what the profile saves. Run on a device with {@code ./gradlew :benchmark:connectedBenchmarkReleaseAndroidTest}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class StartupBenchmark {
+
+    private static final int ITERATIONS = 10;
+
+    @Rule
+    public MacrobenchmarkRule benchmarkRule = new MacrobenchmarkRule();
+
+    @Before
+    public void emptyVault() {
+        // A vault with entries asks for the device credential, which would be measured along with the start
+        VaultFlows.seedVault(UiDevice.getInstance(InstrumentationRegistry.getInstrumentation()), 0);
+    }
+
+    @Test
+    public void coldStartWithoutCompilation() {
+        startup(StartupMode.COLD, new CompilationMode.None());
+    }
+
+    @Test
+    public void coldStartWithBaselineProfile() {
+        startup(StartupMode.COLD, new CompilationMode.Partial(BaselineProfileMode.Require));
+    }
+
+    @Test
+    public void warmStartWithoutCompilation() {
+        startup(StartupMode.WARM, new CompilationMode.None());
+    }
+
+    @Test
+    public void warmStartWithBaselineProfile() {
+        startup(StartupMode.WARM, new CompilationMode.Partial(BaselineProfileMode.Require));
+    }
+
+    private void startup(StartupMode startupMode, CompilationMode compilationMode) {
+        benchmarkRule.measureRepeated(
+                VaultFlows.PACKAGE_NAME,
+                Collections.singletonList(new StartupTimingMetric()),
+                compilationMode,
+                startupMode,
+                ITERATIONS,
+                scope -> {
+                    VaultFlows.acceptPolicyIfShown(scope);
+                    return Unit.INSTANCE;
+                },
+                scope -> {
+                    scope.startActivityAndWait();
+                    VaultFlows.awaitVaultList(scope);
+                    return Unit.INSTANCE;
+                });
+    }
+}
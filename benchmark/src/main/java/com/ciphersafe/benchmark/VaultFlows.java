@@ -0,0 +1,221 @@
+package com.ciphersafe.benchmark;
+
+import android.os.SystemClock;
+
+import androidx.benchmark.macro.MacrobenchmarkScope;
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.test.uiautomator.By;
+import androidx.test.uiautomator.Direction;
+import androidx.test.uiautomator.UiDevice;
+import androidx.test.uiautomator.UiObject2;
+import androidx.test.uiautomator.Until;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * VaultFlows drives the app under test through the screens the benchmarks and the profile generator measure.
+ * <p>
+ * A new install first shows the privacy policy; it is accepted once, and later starts go straight to the vault list.
+ * {@link #seedVault} fills the vault through the {@code BenchmarkVaultSeeder} receiver of benchmark builds. An empty
+ * vault opens without authentication; a vault with entries asks for the device credential on every start, which
+ * {@link #unlock} enters from the {@code devicePin} instrumentation argument, e.g.
+ * {@code -Pandroid.testInstrumentationRunnerArguments.devicePin=1234} after {@code adb shell locksettings set-pin 1234}.
+ */
+final class VaultFlows {
+
+    /**
+     * The package of the app under test.
+     */
+    static final String PACKAGE_NAME = "com.ciphersafe";
+
+    /**
+     * The password {@link #seedVault} stores for exports, so that exporting does not ask for one.
+     */
+    static final String EXPORT_PASSWORD = "benchmark-export";
+
+    private static final long TIMEOUT_MILLIS = 10000;
+    private static final String EXPORT_DIR = "/sdcard/Download/CipherSafe";
+    // Flings in a row that may leave the list where it was before the end is declared unreachable
+    private static final int MAX_STALLED_FLINGS = 3;
+
+    private VaultFlows() {
+    }
+
+    /**
+     * Starts the app and accepts the privacy policy if it is shown, so that the next start opens the vault list.
+     *
+     * @param scope The scope of the running benchmark.
+     */
+    static void acceptPolicyIfShown(MacrobenchmarkScope scope) {
+        scope.startActivityAndWait();
+        UiDevice device = scope.getDevice();
+        UiObject2 acceptCheckBox = device.findObject(By.res(PACKAGE_NAME, "acceptCheckBox"));
+        if (acceptCheckBox != null) {
+            if (!acceptCheckBox.isChecked()) {
+                acceptCheckBox.click();
+            }
+            device.findObject(By.res(PACKAGE_NAME, "continueButton")).click();
+            awaitVaultList(scope);
+        }
+        scope.pressHome();
+    }
+
+    /**
+     * Waits until the vault list screen is shown and the app is idle, which is after it checked the vault and
+     * reported itself fully drawn. An empty list has no height, so the add button is waited for instead.
+     *
+     * @param scope The scope of the running benchmark.
+     */
+    static void awaitVaultList(MacrobenchmarkScope scope) {
+        UiDevice device = scope.getDevice();
+        if (!device.wait(Until.hasObject(By.res(PACKAGE_NAME, "addpassword")), TIMEOUT_MILLIS)) {
+            throw new IllegalStateException("The vault list was not shown");
+        }
+        device.waitForIdle();
+    }
+
+    /**
+     * Replaces the vault with generated entries and stops the app, so that the next start loads them.
+     *
+     * @param device The device under test.
+     * @param rows   The number of entries; 0 leaves the vault empty.
+     */
+    static void seedVault(UiDevice device, int rows) {
+        String output = shell(device, "am broadcast -n " + PACKAGE_NAME + "/.BenchmarkVaultSeeder --ei rows " + rows
+                + " --es exportPassword " + EXPORT_PASSWORD);
+        if (!output.contains("result=-1")) {
+            throw new IllegalStateException("Seeding the vault failed: " + output.trim());
+        }
+        shell(device, "am force-stop " + PACKAGE_NAME);
+    }
+
+    /**
+     * Returns the PIN of the device under test, from the {@code devicePin} instrumentation argument.
+     *
+     * @return The PIN, or null if none was given.
+     */
+    static String devicePin() {
+        return InstrumentationRegistry.getArguments().getString("devicePin");
+    }
+
+    /**
+     * Enters the device PIN when the app asks for the device credential at start, and waits for the first entries.
+     *
+     * @param scope The scope of the running benchmark.
+     */
+    static void unlock(MacrobenchmarkScope scope) {
+        UiDevice device = scope.getDevice();
+        // The credential screen belongs to the system, not to the app
+        if (!device.wait(Until.hasObject(By.clazz("android.widget.EditText")
+                .pkg(Pattern.compile("^(?!" + Pattern.quote(PACKAGE_NAME) + "$).*"))), TIMEOUT_MILLIS)) {
+            throw new IllegalStateException("The device credential was not asked for");
+        }
+        shell(device, "input text " + devicePin());
+        device.pressEnter();
+        if (!device.wait(Until.hasObject(By.res(PACKAGE_NAME, "account_name")), TIMEOUT_MILLIS)) {
+            throw new IllegalStateException("The vault entries were not shown after unlocking");
+        }
+        device.waitForIdle();
+    }
+
+    /**
+     * Flings through the vault list until its last entry is shown, which loads every page on the way.
+     *
+     * @param scope The scope of the running benchmark.
+     * @param rows  The number of entries {@link #seedVault} inserted.
+     */
+    static void scrollToEnd(MacrobenchmarkScope scope, int rows) {
+        UiDevice device = scope.getDevice();
+        UiObject2 list = device.findObject(By.res(PACKAGE_NAME, "password_list"));
+        // Keeps the fling clear of the system gesture areas at the edges of the screen
+        list.setGestureMargin(device.getDisplayWidth() / 5);
+        // Generated account names end with the index of the entry, and the list is in insertion order
+        By last = By.res(PACKAGE_NAME, "account_name").textEndsWith("-" + (rows - 1));
+        int stalled = 0;
+        while (!device.hasObject(last)) {
+            if (list.fling(Direction.DOWN)) {
+                stalled = 0;
+            } else if (++stalled >= MAX_STALLED_FLINGS) {
+                throw new IllegalStateException("The list ended before entry " + (rows - 1));
+            }
+            device.waitForIdle();
+        }
+    }
+
+    /**
+     * Opens the details of the first entry shown, waits for the decrypted password, and closes the dialog.
+     *
+     * @param scope The scope of the running benchmark.
+     */
+    static void openEntry(MacrobenchmarkScope scope) {
+        UiDevice device = scope.getDevice();
+        device.findObject(By.res(PACKAGE_NAME, "account_name")).click();
+        if (!device.wait(Until.hasObject(By.res(PACKAGE_NAME, "dialog_password")), TIMEOUT_MILLIS)) {
+            throw new IllegalStateException("The entry details were not shown");
+        }
+        device.pressBack();
+        device.wait(Until.gone(By.res(PACKAGE_NAME, "dialog_password")), TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Exports the vault in the given format, waits until the file is completely written, and deletes it.
+     *
+     * @param scope       The scope of the running benchmark.
+     * @param formatLabel The label of the format in the export dialog, e.g. "Excel workbook (.xlsx)".
+     */
+    static void export(MacrobenchmarkScope scope, String formatLabel) {
+        UiDevice device = scope.getDevice();
+        Set<String> before = listExports(device);
+        device.findObject(By.res(PACKAGE_NAME, "downloadasexcel")).click();
+        if (!device.wait(Until.hasObject(By.text(formatLabel)), TIMEOUT_MILLIS)) {
+            throw new IllegalStateException("The export dialog was not shown");
+        }
+        device.findObject(By.text(formatLabel)).click();
+
+        String file = null;
+        String lastSize = null;
+        long deadline = System.currentTimeMillis() + 6 * TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            if (file == null) {
+                Set<String> created = listExports(device);
+                created.removeAll(before);
+                file = created.isEmpty() ? null : created.iterator().next();
+            } else {
+                // The file exists as soon as the export starts; it is complete once its size stops changing
+                String size = shell(device, "stat -c %s " + EXPORT_DIR + "/" + file).trim();
+                if (!size.isEmpty() && !size.equals("0") && size.equals(lastSize)) {
+                    shell(device, "rm " + EXPORT_DIR + "/" + file);
+                    device.waitForIdle();
+                    return;
+                }
+                lastSize = size;
+            }
+            SystemClock.sleep(500);
+        }
+        throw new IllegalStateException("The export did not finish: " + (file != null ? file : "no file"));
+    }
+
+    // Lists the files in the export directory
+    private static Set<String> listExports(UiDevice device) {
+        Set<String> files = new HashSet<>();
+        // Before the first export the directory does not exist, and ls prints nothing to its output
+        for (String name : shell(device, "ls " + EXPORT_DIR).split("\\s+")) {
+            if (!name.isEmpty()) {
+                files.add(name);
+            }
+        }
+        return files;
+    }
+
+    // Runs a command as the shell user, which may send to the seeder and read shared storage
+    private static String shell(UiDevice device, String command) {
+        try {
+            return device.executeShellCommand(command);
+        } catch (IOException e) {
+            throw new IllegalStateException("Shell command failed: " + command, e);
+        }
+    }
+}
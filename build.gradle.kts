@@ -0,0 +1,5 @@
+plugins {
+    id("com.android.application") version "8.5.2" apply false
+    id("com.android.test") version "8.5.2" apply false
+    id("androidx.baselineprofile") version "1.2.4" apply false
+}